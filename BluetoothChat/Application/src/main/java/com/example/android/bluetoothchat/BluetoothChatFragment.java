@@ -22,8 +22,6 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -32,7 +30,6 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -46,6 +43,12 @@ import androidx.fragment.app.FragmentActivity;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * This fragment controls Bluetooth to communicate with other devices.
  */
@@ -58,6 +61,10 @@ public class BluetoothChatFragment extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
 
+    // Keys for the saved instance state
+    private static final String STATE_DEVICE_ADDRESS = "device_address";
+    private static final String STATE_DEVICE_NAME = "device_name";
+
     // Layout Views
     private ListView mConversationView;
     private EditText mOutEditText;
@@ -69,9 +76,34 @@ public class BluetoothChatFragment extends Fragment {
     private String mConnectedDeviceName = null;
 
     /**
-     * Array adapter for the conversation thread
+     * Address of the connected device, whose conversation is shown
+     */
+    private String mConnectedDeviceAddress = null;
+
+    /**
+     * Adapter for the conversation thread
+     */
+    private ConversationAdapter mConversationAdapter;
+
+    /**
+     * Conversation history of each peer, opened on first use
+     */
+    private final Map<String, ConversationLog> mConversationLogs = new HashMap<>();
+
+    /**
+     * Where the conversation histories are stored
      */
-    private ArrayAdapter<String> mConversationArrayAdapter;
+    private File mHistoryDirectory;
+
+    /**
+     * Devices we connected to, for ranking them in the device list
+     */
+    private DeviceCache mDeviceCache;
+
+    /**
+     * Converts messages and conversation entries to UTF-8
+     */
+    private final Utf8Codec mUtf8 = new Utf8Codec();
 
     /**
      * String buffer for outgoing messages
@@ -92,6 +124,10 @@ public class BluetoothChatFragment extends Fragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
+        if (savedInstanceState != null) {
+            mConnectedDeviceAddress = savedInstanceState.getString(STATE_DEVICE_ADDRESS);
+            mConnectedDeviceName = savedInstanceState.getString(STATE_DEVICE_NAME);
+        }
         // Get local Bluetooth adapter
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -126,6 +162,21 @@ public class BluetoothChatFragment extends Fragment {
         if (mChatService != null) {
             mChatService.stop();
         }
+        for (ConversationLog log : mConversationLogs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of conversation history failed", e);
+            }
+        }
+        mConversationLogs.clear();
+    }
+
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_DEVICE_ADDRESS, mConnectedDeviceAddress);
+        outState.putString(STATE_DEVICE_NAME, mConnectedDeviceName);
     }
 
     @Override
@@ -163,14 +214,20 @@ public class BluetoothChatFragment extends Fragment {
     private void setupChat() {
         Log.d(TAG, "setupChat()");
 
-        // Initialize the array adapter for the conversation thread
+        // Initialize the adapter for the conversation thread
         FragmentActivity activity = getActivity();
         if (activity == null) {
             return;
         }
-        mConversationArrayAdapter = new ArrayAdapter<>(activity, R.layout.message);
+        mHistoryDirectory = new File(activity.getFilesDir(), "conversations");
+        mConversationAdapter = new ConversationAdapter(activity);
+        if (mConnectedDeviceAddress != null) {
+            // Show the last conversation again, e.g. after a rotation
+            mConversationAdapter.setLog(conversationLog(mConnectedDeviceAddress),
+                    mConnectedDeviceName);
+        }
 
-        mConversationView.setAdapter(mConversationArrayAdapter);
+        mConversationView.setAdapter(mConversationAdapter);
 
         // Initialize the compose field with a listener for the return key
         mOutEditText.setOnEditorActionListener(mWriteListener);
@@ -182,14 +239,14 @@ public class BluetoothChatFragment extends Fragment {
                 View view = getView();
                 if (null != view) {
                     TextView textView = view.findViewById(R.id.edit_text_out);
-                    String message = textView.getText().toString();
-                    sendMessage(message);
+                    sendMessage(textView.getText());
                 }
             }
         });
 
         // Initialize the BluetoothChatService to perform bluetooth connections
-        mChatService = new BluetoothChatService(activity, mHandler);
+        mChatService = new BluetoothChatService(activity, mServiceListener);
+        mDeviceCache = new DeviceCache(activity);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer();
@@ -212,7 +269,7 @@ public class BluetoothChatFragment extends Fragment {
      *
      * @param message A string of text to send.
      */
-    private void sendMessage(String message) {
+    private void sendMessage(CharSequence message) {
         // Check that we're actually connected before trying anything
         if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
             Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
@@ -222,8 +279,15 @@ public class BluetoothChatFragment extends Fragment {
         // Check that there's actually something to send
         if (message.length() > 0) {
             // Get the message bytes and tell the BluetoothChatService to write
-            byte[] send = message.getBytes();
-            mChatService.write(send);
+            byte[] send = mUtf8.encodeToArray(message);
+            if (send.length > DeliveryWindow.MAX_MESSAGE_LENGTH) {
+                Toast.makeText(getActivity(), R.string.message_too_long, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (!mChatService.write(send)) {
+                Toast.makeText(getActivity(), R.string.send_queue_full, Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             // Reset out string buffer to zero and clear the edit text field
             mOutStringBuffer.setLength(0);
@@ -239,13 +303,70 @@ public class BluetoothChatFragment extends Fragment {
         public boolean onEditorAction(TextView view, int actionId, KeyEvent event) {
             // If the action is a key-up event on the return key, send the message
             if (actionId == EditorInfo.IME_NULL && event.getAction() == KeyEvent.ACTION_UP) {
-                String message = view.getText().toString();
-                sendMessage(message);
+                sendMessage(view.getText());
             }
             return true;
         }
     };
 
+    /**
+     * Return the conversation history of a peer, opening it if needed.
+     *
+     * @param address The peer's address
+     * @return The history, or null if it could not be opened
+     */
+    private ConversationLog conversationLog(String address) {
+        ConversationLog log = mConversationLogs.get(address);
+        if (log == null) {
+            try {
+                log = new ConversationLog(mHistoryDirectory,
+                        address.replaceAll("[^A-Za-z0-9]", "_"));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the conversation history of " + address, e);
+                return null;
+            }
+            mConversationLogs.put(address, log);
+        }
+        return log;
+    }
+
+    /**
+     * Record an entry in the conversation with a peer, and show it if that
+     * conversation is on screen.
+     *
+     * @param address The peer's address
+     * @param kind    One of the ConversationLog.KIND_ constants
+     * @param text    The text of the entry
+     */
+    private void addToConversation(String address, int kind, String text) {
+        addToConversation(address, kind, mUtf8.encode(text));
+    }
+
+    /**
+     * Record a message as it went on the wire, without decoding it.
+     *
+     * @param utf8 The message in UTF-8
+     */
+    private void addToConversation(String address, int kind, byte[] utf8) {
+        addToConversation(address, kind, ByteBuffer.wrap(utf8));
+    }
+
+    private void addToConversation(String address, int kind, ByteBuffer utf8) {
+        ConversationLog log = conversationLog(address);
+        if (log == null) {
+            return;
+        }
+        try {
+            log.append(System.currentTimeMillis(), kind, utf8);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record a message from " + address, e);
+            return;
+        }
+        if (log == mConversationAdapter.getLog()) {
+            mConversationAdapter.notifyDataSetChanged();
+        }
+    }
+
     /**
      * Updates the status on the action bar.
      *
@@ -281,56 +402,91 @@ public class BluetoothChatFragment extends Fragment {
     }
 
     /**
-     * The Handler that gets information back from the BluetoothChatService
+     * The listener that gets information back from the BluetoothChatService
      */
-    private final Handler mHandler = new Handler() {
+    private final BluetoothChatService.Listener mServiceListener =
+            new BluetoothChatService.Listener() {
         @Override
-        public void handleMessage(Message msg) {
-            FragmentActivity activity = getActivity();
-            switch (msg.what) {
-                case Constants.MESSAGE_STATE_CHANGE:
-                    switch (msg.arg1) {
-                        case BluetoothChatService.STATE_CONNECTED:
-                            setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            mConversationArrayAdapter.clear();
-                            break;
-                        case BluetoothChatService.STATE_CONNECTING:
-                            setStatus(R.string.title_connecting);
-                            break;
-                        case BluetoothChatService.STATE_LISTEN:
-                        case BluetoothChatService.STATE_NONE:
-                            setStatus(R.string.title_not_connected);
-                            break;
+        public void onStateChanged(int state, int peers) {
+            switch (state) {
+                case BluetoothChatService.STATE_CONNECTED:
+                    if (peers > 1) {
+                        setStatus(getString(R.string.title_connected_to_count, peers));
+                    } else {
+                        setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
                     }
                     break;
-                case Constants.MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
-                    mConversationArrayAdapter.add("Me:  " + writeMessage);
+                case BluetoothChatService.STATE_CONNECTING:
+                    setStatus(R.string.title_connecting);
                     break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
-                    break;
-                case Constants.MESSAGE_DEVICE_NAME:
-                    // save the connected device's name
-                    mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
-                    if (null != activity) {
-                        Toast.makeText(activity, "Connected to "
-                                + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
-                    }
-                    break;
-                case Constants.MESSAGE_TOAST:
-                    if (null != activity) {
-                        Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
-                                Toast.LENGTH_SHORT).show();
-                    }
+                case BluetoothChatService.STATE_LISTEN:
+                case BluetoothChatService.STATE_NONE:
+                    setStatus(R.string.title_not_connected);
                     break;
             }
         }
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+            // save the connected device's name
+            mConnectedDeviceName = name;
+            mConnectedDeviceAddress = address;
+            // Show the history with the device that connected last
+            mConversationAdapter.setLog(conversationLog(address), name);
+            // Remember how quickly the device answers, for the device list
+            Histogram connectTimes = mChatService.getConnectTimes(address);
+            mDeviceCache.onConnected(address, name,
+                    connectTimes != null ? connectTimes.getPercentile(50) : -1);
+            showToast("Connected to " + name);
+        }
+
+        @Override
+        public void onConnectionFailed(String address) {
+            showToast("Unable to connect device");
+        }
+
+        @Override
+        public void onConnectionLost(String address, String name) {
+            showToast("Device connection was lost");
+        }
+
+        @Override
+        public void onMessageRead(String address, String name, byte[] message) {
+            addToConversation(address, ConversationLog.KIND_INCOMING, message);
+        }
+
+        @Override
+        public void onMessageWritten(String address, String name, byte[] message) {
+            // Messages go out to every peer; each copy goes in that peer's history
+            addToConversation(address, ConversationLog.KIND_OUTGOING, message);
+        }
+
+        @Override
+        public void onMessageDelivered(String address, String name, byte[] message,
+                                       long latencyNanos) {
+            Log.d(TAG, "Delivered to %s in %d ms", name, latencyNanos / 1000000);
+        }
+
+        @Override
+        public void onFileProgress(TransferProgress progress) {
+            Log.d(TAG, "%s", progress);
+            if (progress.isComplete()) {
+                addToConversation(progress.getAddress(), ConversationLog.KIND_EVENT,
+                        (progress.isIncoming() ? "Received " : "Sent ") + progress.getName());
+            }
+        }
+
+        @Override
+        public void onFileFailed(String address, String fileName) {
+            showToast("Unable to send " + fileName);
+        }
+
+        private void showToast(String text) {
+            FragmentActivity activity = getActivity();
+            if (null != activity) {
+                Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
+            }
+        }
     };
 
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
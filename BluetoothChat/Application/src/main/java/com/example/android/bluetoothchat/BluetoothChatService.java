@@ -18,49 +18,117 @@ package com.example.android.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
+ * connections with other devices. The links themselves come from a
+ * {@link Transport}, RFCOMM unless another is given. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * thread for performing data transmissions with each connected device.
+ * <p>
+ * By default the service holds a single connection, as in the original
+ * sample. {@link #setMaxConnections(int)} turns it into a hub that keeps
+ * accepting peers until the limit is reached; events then carry the
+ * address and name of the device they came from or went to.
+ * <p>
+ * Chat messages carry sequence numbers and are acknowledged by the peer; see
+ * {@link DeliveryWindow}. Messages not acknowledged when a connection drops
+ * are sent again when that peer reconnects, and each acknowledgement is
+ * reported with {@link Listener#onMessageDelivered}.
+ * <p>
+ * Files can be sent alongside chat messages with {@link #sendFile(String, File)};
+ * progress is reported with {@link Listener#onFileProgress(TransferProgress)}.
+ * <p>
+ * Events reach the {@link Listener} on the main thread through a
+ * {@link ChatEventQueue}.
+ * <p>
+ * Outgoing connections may race secure and insecure sockets; see
+ * {@link #connect(String, boolean)}. When a peer we connected to is lost we
+ * reconnect to it with a jittered exponential backoff, see
+ * {@link #setAutoReconnect(boolean)}, and {@link #getConnectTimes(String)}
+ * tells how long connecting took.
+ * <p>
+ * Each connection is measured as it runs: bytes, frames, read sizes, write
+ * stalls and the round trip time of periodic pings. See
+ * {@link #getLinkMetrics(String)} and {@link #setMetricsLogInterval(long)}.
  */
 public class BluetoothChatService {
     // Debugging
     private static final String TAG = "BluetoothChatService";
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
-
-    // Unique UUID for this application
-    private static final UUID MY_UUID_SECURE =
-            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID MY_UUID_INSECURE =
-            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
-
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    private final Transport mTransport;
+    private final ChatEventQueue mEvents;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
     private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+    // Connected peers keyed by device address, in connection order
+    private final Map<String, ConnectedThread> mConnections = new LinkedHashMap<>();
+    private int mMaxConnections = 1;
     private int mState;
     private int mNewState;
+    private FrameWriter.Policy mWritePolicy = FrameWriter.Policy.BLOCK;
+    private int mWriteQueueCapacity = FrameWriter.DEFAULT_CAPACITY;
+    // Outgoing file transfers keyed by transfer id; they survive reconnects
+    private final Map<Integer, FileSender> mTransfers = new HashMap<>();
+    // Chat sequencing state keyed by device address; survives reconnects
+    private final Map<String, DeliveryWindow> mDeliveryWindows = new HashMap<>();
+    private int mSendWindow = DeliveryWindow.DEFAULT_WINDOW_SIZE;
+    private File mReceiveDirectory;
+    // Whether a secure link worked last time, keyed by device address
+    private final Map<String, Boolean> mConnectModes = new HashMap<>();
+    // Time from connect() to a connection in milliseconds, keyed by device address
+    private final Map<String, Histogram> mConnectTimes = new HashMap<>();
+    // Reconnect attempts made so far for each peer we lost
+    private final Map<String, Integer> mReconnectAttempts = new HashMap<>();
+    private final Random mRandom = new Random();
+    // Runs reconnects, pings and metrics dumps; created on first use
+    private ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mPingTask;
+    private ScheduledFuture<?> mMetricsLogTask;
+    private long mPingIntervalMs = DEFAULT_PING_INTERVAL_MS;
+    private long mMetricsLogIntervalMs;
+    private boolean mCompression = true;
+    private boolean mAutoReconnect = true;
+
+    // Reconnect backoff: the delay doubles from the first to the maximum, and
+    // each actual delay is picked at random in its upper half
+    private static final long RECONNECT_FIRST_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 30000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
+    // A peer racing two sockets may get both accepted; keep the secure one
+    // if the other was accepted within this time, as the peer does
+    private static final long RACE_WINDOW_MS = 3000;
+
+    // How each socket of a ConnectThread race went
+    private static final int ATTEMPT_PENDING = 0;
+    private static final int ATTEMPT_CONNECTED = 1;
+    private static final int ATTEMPT_FAILED = 2;
+    // Winner of a ConnectThread race that is still running
+    private static final int UNDECIDED = -2;
+
+    public static final long DEFAULT_PING_INTERVAL_MS = 10000;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -68,38 +136,362 @@ public class BluetoothChatService {
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
+    /**
+     * Receives what happens in the service. Every method is called on the
+     * main thread, in the order the events happened, except that state
+     * changes arriving close together are merged into the latest one.
+     */
+    public interface Listener {
+        /**
+         * The overall state changed.
+         *
+         * @param state The new STATE_ constant
+         * @param peers The number of connected peers
+         */
+        void onStateChanged(int state, int peers);
+
+        void onDeviceConnected(String address, String name);
+
+        void onConnectionFailed(String address);
+
+        void onConnectionLost(String address, String name);
+
+        /**
+         * A chat message arrived. The array belongs to the listener.
+         */
+        void onMessageRead(String address, String name, byte[] message);
+
+        /**
+         * A chat message was first written to a peer.
+         */
+        void onMessageWritten(String address, String name, byte[] message);
+
+        /**
+         * A peer acknowledged a chat message.
+         *
+         * @param latencyNanos Time from the first write to the acknowledgement
+         */
+        void onMessageDelivered(String address, String name, byte[] message,
+                                long latencyNanos);
+
+        void onFileProgress(TransferProgress progress);
+
+        /**
+         * Sending a file failed.
+         *
+         * @param fileName The name of the file
+         */
+        void onFileFailed(String address, String fileName);
+    }
+
     /**
      * Constructor. Prepares a new BluetoothChat session.
      *
-     * @param context The UI Activity Context
-     * @param handler A Handler to send messages back to the UI Activity
+     * @param context  The UI Activity Context
+     * @param listener Receives events on the main thread
+     */
+    public BluetoothChatService(Context context, Listener listener) {
+        this(context, listener, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session over the given transport.
+     *
+     * @param context   The UI Activity Context
+     * @param listener  Receives events on the main thread
+     * @param transport Provides the links to other devices
      */
-    public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
+    public BluetoothChatService(Context context, Listener listener, Transport transport) {
+        mTransport = transport;
         mState = STATE_NONE;
         mNewState = mState;
-        mHandler = handler;
+        mEvents = new ChatEventQueue(listener);
+        mReceiveDirectory = new File(context.getFilesDir(), "received");
     }
 
     /**
      * Update UI title according to the current state of the chat connection
      */
     private synchronized void updateUserInterfaceTitle() {
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
+        mState = computeState();
+        Log.d(TAG, "updateUserInterfaceTitle() %d -> %d", mNewState, mState);
         mNewState = mState;
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
+        // Give the new state and the number of peers to the listener so the UI Activity can update
+        mEvents.postStateChanged(mNewState, mConnections.size());
     }
 
     /**
-     * Return the current connection state.
+     * Derive the overall service state from the state of each peer.
+     */
+    private int computeState() {
+        if (!mConnections.isEmpty()) {
+            return STATE_CONNECTED;
+        } else if (mConnectThread != null) {
+            return STATE_CONNECTING;
+        } else if (mSecureAcceptThread != null || mInsecureAcceptThread != null) {
+            return STATE_LISTEN;
+        }
+        return STATE_NONE;
+    }
+
+    /**
+     * Return the current connection state. This is {@link #STATE_CONNECTED}
+     * as long as at least one peer is connected.
      */
     public synchronized int getState() {
         return mState;
     }
 
+    /**
+     * Return the connection state of a single peer.
+     *
+     * @param address The Bluetooth address of the peer
+     * @return {@link #STATE_CONNECTED}, {@link #STATE_CONNECTING} or {@link #STATE_NONE}
+     */
+    public synchronized int getState(String address) {
+        if (mConnections.containsKey(address)) {
+            return STATE_CONNECTED;
+        } else if (mConnectThread != null
+                && address.equals(mConnectThread.mmAddress)) {
+            return STATE_CONNECTING;
+        }
+        return STATE_NONE;
+    }
+
+    /**
+     * Return the addresses of the connected peers, in connection order.
+     */
+    public synchronized List<String> getConnectedDevices() {
+        return new ArrayList<>(mConnections.keySet());
+    }
+
+    /**
+     * Set how many peers may be connected at once. With a limit above one the
+     * service keeps listening while connected and {@link #connect} adds a peer
+     * instead of replacing the current one. Takes effect on the next connection.
+     *
+     * @param maxConnections The maximum number of simultaneous connections
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * Set how outgoing messages are queued. Takes effect on the next connection.
+     *
+     * @param policy   What {@link #write(byte[])} does when the queue is full
+     * @param capacity Maximum number of messages waiting to be sent to each peer
+     */
+    public synchronized void setWriteQueuePolicy(FrameWriter.Policy policy, int capacity) {
+        mWritePolicy = policy;
+        mWriteQueueCapacity = capacity;
+    }
+
+    /**
+     * Return the number of outgoing messages waiting to be sent, over all peers.
+     */
+    public synchronized int getWriteQueueDepth() {
+        int depth = 0;
+        for (ConnectedThread r : mConnections.values()) {
+            depth += r.mmWriter.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Return the number of outgoing bytes queued or currently being written, over all peers.
+     */
+    public synchronized long getBytesInFlight() {
+        long bytes = 0;
+        for (ConnectedThread r : mConnections.values()) {
+            bytes += r.mmWriter.getBytesInFlight();
+        }
+        return bytes;
+    }
+
+    /**
+     * Send a ping to a peer. Its round trip time shows up in the peer's
+     * {@link LinkMetrics#getRoundTrips()}. The ping is skipped if the write
+     * queue is full, since it would only measure our own backlog.
+     *
+     * @param address The address of a connected peer
+     * @return false if the peer is not connected or the ping was skipped
+     */
+    public boolean ping(String address) {
+        ConnectedThread r;
+        synchronized (this) {
+            r = mConnections.get(address);
+            if (r == null) return false;
+        }
+        return r.ping();
+    }
+
+    /**
+     * Set how often every connected peer is pinged; 0 turns pings off.
+     * Defaults to {@link #DEFAULT_PING_INTERVAL_MS}.
+     */
+    public synchronized void setPingInterval(long intervalMs) {
+        mPingIntervalMs = intervalMs;
+        if (mState != STATE_NONE) {
+            schedulePeriodicTasks();
+        }
+    }
+
+    /**
+     * Set how often the metrics of every connected peer are written to the
+     * log, at INFO level; 0, the default, turns this off.
+     */
+    public synchronized void setMetricsLogInterval(long intervalMs) {
+        mMetricsLogIntervalMs = intervalMs;
+        if (mState != STATE_NONE) {
+            schedulePeriodicTasks();
+        }
+    }
+
+    /**
+     * Set whether to offer compression of chat messages to peers; see
+     * {@link FrameCompressor}. On by default. Takes effect for new connections.
+     */
+    public synchronized void setCompression(boolean compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Return how the connection to a peer has performed, or null if it is not
+     * connected.
+     */
+    public synchronized LinkMetrics getLinkMetrics(String address) {
+        ConnectedThread r = mConnections.get(address);
+        return r == null ? null : r.metrics();
+    }
+
+    /**
+     * Return how the connection to every peer has performed, in connection order.
+     */
+    public synchronized List<LinkMetrics> getLinkMetrics() {
+        List<LinkMetrics> metrics = new ArrayList<>(mConnections.size());
+        for (ConnectedThread r : mConnections.values()) {
+            metrics.add(r.metrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * Set how many chat messages may be unacknowledged per peer. Takes effect
+     * for peers that have not been connected yet.
+     */
+    public synchronized void setSendWindow(int sendWindow) {
+        mSendWindow = sendWindow;
+    }
+
+    /**
+     * Return the delivery state of a peer, including its in-flight count and
+     * delivery latency, or null if it has never been connected.
+     */
+    public synchronized DeliveryWindow getDeliveryWindow(String address) {
+        return mDeliveryWindows.get(address);
+    }
+
+    /**
+     * Return the delivery state of a peer, creating it on first use.
+     */
+    private synchronized DeliveryWindow deliveryWindowFor(final String address,
+                                                          final String name) {
+        DeliveryWindow window = mDeliveryWindows.get(address);
+        if (window == null) {
+            window = new DeliveryWindow(new DeliveryWindow.Listener() {
+                @Override
+                public void onDelivered(byte[] message, long latencyNanos) {
+                    mEvents.post(ChatEventQueue.MESSAGE_DELIVERED, address, name, message,
+                            latencyNanos);
+                }
+            }, mSendWindow, mWriteQueueCapacity);
+            mDeliveryWindows.put(address, window);
+        }
+        return window;
+    }
+
+    /**
+     * Set whether to reconnect on our own to peers we connected to when their
+     * connection is lost. On by default.
+     */
+    public synchronized void setAutoReconnect(boolean autoReconnect) {
+        mAutoReconnect = autoReconnect;
+        if (!autoReconnect) {
+            mReconnectAttempts.clear();
+        }
+    }
+
+    /**
+     * Return how long connecting to a peer took, in milliseconds, or null if
+     * we never connected to it.
+     */
+    public synchronized Histogram getConnectTimes(String address) {
+        return mConnectTimes.get(address);
+    }
+
+    /**
+     * Set where files sent by peers are stored.
+     */
+    public synchronized void setFileReceiveDirectory(File directory) {
+        mReceiveDirectory = directory;
+    }
+
+    /**
+     * Start sending a file to a peer. The transfer is interleaved with chat
+     * messages, and resumes from the last acknowledged offset if the peer
+     * disconnects and comes back.
+     *
+     * @param address The Bluetooth address of the peer
+     * @param file    The file to send
+     * @return The transfer, which can be cancelled
+     * @throws IOException If the file cannot be opened
+     */
+    public synchronized FileSender sendFile(String address, File file) throws IOException {
+        FileSender sender = new FileSender(file, address, mFileSenderListener);
+        mTransfers.put(sender.getTransferId(), sender);
+        sender.start();
+        ConnectedThread r = mConnections.get(address);
+        if (r != null) {
+            sender.attach(r.mmWriter);
+        }
+        return sender;
+    }
+
+    /**
+     * Stop sending a file.
+     */
+    public synchronized void cancelFile(FileSender sender) {
+        sender.cancel();
+        mTransfers.remove(sender.getTransferId());
+    }
+
+    private final FileSender.Listener mFileSenderListener = new FileSender.Listener() {
+        @Override
+        public void onProgress(FileSender sender, TransferProgress progress) {
+            if (progress.isComplete()) {
+                synchronized (BluetoothChatService.this) {
+                    mTransfers.remove(sender.getTransferId());
+                }
+            }
+            mEvents.post(ChatEventQueue.FILE_PROGRESS, sender.getAddress(), null, progress, 0);
+        }
+
+        @Override
+        public void onTransferFailed(FileSender sender, IOException e) {
+            Log.e(TAG, "Sending " + sender.getFile() + " failed", e);
+            synchronized (BluetoothChatService.this) {
+                mTransfers.remove(sender.getTransferId());
+            }
+            mEvents.post(ChatEventQueue.FILE_FAILED, sender.getAddress(),
+                    sender.getFile().getName(), null, 0);
+        }
+    };
+
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume()
@@ -114,12 +506,60 @@ public class BluetoothChatService {
         }
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        cancelConnections();
+
+        // Start the thread to listen on a Transport.Acceptor
+        startListening();
+        schedulePeriodicTasks();
+        // Update UI title
+        updateUserInterfaceTitle();
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor();
         }
+        return mScheduler;
+    }
 
-        // Start the thread to listen on a BluetoothServerSocket
+    /**
+     * (Re)start the periodic pings and metrics dumps at their current intervals.
+     */
+    private synchronized void schedulePeriodicTasks() {
+        if (mPingTask != null) {
+            mPingTask.cancel(false);
+            mPingTask = null;
+        }
+        if (mMetricsLogTask != null) {
+            mMetricsLogTask.cancel(false);
+            mMetricsLogTask = null;
+        }
+        if (mPingIntervalMs > 0) {
+            mPingTask = scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (String address : getConnectedDevices()) {
+                        ping(address);
+                    }
+                }
+            }, mPingIntervalMs, mPingIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        if (mMetricsLogIntervalMs > 0) {
+            mMetricsLogTask = scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (LinkMetrics metrics : getLinkMetrics()) {
+                        Log.i(TAG, "%s", metrics);
+                    }
+                }
+            }, mMetricsLogIntervalMs, mMetricsLogIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Start the AcceptThreads unless they are already running.
+     */
+    private synchronized void startListening() {
         if (mSecureAcceptThread == null) {
             mSecureAcceptThread = new AcceptThread(true);
             mSecureAcceptThread.start();
@@ -128,8 +568,46 @@ public class BluetoothChatService {
             mInsecureAcceptThread = new AcceptThread(false);
             mInsecureAcceptThread.start();
         }
-        // Update UI title
-        updateUserInterfaceTitle();
+    }
+
+    /**
+     * Stop the AcceptThreads.
+     */
+    private synchronized void stopListening() {
+        if (mSecureAcceptThread != null) {
+            mSecureAcceptThread.cancel();
+            mSecureAcceptThread = null;
+        }
+        if (mInsecureAcceptThread != null) {
+            mInsecureAcceptThread.cancel();
+            mInsecureAcceptThread = null;
+        }
+    }
+
+    /**
+     * Cancel and forget every ConnectedThread.
+     */
+    private synchronized void cancelConnections() {
+        for (ConnectedThread r : mConnections.values()) {
+            r.cancel();
+        }
+        mConnections.clear();
+    }
+
+    /**
+     * Cancel the connection to the given device, if any, then the oldest
+     * connections until there is room for one more peer.
+     */
+    private synchronized void makeRoomFor(String address) {
+        ConnectedThread existing = mConnections.remove(address);
+        if (existing != null) {
+            existing.cancel();
+        }
+        Iterator<ConnectedThread> it = mConnections.values().iterator();
+        while (mConnections.size() >= mMaxConnections && it.hasNext()) {
+            it.next().cancel();
+            it.remove();
+        }
     }
 
     /**
@@ -139,38 +617,76 @@ public class BluetoothChatService {
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
     public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
+        connect(device.getAddress(), secure);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a remote device.
+     * An insecure connection races a secure and an insecure attempt and keeps
+     * the secure one if it succeeds, unless a secure or insecure link is known
+     * to work with that device, in which case only that one is tried. A
+     * secure connection is never downgraded.
+     *
+     * @param address The transport address of the device to connect
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(String address, boolean secure) {
+        // The user asked; stop any reconnection of our own
+        mReconnectAttempts.remove(address);
+        startConnect(address, secure);
+    }
+
+    private synchronized void startConnect(String address, boolean secure) {
+        Log.d(TAG, "connect to: %s", address);
 
         // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Cancel any thread currently running a connection to this device, and
+        // make room for it unless we act as a hub with room for another peer
+        makeRoomFor(address);
+
+        // Start the thread to connect with the given device, trying what
+        // worked last time on its own
+        Boolean knownMode = mConnectModes.get(address);
+        if (secure) {
+            mConnectThread = new ConnectThread(address, true, true);
+        } else if (knownMode != null) {
+            mConnectThread = new ConnectThread(address, false, knownMode);
+        } else {
+            mConnectThread = new ConnectThread(address, false, true, false);
         }
-
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
         mConnectThread.start();
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start a ConnectedThread to begin managing a Bluetooth connection
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param socket The connection that was made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
+    public synchronized void connected(Transport.Connection socket, final String socketType) {
+        connected(socket, "Secure".equals(socketType), false);
+    }
+
+    /**
+     * Start a ConnectedThread to begin managing a Bluetooth connection
+     *
+     * @param socket   The connection that was made
+     * @param secure   Whether the link is secure
+     * @param outgoing Whether we initiated it, and so should restore it if it drops
+     */
+    private synchronized void connected(Transport.Connection socket, boolean secure,
+                                        boolean outgoing) {
+        String address = socket.getRemoteAddress();
+        String socketType = secure ? "Secure" : "Insecure";
+        Log.d(TAG, "connected, Socket Type:%s", socketType);
+        mConnectModes.put(address, secure);
+        mReconnectAttempts.remove(address);
 
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {
@@ -178,32 +694,35 @@ public class BluetoothChatService {
             mConnectThread = null;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        // Cancel any thread currently running a connection to this device, and
+        // the oldest ones if there is no room for another peer
+        makeRoomFor(address);
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        // Start the thread to manage the connection and perform transmissions
+        ConnectedThread connectedThread = new ConnectedThread(socket, socketType, secure, outgoing);
+        mConnections.put(address, connectedThread);
+        connectedThread.start();
+
+        // Cancel the accept thread once we are connected to as many devices as we want
+        if (mConnections.size() >= mMaxConnections) {
+            stopListening();
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+        // Tell the peer what we support before anything else
+        byte[] hello = new byte[4];
+        ByteBuffer.wrap(hello).putInt(mCompression ? FrameCompressor.CAPABILITY : 0);
+        connectedThread.mmWriter.enqueue(FrameType.HELLO, hello);
+
+        // Resend unacknowledged chat messages, then offer any files waiting for this device
+        connectedThread.mmWindow.attach(connectedThread.mmWriter);
+        for (FileSender sender : mTransfers.values()) {
+            if (sender.getAddress().equals(address)) {
+                sender.attach(connectedThread.mmWriter);
+            }
+        }
 
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mEvents.post(ChatEventQueue.DEVICE_CONNECTED, address, connectedThread.mmName, null, 0);
         // Update UI title
         updateUserInterfaceTitle();
     }
@@ -219,79 +738,203 @@ public class BluetoothChatService {
             mConnectThread = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        cancelConnections();
+        stopListening();
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        for (FileSender sender : mTransfers.values()) {
+            sender.cancel();
         }
-
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        mTransfers.clear();
+        mDeliveryWindows.clear();
+
+        mReconnectAttempts.clear();
+        if (mScheduler != null) {
+            // This also ends the periodic pings and metrics dumps until start()
+            mScheduler.shutdownNow();
+            mScheduler = null;
+            mPingTask = null;
+            mMetricsLogTask = null;
         }
-        mState = STATE_NONE;
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue a message on every ConnectedThread in an unsynchronized manner.
+     * The writes themselves happen on each connection's writer thread.
      *
-     * @param out The bytes to write
+     * @param out The bytes to write, at most {@link DeliveryWindow#MAX_MESSAGE_LENGTH}
+     * @return false if the message is too long or was not queued for every peer
      * @see ConnectedThread#write(byte[])
      */
-    public void write(byte[] out) {
-        // Create temporary object
+    public boolean write(byte[] out) {
+        if (out.length > DeliveryWindow.MAX_MESSAGE_LENGTH) {
+            return false;
+        }
+        // Synchronize a copy of the ConnectedThreads
+        ConnectedThread[] peers;
+        synchronized (this) {
+            if (mConnections.isEmpty()) return false;
+            peers = mConnections.values().toArray(new ConnectedThread[0]);
+        }
+        // Perform the writes unsynchronized
+        boolean queued = true;
+        for (ConnectedThread r : peers) {
+            queued &= r.write(out);
+        }
+        return queued;
+    }
+
+    /**
+     * Queue a message on the ConnectedThread of a single peer.
+     *
+     * @param address The Bluetooth address of the peer
+     * @param out     The bytes to write, at most {@link DeliveryWindow#MAX_MESSAGE_LENGTH}
+     * @return false if the message is too long, the peer is not connected or
+     * the message was not queued
+     */
+    public boolean write(String address, byte[] out) {
+        if (out.length > DeliveryWindow.MAX_MESSAGE_LENGTH) {
+            return false;
+        }
         ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+            r = mConnections.get(address);
+            if (r == null) return false;
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        return r.write(out);
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    private synchronized void connectionFailed(ConnectThread connectThread) {
+        if (mConnectThread != connectThread) {
+            // Cancelled on purpose; a newer attempt or a stop() has taken over
+            return;
+        }
+        mConnectThread = null;
+        // Whatever worked before did not this time; race both next time
+        mConnectModes.remove(connectThread.mmAddress);
+
+        if (mReconnectAttempts.containsKey(connectThread.mmAddress)) {
+            // Our own attempt; keep trying quietly
+            scheduleReconnect(connectThread.mmAddress, connectThread.mmSecure);
+        } else {
+            // Send a failure message back to the Activity
+            mEvents.post(ChatEventQueue.CONNECTION_FAILED, connectThread.mmAddress, null, null,
+                    0);
+        }
 
-        mState = STATE_NONE;
+        // Restart listening mode; other peers stay connected
+        startListening();
         // Update UI title
         updateUserInterfaceTitle();
-
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that a connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
+    private synchronized void connectionLost(ConnectedThread connectedThread) {
+        if (mConnections.get(connectedThread.mmAddress) != connectedThread) {
+            // Cancelled on purpose; nothing to report
+            return;
+        }
+        mConnections.remove(connectedThread.mmAddress);
+        // Release the socket too, or every dropped link keeps its file descriptor
+        connectedThread.cancel();
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mEvents.post(ChatEventQueue.CONNECTION_LOST, connectedThread.mmAddress,
+                connectedThread.mmName, null, 0);
 
-        mState = STATE_NONE;
+        // Peers that connected to us will call back on their own
+        if (mAutoReconnect && connectedThread.mmOutgoing) {
+            mReconnectAttempts.put(connectedThread.mmAddress, 0);
+            scheduleReconnect(connectedThread.mmAddress, connectedThread.mmSecure);
+        }
+
+        // Restart listening mode since there is room for a peer again
+        startListening();
         // Update UI title
         updateUserInterfaceTitle();
+    }
+
+    /**
+     * Try to connect to a lost peer again after a delay that grows with each
+     * failed attempt. The delay is jittered so that peers which lost each other
+     * at the same moment do not keep colliding.
+     */
+    private synchronized void scheduleReconnect(final String address, final boolean secure) {
+        Integer attempts = mReconnectAttempts.get(address);
+        if (attempts == null) {
+            return;
+        }
+        if (attempts >= MAX_RECONNECT_ATTEMPTS) {
+            Log.i(TAG, "Giving up reconnecting to %s", address);
+            mReconnectAttempts.remove(address);
+            return;
+        }
+        mReconnectAttempts.put(address, attempts + 1);
+
+        long delay = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_FIRST_DELAY_MS << attempts);
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        Log.d(TAG, "Reconnecting to %s in %d ms", address, delay);
+
+        scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect(address, secure);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
+    private synchronized void reconnect(String address, boolean secure) {
+        if (mState == STATE_NONE || !mReconnectAttempts.containsKey(address)
+                || mConnections.containsKey(address)) {
+            // Stopped, given up, or the peer came back on its own
+            return;
+        }
+        if (mConnectThread != null) {
+            // Do not get in the way of another connection
+            scheduleReconnect(address, secure);
+            return;
+        }
+        startConnect(address, secure);
+    }
+
+    /**
+     * Settle a race between two sockets from a peer accepted moments apart.
+     * The secure one is kept, as the peer's ConnectThread keeps it; if that
+     * is the new one, the connection made on the other is dropped quietly.
+     *
+     * @return whether the new socket lost and should be closed
+     */
+    private synchronized boolean isRaceLoser(String address, boolean secure) {
+        ConnectedThread existing = mConnections.get(address);
+        if (existing == null || existing.mmOutgoing || System.nanoTime() - existing.mmStartNanos
+                >= TimeUnit.MILLISECONDS.toNanos(RACE_WINDOW_MS)) {
+            return false;
+        }
+        if (secure && !existing.mmSecure) {
+            // Removed first, so its connectionLost() reports nothing
+            mConnections.remove(address);
+            existing.cancel();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record how long a successful connection took.
+     */
+    private synchronized void recordConnectTime(String address, long elapsedNanos) {
+        Histogram histogram = mConnectTimes.get(address);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mConnectTimes.put(address, histogram);
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
     }
 
     /**
@@ -301,38 +944,32 @@ public class BluetoothChatService {
      */
     private class AcceptThread extends Thread {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final Transport.Acceptor mmServerSocket;
+        private final boolean mmSecure;
         private String mSocketType;
 
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            Transport.Acceptor tmp = null;
+            mmSecure = secure;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
             try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
-                }
+                tmp = mTransport.listen(secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
             mmServerSocket = tmp;
-            mState = STATE_LISTEN;
         }
 
         public void run() {
-            Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
+            Log.d(TAG, "Socket Type: %sBEGIN mAcceptThread%s", mSocketType, this);
             setName("AcceptThread" + mSocketType);
 
-            BluetoothSocket socket;
+            Transport.Connection socket;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket until cancelled
+            while (mmServerSocket != null) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -345,32 +982,37 @@ public class BluetoothChatService {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                        if (isRaceLoser(socket.getRemoteAddress(), mmSecure)) {
+                            Log.d(TAG, "Closing the losing socket of a connection race");
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not close unwanted socket", e);
+                            }
+                        } else if (mState != STATE_NONE
+                                && mConnections.size() < mMaxConnections) {
+                            // Situation normal. Start the connected thread.
+                            connected(socket, mmSecure, false);
+                        } else {
+                            // Either not ready or out of room. Terminate new socket.
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not close unwanted socket", e);
+                            }
                         }
                     }
                 }
             }
-            Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
+            Log.i(TAG, "END mAcceptThread, socket Type: %s", mSocketType);
 
         }
 
         public void cancel() {
-            Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            Log.d(TAG, "Socket Type%scancel %s", mSocketType, this);
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -383,93 +1025,221 @@ public class BluetoothChatService {
     /**
      * This thread runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * succeeds or fails. Given several socket types it tries them all at
+     * once and keeps the secure one if it connects, the insecure one
+     * otherwise. The accepting side applies the same rule, so both ends
+     * settle on the same socket whichever connects first.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
+        private final String mmAddress;
+        // Whether only a secure link was acceptable
+        private final boolean mmSecure;
+        private final boolean[] mmModes;
+        private final Transport.Connection[] mmSockets;
+        private final long mmStartNanos = System.nanoTime();
+        // Guarded by this; how each attempt went, one of the ATTEMPT_ values
+        private final int[] mmResults;
+        private int mmWinner = UNDECIDED;
+        private boolean mmCancelled;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
+        /**
+         * @param address The device to connect to
+         * @param secure  Whether only a secure link is acceptable
+         * @param modes   The socket types to try, true for secure
+         */
+        public ConnectThread(String address, boolean secure, boolean... modes) {
+            mmAddress = address;
+            mmSecure = secure;
+            mmModes = modes;
+            mmSockets = new Transport.Connection[modes.length];
+            mmResults = new int[modes.length];
+
+            // Get a connection for the given device
+            for (int i = 0; i < modes.length; i++) {
+                try {
+                    mmSockets[i] = mTransport.open(address, modes[i]);
+                } catch (IOException e) {
+                    Log.e(TAG, "Socket Type: " + socketType(i) + "create() failed", e);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
             }
-            mmSocket = tmp;
-            mState = STATE_CONNECTING;
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            Log.i(TAG, "BEGIN mConnectThread %s modes: %d", mmAddress, mmModes.length);
+            setName("ConnectThread" + mmAddress);
+
+            // Race the socket types on their own threads, so a fast one is
+            // not held up by a slow one
+            for (int i = 0; i < mmSockets.length; i++) {
+                final int index = i;
+                new Thread("ConnectThread" + socketType(i)) {
+                    public void run() {
+                        attempt(index);
+                    }
+                }.start();
+            }
 
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+            int winner;
+            synchronized (this) {
+                while ((winner = pickWinner()) == UNDECIDED) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        winner = -1;
+                        break;
+                    }
                 }
-                connectionFailed();
+                mmWinner = winner;
+            }
+            // Close the attempts that lost, so their blocked connect() calls
+            // fail now rather than at their timeouts
+            for (int i = 0; i < mmSockets.length; i++) {
+                if (i != winner) {
+                    close(i);
+                }
+            }
+            if (winner < 0) {
+                connectionFailed(this);
                 return;
             }
+            recordConnectTime(mmAddress, System.nanoTime() - mmStartNanos);
+            Log.i(TAG, "Connected to %s with %s", mmAddress, socketType(winner));
 
-            // Reset the ConnectThread because we're done
             synchronized (BluetoothChatService.this) {
+                if (mConnectThread != this) {
+                    // Cancelled while the connection completed
+                    close(winner);
+                    return;
+                }
+                // Reset the ConnectThread because we're done
                 mConnectThread = null;
+
+                // Start the connected thread
+                connected(mmSockets[winner], mmModes[winner], true);
             }
+        }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+        /**
+         * Make one connection attempt and report how it went.
+         */
+        private void attempt(int index) {
+            Transport.Connection socket = mmSockets[index];
+            boolean connected = false;
+            if (socket != null) {
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    socket.connect();
+                    connected = true;
+                } catch (IOException e) {
+                    Log.d(TAG, "%s connect() to %s failed", socketType(index), mmAddress);
+                }
+            }
+            synchronized (this) {
+                if (connected && mmWinner == UNDECIDED && !mmCancelled) {
+                    mmResults[index] = ATTEMPT_CONNECTED;
+                    notifyAll();
+                    return;
+                }
+                mmResults[index] = ATTEMPT_FAILED;
+                notifyAll();
+            }
+            // Failed, or connected after the race was decided
+            close(index);
         }
 
-        public void cancel() {
+        /**
+         * Return the attempt to keep: a connected secure one, or once every
+         * secure one has failed a connected insecure one. Returns
+         * {@link #UNDECIDED} while that is not known yet, and -1 if every
+         * attempt failed. Called with this held.
+         */
+        private int pickWinner() {
+            boolean securePending = false;
+            for (int i = 0; i < mmModes.length; i++) {
+                if (mmModes[i] && mmResults[i] == ATTEMPT_CONNECTED) {
+                    return i;
+                }
+                securePending |= mmModes[i] && mmResults[i] == ATTEMPT_PENDING;
+            }
+            boolean pending = securePending;
+            for (int i = 0; i < mmModes.length; i++) {
+                if (!mmModes[i] && mmResults[i] == ATTEMPT_CONNECTED && !securePending) {
+                    return i;
+                }
+                pending |= mmResults[i] == ATTEMPT_PENDING;
+            }
+            return pending ? UNDECIDED : -1;
+        }
+
+        private String socketType(int index) {
+            return mmModes[index] ? "Secure" : "Insecure";
+        }
+
+        private void close(int index) {
+            if (mmSockets[index] == null) {
+                return;
+            }
             try {
-                mmSocket.close();
+                mmSockets[index].close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.e(TAG, "close() of connect " + socketType(index) + " socket failed", e);
+            }
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                mmCancelled = true;
+            }
+            for (int i = 0; i < mmSockets.length; i++) {
+                close(i);
             }
         }
     }
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming and outgoing transmissions for that device.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedThread extends Thread implements FrameWriter.Listener {
+        private final Transport.Connection mmSocket;
+        private final String mmAddress;
+        private final String mmName;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
+        private final FrameWriter mmWriter;
+        private final FileReceiver mmFileReceiver;
+        private final DeliveryWindow mmWindow;
+        private final boolean mmSecure;
+        private final boolean mmOutgoing;
+        private final boolean mmCompression;
+        // Created when the peer sends its first compressed frame
+        private FrameDecompressor mmDecompressor;
+        // Set while the decompressor is delivering the frame it inflated
+        private boolean mmInflating;
+        private final long mmStartNanos = System.nanoTime();
+        private final AtomicLong mmBytesRead = new AtomicLong();
+        private final AtomicLong mmFramesRead = new AtomicLong();
+        private final Histogram mmReadSizes = new Histogram();
+        // Ping round trips in microseconds
+        private final Histogram mmRoundTrips = new Histogram();
+        private volatile boolean mmRunning = true;
+
+        public ConnectedThread(Transport.Connection socket, String socketType, boolean secure,
+                               boolean outgoing) {
+            Log.d(TAG, "create ConnectedThread: %s", socketType);
             mmSocket = socket;
+            mmSecure = secure;
+            mmOutgoing = outgoing;
+            mmCompression = mCompression;
+            mmAddress = socket.getRemoteAddress();
+            mmName = socket.getRemoteName();
+            mmWindow = deliveryWindowFor(mmAddress, mmName);
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the connection's input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -479,49 +1249,228 @@ public class BluetoothChatService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
-            mState = STATE_CONNECTED;
+            mmWriter = new FrameWriter(mmOutStream, this, mWritePolicy, mWriteQueueCapacity,
+                    FrameWriter.DEFAULT_COALESCE_BUFFER_SIZE);
+            mmFileReceiver = new FileReceiver(mReceiveDirectory, mmAddress, mmWriter,
+                    new FileReceiver.Listener() {
+                        @Override
+                        public void onProgress(TransferProgress progress) {
+                            mEvents.post(ChatEventQueue.FILE_PROGRESS, mmAddress, mmName,
+                                    progress, 0);
+                        }
+                    });
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            Log.i(TAG, "BEGIN mConnectedThread %s", mmAddress);
+            mmWriter.start();
+            FrameCodec codec = new FrameCodec();
+            FrameCodec.FrameListener listener = new FrameCodec.FrameListener() {
+                @Override
+                public void onFrame(int type, byte[] buffer, int offset, int length)
+                        throws IOException {
+                    if (type != FrameType.DEFLATED) {
+                        // A compressed frame counts once, as the frame it carries
+                        mmFramesRead.incrementAndGet();
+                    }
+                    switch (type) {
+                        case FrameType.CHAT:
+                            requireLength(type, length, DeliveryWindow.SEQUENCE_LENGTH);
+                            int sequence = DeliveryWindow.getInt(buffer, offset);
+                            if (mmWindow.onReceived(sequence)) {
+                                onChatMessage(buffer, offset + DeliveryWindow.SEQUENCE_LENGTH,
+                                        length - DeliveryWindow.SEQUENCE_LENGTH);
+                            }
+                            break;
+                        case FrameType.CHAT_ACK:
+                            requireLength(type, length, DeliveryWindow.SEQUENCE_LENGTH);
+                            mmWindow.onAck(DeliveryWindow.getInt(buffer, offset));
+                            break;
+                        case FrameType.CHAT_SYNC:
+                            requireLength(type, length, 8);
+                            mmWindow.onSync(DeliveryWindow.getInt(buffer, offset),
+                                    DeliveryWindow.getInt(buffer, offset + 4));
+                            break;
+                        case FrameType.FILE_OFFER:
+                            mmFileReceiver.onOffer(buffer, offset, length);
+                            break;
+                        case FrameType.FILE_CHUNK:
+                            mmFileReceiver.onChunk(buffer, offset, length);
+                            break;
+                        case FrameType.FILE_ACK:
+                        case FrameType.FILE_NACK:
+                            requireLength(type, length, 4 + 8);
+                            onFileReply(type, buffer, offset);
+                            break;
+                        case FrameType.PING:
+                            byte[] pong = new byte[length];
+                            System.arraycopy(buffer, offset, pong, 0, length);
+                            mmWriter.enqueue(FrameType.PONG, pong);
+                            break;
+                        case FrameType.PONG:
+                            requireLength(type, length, 8);
+                            long sent = ByteBuffer.wrap(buffer, offset, 8).getLong();
+                            mmRoundTrips.record((System.nanoTime() - sent) / 1000);
+                            break;
+                        case FrameType.HELLO:
+                            requireLength(type, length, 4);
+                            int capabilities = DeliveryWindow.getInt(buffer, offset);
+                            if (mmCompression
+                                    && (capabilities & FrameCompressor.CAPABILITY) != 0) {
+                                mmWriter.setCompressor(new FrameCompressor());
+                            }
+                            break;
+                        case FrameType.DEFLATED:
+                            if (mmInflating) {
+                                // Nothing we send compresses twice; don't recurse on it
+                                throw new IOException("Compressed frame inside another");
+                            }
+                            if (mmDecompressor == null) {
+                                mmDecompressor = new FrameDecompressor(
+                                        FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+                            }
+                            mmInflating = true;
+                            try {
+                                mmDecompressor.inflate(buffer, offset, length, this);
+                            } finally {
+                                mmInflating = false;
+                            }
+                            break;
+                        default:
+                            Log.w(TAG, "Ignoring frame of unknown type " + type);
+                            break;
+                    }
+                }
+            };
 
             // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
+            while (mmRunning) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                    // Read from the InputStream; complete frames go to the listener
+                    int bytes = codec.readFrom(mmInStream, listener);
+                    if (bytes < 0) {
+                        throw new IOException("Stream closed");
+                    }
+                    mmBytesRead.addAndGet(bytes);
+                    mmReadSizes.record(bytes);
+                    // One cumulative ack covers every message in this read
+                    mmWindow.flushAck();
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    connectionLost(this);
                     break;
                 }
             }
+            mmFileReceiver.close();
+            if (mmDecompressor != null) {
+                mmDecompressor.close();
+            }
+        }
+
+        /**
+         * Fail the connection on a frame too short for the fields of its type,
+         * rather than read past it; the peer is not speaking our protocol.
+         */
+        private void requireLength(int type, int length, int minimum) throws IOException {
+            if (length < minimum) {
+                throw new IOException("Frame of type " + type + " too short: " + length);
+            }
+        }
+
+        private void onChatMessage(byte[] buffer, int offset, int length) {
+            // The codec reuses its buffer, so hand the UI its own copy
+            byte[] message = new byte[length];
+            System.arraycopy(buffer, offset, message, 0, length);
+
+            // Send the obtained message to the UI Activity
+            mEvents.post(ChatEventQueue.MESSAGE_READ, mmAddress, mmName, message, 0);
+        }
+
+        private void onFileReply(int type, byte[] buffer, int offset) {
+            ByteBuffer reply = ByteBuffer.wrap(buffer, offset, 4 + 8);
+            int transferId = reply.getInt();
+            long fileOffset = reply.getLong();
+            FileSender sender;
+            synchronized (BluetoothChatService.this) {
+                sender = mTransfers.get(transferId);
+            }
+            if (sender == null || !sender.getAddress().equals(mmAddress)) {
+                return;
+            }
+            if (type == FrameType.FILE_ACK) {
+                sender.onAck(fileOffset);
+            } else {
+                sender.onNack(fileOffset);
+            }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue a ping carrying the current time, unless the writer is backed up.
+         */
+        boolean ping() {
+            if (mmWriter.getQueueDepth() >= mWriteQueueCapacity) {
+                return false;
+            }
+            byte[] ping = new byte[8];
+            ByteBuffer.wrap(ping).putLong(System.nanoTime());
+            return mmWriter.enqueue(FrameType.PING, ping);
+        }
+
+        LinkMetrics metrics() {
+            FrameCompressor compressor = mmWriter.getCompressor();
+            return new LinkMetrics(mmAddress, mmName,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mmStartNanos),
+                    mmBytesRead.get(), mmFramesRead.get(), mmWriter.getBytesWritten(),
+                    mmWriter.getFramesWritten(), mmWriter.getWriteCalls(),
+                    mmWriter.getFramesDropped(), mmWriter.getQueueDepth(),
+                    compressor == null ? 0 : compressor.getBytesIn(),
+                    compressor == null ? 0 : compressor.getBytesOut(),
+                    mmRoundTrips.snapshot(), mmReadSizes.snapshot(),
+                    mmWriter.getWriteStalls().snapshot());
+        }
+
+        /**
+         * Hand a message to the delivery window, which queues it for the
+         * writer thread once there is room.
          *
          * @param buffer The bytes to write
+         * @return false if the message was rejected
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        public boolean write(byte[] buffer) {
+            return mmWindow.send(buffer);
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        @Override
+        public void onFrameWritten(int type, byte[] payload) {
+            // The queue has room again for any chat frames that did not fit
+            mmWindow.retryPending();
+            if (type != FrameType.CHAT) {
+                return;
             }
+            // Only report the first transmission of each message
+            payload = mmWindow.onWritten(payload);
+            if (payload == null) {
+                return;
+            }
+            // Share the sent message back to the UI Activity
+            mEvents.post(ChatEventQueue.MESSAGE_WRITTEN, mmAddress, mmName, payload, 0);
+        }
+
+        @Override
+        public void onFrameDropped(int type, byte[] payload) {
+            Log.w(TAG, "Write queue full, dropped " + payload.length + " bytes");
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            // The read side notices the broken socket and reports connectionLost()
+            Log.e(TAG, "Exception during write", e);
         }
 
         public void cancel() {
+            mmRunning = false;
+            mmWindow.detach(mmWriter);
+            mmWriter.close();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Carries events from the {@link BluetoothChatService} threads to its
+ * {@link BluetoothChatService.Listener} on the main thread.
+ * <p>
+ * Events live in a ring of reusable slots, so posting one allocates nothing
+ * once the ring has warmed up. Producers take a short lock to claim a slot;
+ * the main thread takes it once per batch to find the filled slots and once
+ * to release them, and dispatches without it. A slot is never touched by a
+ * producer while the main thread reads it. The ring doubles instead of
+ * blocking when the main thread falls behind, because several producers post
+ * while holding the service lock that the UI also takes.
+ * <p>
+ * State changes do not use a slot. Only the latest one is kept, it is
+ * dispatched after the batch it arrived with, and it is dropped if it matches
+ * what the listener last saw.
+ */
+class ChatEventQueue implements Runnable {
+
+    // Event types
+    static final int DEVICE_CONNECTED = 1;
+    static final int CONNECTION_FAILED = 2;
+    static final int CONNECTION_LOST = 3;
+    static final int MESSAGE_READ = 4;
+    static final int MESSAGE_WRITTEN = 5;
+    static final int MESSAGE_DELIVERED = 6;
+    static final int FILE_PROGRESS = 7;
+    static final int FILE_FAILED = 8;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * A reusable slot. Filled by a producer, then read only by the main thread
+     * until it is released.
+     */
+    private static class Event {
+        int mmType;
+        String mmAddress;
+        String mmName;
+        Object mmPayload;
+        long mmValue;
+
+        void clear() {
+            mmAddress = null;
+            mmName = null;
+            mmPayload = null;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final BluetoothChatService.Listener mListener;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private Event[] mEvents;
+    private int mHead;
+    private int mCount;
+    private boolean mScheduled;
+    private boolean mStatePending;
+    private int mPendingState;
+    private int mPendingPeers;
+
+    // Only touched on the main thread
+    private int mDeliveredState = -1;
+    private int mDeliveredPeers = -1;
+
+    ChatEventQueue(BluetoothChatService.Listener listener) {
+        mListener = listener;
+        mEvents = new Event[INITIAL_CAPACITY];
+        for (int i = 0; i < mEvents.length; i++) {
+            mEvents[i] = new Event();
+        }
+    }
+
+    /**
+     * Post an event.
+     *
+     * @param type    One of the event type constants
+     * @param address The peer's address
+     * @param name    The peer's name, or the file name for FILE_FAILED
+     * @param payload The message bytes or the {@link TransferProgress}, if any
+     * @param value   The delivery latency in nanoseconds for MESSAGE_DELIVERED
+     */
+    void post(int type, String address, String name, Object payload, long value) {
+        synchronized (mLock) {
+            if (mCount == mEvents.length) {
+                grow();
+            }
+            Event event = mEvents[(mHead + mCount) & (mEvents.length - 1)];
+            event.mmType = type;
+            event.mmAddress = address;
+            event.mmName = name;
+            event.mmPayload = payload;
+            event.mmValue = value;
+            mCount++;
+            schedule();
+        }
+    }
+
+    /**
+     * Post a state change, replacing any that has not been dispatched yet.
+     */
+    void postStateChanged(int state, int peers) {
+        synchronized (mLock) {
+            mStatePending = true;
+            mPendingState = state;
+            mPendingPeers = peers;
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.post(this);
+        }
+    }
+
+    /**
+     * Move the filled slots to the start of a ring twice the size. The main
+     * thread may be reading some of them, which is fine: the slot objects
+     * stay the same, only the array holding them changes.
+     */
+    private void grow() {
+        Event[] events = new Event[mEvents.length * 2];
+        for (int i = 0; i < mCount; i++) {
+            events[i] = mEvents[(mHead + i) & (mEvents.length - 1)];
+        }
+        for (int i = mCount; i < events.length; i++) {
+            events[i] = new Event();
+        }
+        mEvents = events;
+        mHead = 0;
+    }
+
+    /**
+     * Dispatch everything posted so far. Runs on the main thread.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            Event[] events;
+            int head;
+            int count;
+            boolean statePending;
+            int state;
+            int peers;
+            synchronized (mLock) {
+                events = mEvents;
+                head = mHead;
+                count = mCount;
+                statePending = mStatePending;
+                state = mPendingState;
+                peers = mPendingPeers;
+                mStatePending = false;
+                if (count == 0 && !statePending) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                Event event = events[(head + i) & (events.length - 1)];
+                dispatch(event);
+                event.clear();
+            }
+            synchronized (mLock) {
+                // A grow() in the meantime moved our slots to the start of the new ring
+                mHead = (mHead + count) & (mEvents.length - 1);
+                mCount -= count;
+            }
+
+            if (statePending && (state != mDeliveredState || peers != mDeliveredPeers)) {
+                mDeliveredState = state;
+                mDeliveredPeers = peers;
+                mListener.onStateChanged(state, peers);
+            }
+        }
+    }
+
+    private void dispatch(Event event) {
+        switch (event.mmType) {
+            case DEVICE_CONNECTED:
+                mListener.onDeviceConnected(event.mmAddress, event.mmName);
+                break;
+            case CONNECTION_FAILED:
+                mListener.onConnectionFailed(event.mmAddress);
+                break;
+            case CONNECTION_LOST:
+                mListener.onConnectionLost(event.mmAddress, event.mmName);
+                break;
+            case MESSAGE_READ:
+                mListener.onMessageRead(event.mmAddress, event.mmName, (byte[]) event.mmPayload);
+                break;
+            case MESSAGE_WRITTEN:
+                mListener.onMessageWritten(event.mmAddress, event.mmName,
+                        (byte[]) event.mmPayload);
+                break;
+            case MESSAGE_DELIVERED:
+                mListener.onMessageDelivered(event.mmAddress, event.mmName,
+                        (byte[]) event.mmPayload, event.mmValue);
+                break;
+            case FILE_PROGRESS:
+                mListener.onFileProgress((TransferProgress) event.mmPayload);
+                break;
+            case FILE_FAILED:
+                mListener.onFileFailed(event.mmAddress, event.mmName);
+                break;
+        }
+    }
+}
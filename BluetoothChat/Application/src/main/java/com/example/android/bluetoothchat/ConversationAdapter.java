@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows a {@link ConversationLog} in a ListView. Entries are read from the
+ * log only when the ListView asks for the rows on screen, so memory does not
+ * grow with the length of the conversation.
+ */
+public class ConversationAdapter extends BaseAdapter {
+
+    private final LayoutInflater mInflater;
+    private ConversationLog mLog;
+    private String mPeerName;
+
+    public ConversationAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Show another conversation.
+     *
+     * @param log      The history to show, or null for none
+     * @param peerName The name to show next to incoming messages
+     */
+    public void setLog(ConversationLog log, String peerName) {
+        mLog = log;
+        mPeerName = peerName;
+        notifyDataSetChanged();
+    }
+
+    public ConversationLog getLog() {
+        return mLog;
+    }
+
+    @Override
+    public int getCount() {
+        return mLog == null ? 0 : mLog.size();
+    }
+
+    @Override
+    public ConversationLog.Entry getItem(int position) {
+        return mLog.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(R.layout.message, parent, false);
+        }
+        ConversationLog.Entry entry = getItem(position);
+        switch (entry.getKind()) {
+            case ConversationLog.KIND_INCOMING:
+                view.setText(mPeerName + ":  " + entry.getText());
+                break;
+            case ConversationLog.KIND_OUTGOING:
+                view.setText("Me:  " + entry.getText());
+                break;
+            default:
+                view.setText(entry.getText());
+                break;
+        }
+        return view;
+    }
+}
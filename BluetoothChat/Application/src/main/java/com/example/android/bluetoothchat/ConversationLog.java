@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only conversation history with one peer, kept in two memory-mapped
+ * files so it survives process death without holding messages on the heap.
+ * <p>
+ * The .log file holds the records back to back: a kind byte, a length int
+ * and the UTF-8 text. The .idx file starts with the entry count and then
+ * holds, per entry, the record offset and its timestamp. Appending writes the
+ * record, then its index slot, then bumps the count, so a crash part way
+ * through leaves the log at the previous entry. Timestamps never go
+ * backwards, which lets {@link #indexOf(long)} binary search the index.
+ * <p>
+ * Not thread safe; the chat fragment uses it from the UI thread only.
+ */
+public class ConversationLog implements Closeable {
+
+    /**
+     * A message received from the peer.
+     */
+    public static final int KIND_INCOMING = 0;
+
+    /**
+     * A message sent to the peer.
+     */
+    public static final int KIND_OUTGOING = 1;
+
+    /**
+     * Something that happened in the conversation, like a file transfer.
+     */
+    public static final int KIND_EVENT = 2;
+
+    private static final int INITIAL_DATA_CAPACITY = 64 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private static final int RECORD_HEADER_LENGTH = 1 + 4;
+    private static final int INDEX_HEADER_LENGTH = 8;
+    private static final int INDEX_ENTRY_LENGTH = 8 + 8;
+
+    /**
+     * One entry of the log.
+     */
+    public static class Entry {
+        private final long mTimestamp;
+        private final int mKind;
+        private final String mText;
+
+        Entry(long timestamp, int kind, String text) {
+            mTimestamp = timestamp;
+            mKind = kind;
+            mText = text;
+        }
+
+        /**
+         * Return when the entry was appended, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Return one of the KIND_ constants.
+         */
+        public int getKind() {
+            return mKind;
+        }
+
+        public String getText() {
+            return mText;
+        }
+    }
+
+    private final FileChannel mDataChannel;
+    private final FileChannel mIndexChannel;
+    private MappedByteBuffer mData;
+    private MappedByteBuffer mIndex;
+
+    private int mCount;
+    private long mDataLength;
+    private long mLastTimestamp;
+    private final Utf8Codec mUtf8 = new Utf8Codec();
+
+    /**
+     * Open the history stored under the given name in a directory, creating
+     * it if needed.
+     *
+     * @param directory The directory holding the files
+     * @param name      The base name of the .log and .idx files
+     */
+    public ConversationLog(File directory, String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDataChannel = new RandomAccessFile(new File(directory, name + ".log"), "rw")
+                .getChannel();
+        mIndexChannel = new RandomAccessFile(new File(directory, name + ".idx"), "rw")
+                .getChannel();
+
+        mData = mDataChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(mDataChannel.size(), INITIAL_DATA_CAPACITY));
+        mIndex = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(
+                mIndexChannel.size(),
+                INDEX_HEADER_LENGTH + (long) INITIAL_INDEX_CAPACITY * INDEX_ENTRY_LENGTH));
+        mCount = mIndex.getInt(0);
+        if (mCount > 0) {
+            int last = indexSlot(mCount - 1);
+            int offset = (int) mIndex.getLong(last);
+            mDataLength = offset + RECORD_HEADER_LENGTH + mData.getInt(offset + 1);
+            mLastTimestamp = mIndex.getLong(last + 8);
+        }
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Add an entry to the end of the log.
+     *
+     * @param timestamp When it happened, in milliseconds since the epoch
+     * @param kind      One of the KIND_ constants
+     * @param text      The message text
+     */
+    public void append(long timestamp, int kind, String text) throws IOException {
+        append(timestamp, kind, mUtf8.encode(text));
+    }
+
+    /**
+     * Add an entry already in UTF-8, such as a message as it came from the
+     * peer, to the end of the log.
+     *
+     * @param timestamp When it happened, in milliseconds since the epoch
+     * @param kind      One of the KIND_ constants
+     * @param utf8      The message text between position and limit; all is consumed
+     */
+    public void append(long timestamp, int kind, ByteBuffer utf8) throws IOException {
+        int length = utf8.remaining();
+        long offset = mDataLength;
+        long end = offset + RECORD_HEADER_LENGTH + length;
+        if (end > mData.capacity()) {
+            mData = grow(mDataChannel, end);
+        }
+        mData.put((int) offset, (byte) kind);
+        mData.putInt((int) offset + 1, length);
+        ByteBuffer record = mData.duplicate();
+        record.position((int) offset + RECORD_HEADER_LENGTH);
+        record.put(utf8);
+
+        int slot = indexSlot(mCount);
+        if (slot + INDEX_ENTRY_LENGTH > mIndex.capacity()) {
+            mIndex = grow(mIndexChannel, slot + INDEX_ENTRY_LENGTH);
+        }
+        // Keep the index sorted even if the clock steps back
+        timestamp = Math.max(timestamp, mLastTimestamp);
+        mIndex.putLong(slot, offset);
+        mIndex.putLong(slot + 8, timestamp);
+        mIndex.putInt(0, mCount + 1);
+
+        mCount++;
+        mDataLength = end;
+        mLastTimestamp = timestamp;
+    }
+
+    /**
+     * Read the entry at a position, 0 being the oldest.
+     */
+    public Entry get(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException(position + " of " + mCount);
+        }
+        int slot = indexSlot(position);
+        int offset = (int) mIndex.getLong(slot);
+        int length = mData.getInt(offset + 1);
+        ByteBuffer record = mData.duplicate();
+        record.position(offset + RECORD_HEADER_LENGTH);
+        record.limit(offset + RECORD_HEADER_LENGTH + length);
+        return new Entry(mIndex.getLong(slot + 8), mData.get(offset),
+                mUtf8.decodeToString(record));
+    }
+
+    /**
+     * Return the position of the first entry at or after a time, or
+     * {@link #size()} if there is none.
+     *
+     * @param timestamp Milliseconds since the epoch
+     */
+    public int indexOf(long timestamp) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mIndex.getLong(indexSlot(mid) + 8) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Write any changes through to storage. Not needed to survive process
+     * death, since the kernel owns the mapped pages, only to survive power loss.
+     */
+    public void sync() {
+        mData.force();
+        mIndex.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDataChannel.close();
+        mIndexChannel.close();
+    }
+
+    private static int indexSlot(int position) {
+        return INDEX_HEADER_LENGTH + position * INDEX_ENTRY_LENGTH;
+    }
+
+    /**
+     * Remap a file with at least the given capacity, doubling to keep
+     * appends amortized O(1).
+     */
+    private static MappedByteBuffer grow(FileChannel channel, long required) throws IOException {
+        long capacity = Math.max(channel.size(), 1);
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Conversation log is full");
+        }
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Tracks acknowledged delivery of chat messages to and from one peer. It
+ * outlives individual connections, so messages that were sent but never
+ * acknowledged are transmitted again when the peer reconnects.
+ * <p>
+ * Outgoing messages get consecutive sequence numbers and up to the window
+ * size of them may be unacknowledged at once; the rest wait in a backlog.
+ * The receiving side answers with cumulative {@link FrameType#CHAT_ACK}
+ * frames. A repeated ack means the receiver saw a gap, and everything after
+ * it is sent again.
+ * <p>
+ * On every connection each side first sends {@link FrameType#CHAT_SYNC}
+ * with a random epoch identifying this instance and its oldest unacknowledged
+ * sequence number, so a peer that restarted in the meantime is not mistaken
+ * for the same session.
+ * <p>
+ * Frames are handed to the writer with {@link FrameWriter#offer}, since the
+ * reader and UI threads must not wait on a full queue while holding the
+ * window. Frames that do not fit are kept in order and offered again from
+ * {@link #retryPending()} once the writer has made room.
+ * <p>
+ * All methods are synchronized; they are called from the UI, reader,
+ * writer and service threads.
+ */
+public class DeliveryWindow {
+
+    /**
+     * Receives delivery confirmations, on the reader thread.
+     */
+    public interface Listener {
+        /**
+         * Called once the peer has acknowledged a message.
+         *
+         * @param message      The message as passed to {@link #send(byte[])}
+         * @param latencyNanos Time from first transmission to acknowledgement
+         */
+        void onDelivered(byte[] message, long latencyNanos);
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+
+    // Sequence number in front of the text of every CHAT frame
+    static final int SEQUENCE_LENGTH = 4;
+
+    /**
+     * Longest message that fits in a CHAT frame the peer will accept.
+     */
+    public static final int MAX_MESSAGE_LENGTH =
+            FrameCodec.DEFAULT_MAX_FRAME_LENGTH - SEQUENCE_LENGTH;
+
+    // Weight of a new sample in the moving average latency
+    private static final int LATENCY_SMOOTHING_SHIFT = 3;
+
+    /**
+     * A message that has a sequence number but has not been acknowledged yet.
+     */
+    private static class Entry {
+        final int mmSequence;
+        final byte[] mmMessage;
+        final byte[] mmFrame;
+        long mmFirstSentNanos;
+        boolean mmSent;
+        boolean mmWritten;
+
+        Entry(int sequence, byte[] message) {
+            mmSequence = sequence;
+            mmMessage = message;
+            mmFrame = new byte[SEQUENCE_LENGTH + message.length];
+            putInt(mmFrame, 0, sequence);
+            System.arraycopy(message, 0, mmFrame, SEQUENCE_LENGTH, message.length);
+        }
+    }
+
+    private final Listener mListener;
+    private final int mWindowSize;
+    private final int mBacklogCapacity;
+    private final int mEpoch;
+
+    // Outgoing state
+    private final ArrayDeque<Entry> mUnacked = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> mBacklog = new ArrayDeque<>();
+    // Transmitted while the write queue was full; offered again in order
+    private final ArrayDeque<Entry> mPending = new ArrayDeque<>();
+    private FrameWriter mWriter;
+    private int mNextSequence;
+    private int mLastAck = -1;
+    // Set after going back, so the duplicate acks that follow don't trigger it again
+    private boolean mRetransmitted;
+    private long mSmoothedLatencyNanos;
+    private long mLastLatencyNanos;
+    private long mDelivered;
+
+    // Incoming state
+    private int mPeerEpoch;
+    private boolean mPeerKnown;
+    private int mExpectedSequence;
+    private boolean mAckPending;
+
+    /**
+     * @param listener        Receives delivery confirmations
+     * @param windowSize      Maximum number of unacknowledged messages
+     * @param backlogCapacity Maximum number of messages waiting for the window
+     */
+    public DeliveryWindow(Listener listener, int windowSize, int backlogCapacity) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        mListener = listener;
+        mWindowSize = windowSize;
+        mBacklogCapacity = backlogCapacity;
+        mEpoch = new Random().nextInt();
+    }
+
+    /**
+     * Start using a new connection: announce ourselves, then resend anything
+     * still unacknowledged and fill the window from the backlog.
+     */
+    public synchronized void attach(FrameWriter writer) {
+        mWriter = writer;
+        mPending.clear();
+        byte[] sync = new byte[8];
+        putInt(sync, 0, mEpoch);
+        putInt(sync, 4, mUnacked.isEmpty() ? mNextSequence : mUnacked.peekFirst().mmSequence);
+        writer.enqueue(FrameType.CHAT_SYNC, sync);
+        retransmit();
+        fillWindow();
+    }
+
+    /**
+     * Stop using the given connection. Unacknowledged messages are kept.
+     */
+    public synchronized void detach(FrameWriter writer) {
+        if (mWriter == writer) {
+            mWriter = null;
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Send a message, or hold it until the window has room.
+     *
+     * @return false if the message is longer than {@link #MAX_MESSAGE_LENGTH},
+     * or both the window and the backlog are full
+     */
+    public synchronized boolean send(byte[] message) {
+        if (message.length > MAX_MESSAGE_LENGTH) {
+            // The peer would drop the link on it, and we would resend it on every reconnect
+            return false;
+        }
+        if (mUnacked.size() < mWindowSize && mBacklog.isEmpty()) {
+            transmit(newEntry(message));
+            return true;
+        }
+        if (mBacklog.size() >= mBacklogCapacity) {
+            return false;
+        }
+        mBacklog.addLast(message);
+        return true;
+    }
+
+    /**
+     * Tell the window a CHAT frame it queued has been written. Returns the
+     * message the first time its frame is written, so it is only reported
+     * once, or null for retransmissions and unknown frames.
+     */
+    public synchronized byte[] onWritten(byte[] frame) {
+        for (Entry entry : mUnacked) {
+            if (entry.mmFrame == frame) {
+                if (entry.mmWritten) {
+                    return null;
+                }
+                entry.mmWritten = true;
+                return entry.mmMessage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Offer the writer the frames that did not fit in its queue earlier.
+     * Called on the writer thread after it has written a batch, so there is
+     * room again.
+     */
+    public synchronized void retryPending() {
+        Entry entry;
+        while (mWriter != null && (entry = mPending.peekFirst()) != null) {
+            if (!mWriter.offer(FrameType.CHAT, entry.mmFrame)) {
+                return;
+            }
+            mPending.pollFirst();
+        }
+    }
+
+    /**
+     * Handle a {@link FrameType#CHAT_ACK} carrying the highest sequence
+     * number the peer received in order.
+     */
+    public synchronized void onAck(int sequence) {
+        if (sequence == mLastAck) {
+            if (!mRetransmitted && !mUnacked.isEmpty()) {
+                // The peer saw a gap after this message, most likely because a
+                // full write queue dropped a frame; go back and resend
+                retransmit();
+            }
+            return;
+        }
+        mLastAck = sequence;
+        mRetransmitted = false;
+        long now = System.nanoTime();
+        Entry entry;
+        while ((entry = mUnacked.peekFirst()) != null && entry.mmSequence - sequence <= 0) {
+            mUnacked.pollFirst();
+            if (mPending.peekFirst() == entry) {
+                mPending.pollFirst();
+            }
+            long latency = now - entry.mmFirstSentNanos;
+            mLastLatencyNanos = latency;
+            mSmoothedLatencyNanos = mDelivered == 0 ? latency : mSmoothedLatencyNanos
+                    + ((latency - mSmoothedLatencyNanos) >> LATENCY_SMOOTHING_SHIFT);
+            mDelivered++;
+            mListener.onDelivered(entry.mmMessage, latency);
+        }
+        fillWindow();
+    }
+
+    /**
+     * Handle a {@link FrameType#CHAT_SYNC} from the peer.
+     */
+    public synchronized void onSync(int epoch, int firstSequence) {
+        if (!mPeerKnown || epoch != mPeerEpoch || mExpectedSequence - firstSequence < 0) {
+            // A new session; otherwise anything below mExpectedSequence is a duplicate
+            mExpectedSequence = firstSequence;
+        }
+        mPeerEpoch = epoch;
+        mPeerKnown = true;
+    }
+
+    /**
+     * Check the sequence number of an incoming CHAT frame.
+     *
+     * @return true if the message is new and should be delivered
+     */
+    public synchronized boolean onReceived(int sequence) {
+        // Always answer, so duplicates and gaps are acknowledged too
+        mAckPending = true;
+        if (sequence != mExpectedSequence) {
+            return false;
+        }
+        mExpectedSequence++;
+        return true;
+    }
+
+    /**
+     * Send one cumulative ack for everything received since the last call.
+     */
+    public synchronized void flushAck() {
+        if (!mAckPending || mWriter == null) {
+            return;
+        }
+        mAckPending = false;
+        byte[] ack = new byte[SEQUENCE_LENGTH];
+        putInt(ack, 0, mExpectedSequence - 1);
+        mWriter.enqueue(FrameType.CHAT_ACK, ack);
+    }
+
+    /**
+     * Return the number of messages sent but not acknowledged.
+     */
+    public synchronized int getInFlight() {
+        return mUnacked.size();
+    }
+
+    /**
+     * Return the number of messages waiting for room in the window.
+     */
+    public synchronized int getBacklog() {
+        return mBacklog.size();
+    }
+
+    /**
+     * Return the delivery latency of the most recently acknowledged message.
+     */
+    public synchronized long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    /**
+     * Return the exponentially smoothed delivery latency.
+     */
+    public synchronized long getSmoothedLatencyNanos() {
+        return mSmoothedLatencyNanos;
+    }
+
+    private Entry newEntry(byte[] message) {
+        Entry entry = new Entry(mNextSequence++, message);
+        mUnacked.addLast(entry);
+        return entry;
+    }
+
+    private void fillWindow() {
+        while (mUnacked.size() < mWindowSize && !mBacklog.isEmpty()) {
+            transmit(newEntry(mBacklog.pollFirst()));
+        }
+    }
+
+    private void retransmit() {
+        mRetransmitted = true;
+        // Everything is offered again from the start, in order
+        mPending.clear();
+        for (Entry entry : mUnacked) {
+            transmit(entry);
+        }
+    }
+
+    private void transmit(Entry entry) {
+        if (!entry.mmSent) {
+            entry.mmSent = true;
+            entry.mmFirstSentNanos = System.nanoTime();
+        }
+        if (mWriter == null) {
+            return;
+        }
+        if (!mPending.isEmpty() || !mWriter.offer(FrameType.CHAT, entry.mmFrame)) {
+            // Keep the order; the writer thread offers it again once it has room
+            mPending.addLast(entry);
+        }
+    }
+
+    static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the devices we have seen in discovery or connected to, so the
+ * device list can offer them straight away instead of waiting for a full
+ * discovery. Kept in SharedPreferences, one entry per device address.
+ */
+public class DeviceCache {
+
+    /**
+     * RSSI value of a device that has not been seen in discovery.
+     */
+    public static final int UNKNOWN_RSSI = Short.MIN_VALUE;
+
+    /**
+     * A device seen or connected to within this time is likely still in range.
+     */
+    public static final long REACHABLE_MILLIS = 15 * 60 * 1000;
+
+    private static final String PREFERENCES_NAME = "recent_devices";
+    private static final int MAX_ENTRIES = 32;
+
+    /**
+     * What we know about one device.
+     */
+    public static class Entry {
+        private final String mAddress;
+        private final String mName;
+        private final long mLastSeenMillis;
+        private final int mRssi;
+        private final long mLastConnectedMillis;
+        private final long mConnectMillis;
+
+        Entry(String address, String name, long lastSeenMillis, int rssi,
+              long lastConnectedMillis, long connectMillis) {
+            mAddress = address;
+            mName = name;
+            mLastSeenMillis = lastSeenMillis;
+            mRssi = rssi;
+            mLastConnectedMillis = lastConnectedMillis;
+            mConnectMillis = connectMillis;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Return when discovery last found the device, or 0 if never.
+         */
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        /**
+         * Return the signal strength when last found, in dBm, or {@link #UNKNOWN_RSSI}.
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * Return when we last connected to the device, or 0 if never.
+         */
+        public long getLastConnectedMillis() {
+            return mLastConnectedMillis;
+        }
+
+        /**
+         * Return how long our last connection to the device took to set up,
+         * in milliseconds, or -1 if unknown.
+         */
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        /**
+         * Return whether the device was around recently enough to be worth
+         * trying without a discovery.
+         */
+        public boolean isLikelyReachable(long now) {
+            return now - Math.max(mLastSeenMillis, mLastConnectedMillis) < REACHABLE_MILLIS;
+        }
+
+        /**
+         * Rank the device for the list: recent activity counts most, decaying
+         * with the log of its age, then a known and fast connection, then a
+         * strong signal.
+         */
+        double score(long now) {
+            long ageMinutes = Math.max(0,
+                    (now - Math.max(mLastSeenMillis, mLastConnectedMillis)) / 60000);
+            double score = -10 * Math.log(1 + ageMinutes) / Math.log(2);
+            if (mConnectMillis >= 0) {
+                score += 10 - Math.min(10, mConnectMillis / 500.0);
+            }
+            if (mRssi != UNKNOWN_RSSI) {
+                score += Math.max(0, Math.min(10, (mRssi + 100) / 5.0));
+            }
+            return score;
+        }
+
+        private String encode() {
+            // The name goes last since it may contain the separator
+            return mLastSeenMillis + "," + mRssi + "," + mLastConnectedMillis + ","
+                    + mConnectMillis + "," + (mName == null ? "" : mName);
+        }
+
+        private static Entry decode(String address, String value) {
+            String[] fields = value.split(",", 5);
+            if (fields.length != 5) {
+                return null;
+            }
+            try {
+                return new Entry(address, fields[4].isEmpty() ? null : fields[4],
+                        Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+
+    public DeviceCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Return the entry for a device, or null if it is not cached.
+     */
+    public Entry get(String address) {
+        String value = mPreferences.getString(address, null);
+        return value == null ? null : Entry.decode(address, value);
+    }
+
+    /**
+     * Return every cached device, best ranked first.
+     */
+    public List<Entry> getRanked() {
+        final long now = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, ?> stored : mPreferences.getAll().entrySet()) {
+            if (stored.getValue() instanceof String) {
+                Entry entry = Entry.decode(stored.getKey(), (String) stored.getValue());
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.score(now), a.score(now));
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Record that discovery found a device.
+     *
+     * @param rssi The signal strength in dBm, or {@link #UNKNOWN_RSSI}
+     */
+    public void onSeen(String address, String name, int rssi) {
+        Entry old = get(address);
+        put(new Entry(address, name != null ? name : old != null ? old.mName : null,
+                System.currentTimeMillis(), rssi,
+                old != null ? old.mLastConnectedMillis : 0,
+                old != null ? old.mConnectMillis : -1));
+    }
+
+    /**
+     * Record a successful connection to a device.
+     *
+     * @param connectMillis How long connecting took, or -1 if unknown, e.g.
+     *                      because the device connected to us
+     */
+    public void onConnected(String address, String name, long connectMillis) {
+        Entry old = get(address);
+        put(new Entry(address, name != null ? name : old != null ? old.mName : null,
+                old != null ? old.mLastSeenMillis : 0,
+                old != null ? old.mRssi : UNKNOWN_RSSI,
+                System.currentTimeMillis(),
+                connectMillis >= 0 ? connectMillis : old != null ? old.mConnectMillis : -1));
+    }
+
+    private void put(Entry entry) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putString(entry.mAddress, entry.encode());
+        if (get(entry.mAddress) == null && mPreferences.getAll().size() >= MAX_ENTRIES) {
+            // Make room by dropping the lowest ranked device
+            List<Entry> ranked = getRanked();
+            editor.remove(ranked.get(ranked.size() - 1).mAddress);
+        }
+        editor.apply();
+    }
+}
@@ -24,6 +24,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
@@ -34,13 +36,17 @@ import android.widget.TextView;
 
 import com.example.android.common.logger.Log;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
- * This Activity appears as a dialog. It lists any paired devices and
- * devices detected in the area after discovery. When a device is chosen
- * by the user, the MAC address of the device is sent back to the parent
- * Activity in the result Intent.
+ * This Activity appears as a dialog. It lists the devices we have seen or
+ * connected to recently, best ranked first, then any other paired devices,
+ * and devices detected in the area after discovery. When none of the known
+ * devices has been around lately a short discovery runs on its own. When a
+ * device is chosen by the user, the MAC address of the device is sent back
+ * to the parent Activity in the result Intent.
  */
 public class DeviceListActivity extends Activity {
 
@@ -59,11 +65,40 @@ public class DeviceListActivity extends Activity {
      */
     private BluetoothAdapter mBtAdapter;
 
+    /**
+     * How long the automatic discovery runs; a full one takes about 12 seconds
+     */
+    private static final long QUICK_SCAN_MILLIS = 5000;
+
     /**
      * Newly discovered devices
      */
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
 
+    /**
+     * Devices we have seen or connected to before
+     */
+    private DeviceCache mDeviceCache;
+
+    /**
+     * Addresses already shown in either list
+     */
+    private final Set<String> mListedAddresses = new HashSet<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Ends the automatic discovery early
+     */
+    private final Runnable mStopQuickScan = new Runnable() {
+        @Override
+        public void run() {
+            if (mBtAdapter != null) {
+                mBtAdapter.cancelDiscovery();
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -79,12 +114,13 @@ public class DeviceListActivity extends Activity {
         Button scanButton = findViewById(R.id.button_scan);
         scanButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
+                mHandler.removeCallbacks(mStopQuickScan);
                 doDiscovery();
                 v.setVisibility(View.GONE);
             }
         });
 
-        // Initialize array adapters. One for already paired devices and
+        // Initialize array adapters. One for recent and paired devices and
         // one for newly discovered devices
         ArrayAdapter<String> pairedDevicesArrayAdapter =
                 new ArrayAdapter<>(this, R.layout.device_name);
@@ -111,19 +147,37 @@ public class DeviceListActivity extends Activity {
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 
-        // Get a set of currently paired devices
-        Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+        // List the devices we know of, best ranked first, without waiting for discovery
+        mDeviceCache = new DeviceCache(this);
+        long now = System.currentTimeMillis();
+        boolean anyReachable = false;
+        for (DeviceCache.Entry entry : mDeviceCache.getRanked()) {
+            mListedAddresses.add(entry.getAddress());
+            pairedDevicesArrayAdapter.add(describe(entry.getName(), entry.getAddress(),
+                    entry.getRssi(), entry.getConnectMillis()));
+            anyReachable |= entry.isLikelyReachable(now);
+        }
 
-        // If there are paired devices, add each one to the ArrayAdapter
-        if (pairedDevices.size() > 0) {
-            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
+        // Then any paired devices not already listed
+        Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+        for (BluetoothDevice device : pairedDevices) {
+            if (mListedAddresses.add(device.getAddress())) {
                 pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
             }
+        }
+
+        if (pairedDevicesArrayAdapter.getCount() > 0) {
+            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
         } else {
             String noDevices = getResources().getText(R.string.none_paired).toString();
             pairedDevicesArrayAdapter.add(noDevices);
         }
+
+        // None of them has been around lately, so look briefly for what is
+        if (!anyReachable && savedInstanceState == null) {
+            doDiscovery();
+            mHandler.postDelayed(mStopQuickScan, QUICK_SCAN_MILLIS);
+        }
     }
 
     @Override
@@ -131,6 +185,7 @@ public class DeviceListActivity extends Activity {
         super.onDestroy();
 
         // Make sure we're not doing discovery anymore
+        mHandler.removeCallbacks(mStopQuickScan);
         if (mBtAdapter != null) {
             mBtAdapter.cancelDiscovery();
         }
@@ -161,6 +216,32 @@ public class DeviceListActivity extends Activity {
         mBtAdapter.startDiscovery();
     }
 
+    /**
+     * Return the list label for a device. The address must come last, as the
+     * click listener takes it from the end of the label.
+     *
+     * @param rssi          Signal strength in dBm, or {@link DeviceCache#UNKNOWN_RSSI}
+     * @param connectMillis Time the last connection took, or -1 if unknown
+     */
+    private String describe(String name, String address, int rssi, long connectMillis) {
+        StringBuilder label = new StringBuilder();
+        label.append(name != null ? name : address);
+        if (rssi != DeviceCache.UNKNOWN_RSSI || connectMillis >= 0) {
+            label.append(" (");
+            if (rssi != DeviceCache.UNKNOWN_RSSI) {
+                label.append(rssi).append(" dBm");
+            }
+            if (connectMillis >= 0) {
+                if (rssi != DeviceCache.UNKNOWN_RSSI) {
+                    label.append(", ");
+                }
+                label.append(connectMillis).append(" ms");
+            }
+            label.append(')');
+        }
+        return label.append('\n').append(address).toString();
+    }
+
     /**
      * The on-click listener for all devices in the ListViews
      */
@@ -197,9 +278,16 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // If it's already paired, skip it, because it's been listed already
-                if (device != null && device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                if (device == null) {
+                    return;
+                }
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+                        (short) DeviceCache.UNKNOWN_RSSI);
+                mDeviceCache.onSeen(device.getAddress(), device.getName(), rssi);
+                // If it's already listed, skip it
+                if (mListedAddresses.add(device.getAddress())) {
+                    mNewDevicesArrayAdapter.add(
+                            describe(device.getName(), device.getAddress(), rssi, -1));
                 }
                 // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
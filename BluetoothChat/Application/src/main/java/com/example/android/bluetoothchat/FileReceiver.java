@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Receives the files a peer sends with {@link FileSender}. Chunks are
+ * verified and written to a partial file named after the transfer id, so an
+ * interrupted transfer picks up where it stopped when the peer offers the
+ * same file again. Completed files are renamed to the name the sender gave.
+ * <p>
+ * This class is driven by the reader thread of one connection.
+ */
+public class FileReceiver {
+
+    /**
+     * Receives transfer updates, on the reader thread.
+     */
+    public interface Listener {
+        void onProgress(TransferProgress progress);
+    }
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    // Don't flood the UI with progress updates
+    private static final long PROGRESS_INTERVAL_NANOS = 250 * 1000 * 1000L;
+
+    private final File mDirectory;
+    private final String mAddress;
+    private final FrameWriter mWriter;
+    private final Listener mListener;
+    private final CRC32 mCrc = new CRC32();
+    private final Map<Integer, Incoming> mIncoming = new HashMap<>();
+
+    /**
+     * State of one file being received.
+     */
+    private static class Incoming {
+        final int mmTransferId;
+        final String mmName;
+        final long mmSize;
+        final File mmPartialFile;
+        final FileChannel mmChannel;
+        final long mmStartNanos;
+        final long mmStartOffset;
+        long mmExpectedOffset;
+        long mmLastNackOffset = -1;
+        long mmLastProgressNanos;
+
+        Incoming(int transferId, String name, long size, File partialFile)
+                throws IOException {
+            mmTransferId = transferId;
+            mmName = name;
+            mmSize = size;
+            mmPartialFile = partialFile;
+            mmChannel = new RandomAccessFile(partialFile, "rw").getChannel();
+            if (mmChannel.size() > size) {
+                mmChannel.truncate(0);
+            }
+            mmExpectedOffset = mmChannel.size();
+            mmStartNanos = System.nanoTime();
+            mmStartOffset = mmExpectedOffset;
+        }
+    }
+
+    /**
+     * @param directory Where received files are stored
+     * @param address   The address of the sending peer
+     * @param writer    Used to send acknowledgements
+     * @param listener  Receives progress updates
+     */
+    public FileReceiver(File directory, String address, FrameWriter writer, Listener listener) {
+        mDirectory = directory;
+        mAddress = address;
+        mWriter = writer;
+        mListener = listener;
+    }
+
+    /**
+     * Handle a {@link FrameType#FILE_OFFER} by answering with the offset we
+     * already hold for that transfer.
+     *
+     * @throws IOException if the offer is malformed, or the file cannot be created
+     */
+    public void onOffer(byte[] buffer, int offset, int length) throws IOException {
+        if (length < FileSender.OFFER_HEADER_LENGTH) {
+            throw new IOException("File offer too short: " + length);
+        }
+        ByteBuffer offer = ByteBuffer.wrap(buffer, offset, length);
+        int transferId = offer.getInt();
+        long size = offer.getLong();
+        if (size < 0) {
+            throw new IOException("File offer with negative size " + size);
+        }
+        String name = new String(buffer, offer.position(), offer.remaining(),
+                Charset.forName("UTF-8"));
+
+        Incoming incoming = mIncoming.get(transferId);
+        if (incoming == null) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            incoming = new Incoming(transferId, name, size,
+                    new File(mDirectory, transferId + PARTIAL_SUFFIX));
+            mIncoming.put(transferId, incoming);
+        }
+        incoming.mmLastNackOffset = -1;
+        reply(FrameType.FILE_ACK, transferId, incoming.mmExpectedOffset);
+        if (incoming.mmExpectedOffset >= incoming.mmSize) {
+            complete(incoming);
+        }
+    }
+
+    /**
+     * Handle a {@link FrameType#FILE_CHUNK}. Chunks that are out of order or
+     * fail the checksum cause a single {@link FrameType#FILE_NACK}; anything
+     * else still in flight is dropped until the resent chunk arrives.
+     *
+     * @throws IOException if the chunk is too short for its header, or cannot be written
+     */
+    public void onChunk(byte[] buffer, int offset, int length) throws IOException {
+        if (length < FileSender.CHUNK_HEADER_LENGTH) {
+            // Without a whole header there is no transfer to NACK
+            throw new IOException("File chunk too short: " + length);
+        }
+        ByteBuffer header = ByteBuffer.wrap(buffer, offset, FileSender.CHUNK_HEADER_LENGTH);
+        int transferId = header.getInt();
+        long chunkOffset = header.getLong();
+        int crc = header.getInt();
+        int dataOffset = offset + FileSender.CHUNK_HEADER_LENGTH;
+        int dataLength = length - FileSender.CHUNK_HEADER_LENGTH;
+
+        Incoming incoming = mIncoming.get(transferId);
+        if (incoming == null) {
+            return;
+        }
+        mCrc.reset();
+        mCrc.update(buffer, dataOffset, dataLength);
+        if (chunkOffset != incoming.mmExpectedOffset || (int) mCrc.getValue() != crc
+                || chunkOffset + dataLength > incoming.mmSize) {
+            if (incoming.mmLastNackOffset != incoming.mmExpectedOffset) {
+                incoming.mmLastNackOffset = incoming.mmExpectedOffset;
+                reply(FrameType.FILE_NACK, transferId, incoming.mmExpectedOffset);
+            }
+            return;
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(buffer, dataOffset, dataLength);
+        while (data.hasRemaining()) {
+            incoming.mmChannel.write(data, chunkOffset + data.position() - dataOffset);
+        }
+        incoming.mmExpectedOffset += dataLength;
+        incoming.mmLastNackOffset = -1;
+        reply(FrameType.FILE_ACK, transferId, incoming.mmExpectedOffset);
+
+        if (incoming.mmExpectedOffset >= incoming.mmSize) {
+            complete(incoming);
+        } else {
+            long now = System.nanoTime();
+            if (now - incoming.mmLastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+                incoming.mmLastProgressNanos = now;
+                mListener.onProgress(progress(incoming, now));
+            }
+        }
+    }
+
+    /**
+     * Close any open partial files; they stay on disk for a later resume.
+     */
+    public void close() {
+        for (Incoming incoming : mIncoming.values()) {
+            try {
+                incoming.mmChannel.close();
+            } catch (IOException e) {
+                // The partial file will be checked again on resume
+            }
+        }
+        mIncoming.clear();
+    }
+
+    private void complete(Incoming incoming) throws IOException {
+        mIncoming.remove(incoming.mmTransferId);
+        incoming.mmChannel.force(false);
+        incoming.mmChannel.close();
+        // Only keep the last path segment of the name the sender gave
+        File target = new File(mDirectory, new File(incoming.mmName).getName());
+        if ((target.exists() && !target.delete()) || !incoming.mmPartialFile.renameTo(target)) {
+            throw new IOException("Cannot move " + incoming.mmPartialFile + " to " + target);
+        }
+        mListener.onProgress(progress(incoming, System.nanoTime()));
+    }
+
+    private TransferProgress progress(Incoming incoming, long now) {
+        long elapsed = now - incoming.mmStartNanos;
+        long bytesPerSecond = elapsed > 0
+                ? (incoming.mmExpectedOffset - incoming.mmStartOffset) * 1000000000L / elapsed
+                : 0;
+        return new TransferProgress(true, mAddress, incoming.mmTransferId, incoming.mmName,
+                incoming.mmExpectedOffset, incoming.mmSize, bytesPerSecond);
+    }
+
+    private void reply(int type, int transferId, long offset) {
+        ByteBuffer reply = ByteBuffer.allocate(4 + 8);
+        reply.putInt(transferId).putLong(offset);
+        mWriter.enqueue(type, reply.array());
+    }
+}
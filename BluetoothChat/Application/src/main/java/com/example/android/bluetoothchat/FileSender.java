@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * This thread streams one file to a peer in {@link FrameType#FILE_CHUNK}
+ * frames, reading straight from a {@link FileChannel} so the file is never
+ * held in memory. At most {@link #WINDOW} chunks are unacknowledged at a time,
+ * which bounds memory use and leaves room in the write queue for chat messages.
+ * <p>
+ * The transfer outlives the connection it started on. When the peer
+ * reconnects, {@link #attach(FrameWriter)} offers the file again and the
+ * receiver answers with the offset it already holds, so sending resumes from
+ * there.
+ */
+public class FileSender extends Thread {
+
+    /**
+     * Receives transfer updates, on the sender or the reader thread.
+     */
+    public interface Listener {
+        void onProgress(FileSender sender, TransferProgress progress);
+
+        void onTransferFailed(FileSender sender, IOException e);
+    }
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final int WINDOW = 4;
+
+    // transfer id, offset and CRC32 in front of the data of every chunk
+    static final int CHUNK_HEADER_LENGTH = 4 + 8 + 4;
+    // transfer id and size in front of the name in every offer
+    static final int OFFER_HEADER_LENGTH = 4 + 8;
+
+    // Don't flood the UI with progress updates
+    private static final long PROGRESS_INTERVAL_NANOS = 250 * 1000 * 1000L;
+
+    private static final Random sRandom = new Random();
+
+    private final File mFile;
+    private final String mAddress;
+    private final Listener mListener;
+    private final int mTransferId;
+    private final long mSize;
+    private final FileChannel mChannel;
+    private final CRC32 mCrc = new CRC32();
+
+    // Chunk buffers, reused once the chunk that last used them is acknowledged
+    private byte[][] mPool = new byte[WINDOW][];
+    private long mChunkSequence;
+
+    // Guarded by this
+    private FrameWriter mWriter;
+    private boolean mAccepted;
+    private boolean mCancelled;
+    private long mNextOffset;
+    private long mAckedOffset;
+    private long mSessionStartNanos;
+    private long mSessionStartOffset;
+    private long mLastProgressNanos;
+
+    /**
+     * @param file     The file to send
+     * @param address  The address of the receiving peer
+     * @param listener Receives progress updates
+     * @throws IOException If the file cannot be opened
+     */
+    public FileSender(File file, String address, Listener listener) throws IOException {
+        mFile = file;
+        mAddress = address;
+        mListener = listener;
+        mTransferId = sRandom.nextInt() & Integer.MAX_VALUE;
+        mChannel = new FileInputStream(file).getChannel();
+        mSize = mChannel.size();
+        setName("FileSender" + mTransferId);
+    }
+
+    public int getTransferId() {
+        return mTransferId;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Offer the file on a new connection to the peer.
+     */
+    public synchronized void attach(FrameWriter writer) {
+        mWriter = writer;
+        mAccepted = false;
+        // The previous connection's writer may still be reading the old buffers
+        mPool = new byte[WINDOW][];
+        byte[] name = mFile.getName().getBytes(Charset.forName("UTF-8"));
+        ByteBuffer offer = ByteBuffer.allocate(OFFER_HEADER_LENGTH + name.length);
+        offer.putInt(mTransferId).putLong(mSize).put(name);
+        writer.enqueue(FrameType.FILE_OFFER, offer.array());
+        notifyAll();
+    }
+
+    /**
+     * Handle a {@link FrameType#FILE_ACK}. The first one after an offer tells
+     * us where to start; later ones acknowledge chunks.
+     */
+    public synchronized void onAck(long offset) {
+        long now = System.nanoTime();
+        if (!mAccepted) {
+            mAccepted = true;
+            mNextOffset = offset;
+            mAckedOffset = offset;
+            mSessionStartNanos = now;
+            mSessionStartOffset = offset;
+        } else if (offset > mAckedOffset) {
+            mAckedOffset = offset;
+        }
+        if (mAckedOffset >= mSize || now - mLastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+            mLastProgressNanos = now;
+            mListener.onProgress(this, progress(now));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Handle a {@link FrameType#FILE_NACK} by going back to the given offset.
+     */
+    public synchronized void onNack(long offset) {
+        mNextOffset = offset;
+        mAckedOffset = offset;
+        // Chunks still in the write queue may reference the old buffers
+        mPool = new byte[WINDOW][];
+        notifyAll();
+    }
+
+    /**
+     * Stop sending. The receiver keeps its partial file.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    private TransferProgress progress(long now) {
+        long elapsed = now - mSessionStartNanos;
+        long bytesPerSecond = elapsed > 0
+                ? (mAckedOffset - mSessionStartOffset) * 1000000000L / elapsed : 0;
+        return new TransferProgress(false, mAddress, mTransferId, mFile.getName(),
+                mAckedOffset, mSize, bytesPerSecond);
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                FrameWriter writer;
+                long offset;
+                byte[] chunk;
+                synchronized (this) {
+                    // Wait for a connection that accepted the offer and room in the window
+                    while (!mCancelled && mAckedOffset < mSize && (mWriter == null
+                            || !mAccepted || mNextOffset >= mSize
+                            || mNextOffset - mAckedOffset >= WINDOW * CHUNK_SIZE)) {
+                        wait();
+                    }
+                    if (mCancelled || mAckedOffset >= mSize) {
+                        break;
+                    }
+                    writer = mWriter;
+                    offset = mNextOffset;
+                    int length = (int) Math.min(CHUNK_SIZE, mSize - offset);
+                    if (length == CHUNK_SIZE) {
+                        int slot = (int) (mChunkSequence++ % WINDOW);
+                        if (mPool[slot] == null) {
+                            mPool[slot] = new byte[CHUNK_HEADER_LENGTH + CHUNK_SIZE];
+                        }
+                        chunk = mPool[slot];
+                    } else {
+                        chunk = new byte[CHUNK_HEADER_LENGTH + length];
+                    }
+                    mNextOffset += length;
+                }
+
+                // Read and queue outside the lock so acks are never held up
+                fillChunk(chunk, offset);
+                if (!writer.enqueue(FrameType.FILE_CHUNK, chunk)) {
+                    // The connection is gone; wait for the peer to come back
+                    synchronized (this) {
+                        if (mWriter == writer) {
+                            mWriter = null;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Treat as cancelled
+        } catch (IOException e) {
+            mListener.onTransferFailed(this, e);
+        } finally {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Nothing left to do with the file
+            }
+        }
+    }
+
+    private void fillChunk(byte[] chunk, long offset) throws IOException {
+        int length = chunk.length - CHUNK_HEADER_LENGTH;
+        ByteBuffer data = ByteBuffer.wrap(chunk, CHUNK_HEADER_LENGTH, length);
+        while (data.hasRemaining()) {
+            if (mChannel.read(data, offset + data.position() - CHUNK_HEADER_LENGTH) < 0) {
+                throw new IOException(mFile + " shrank while being sent");
+            }
+        }
+        mCrc.reset();
+        mCrc.update(chunk, CHUNK_HEADER_LENGTH, length);
+        ByteBuffer header = ByteBuffer.wrap(chunk, 0, CHUNK_HEADER_LENGTH);
+        header.putInt(mTransferId).putLong(offset).putInt((int) mCrc.getValue());
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a byte stream into length-prefixed frames. Each frame on the wire is
+ * an unsigned varint (7 bits per byte, least significant group first) holding
+ * the payload length, one {@link FrameType} byte, then the payload itself.
+ * <p>
+ * Incoming bytes are read straight into a fixed ring buffer, so a frame may
+ * arrive over several reads and several frames may arrive in one read. Once a
+ * frame is complete it is copied into a reusable scratch buffer and handed to
+ * the {@link FrameListener} exactly once. Decoding does not allocate.
+ * <p>
+ * This class has no Android dependencies and is not thread safe; it is meant
+ * to be owned by a single reader thread.
+ */
+public class FrameCodec {
+
+    /**
+     * Largest payload accepted by default.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * Largest number of bytes a header can take: a varint for an int length plus the type.
+     */
+    public static final int MAX_HEADER_LENGTH = 6;
+
+    /**
+     * Receives frames decoded by {@link #readFrom(InputStream, FrameListener)}.
+     */
+    public interface FrameListener {
+        /**
+         * Called once for every complete frame. The buffer is reused by the
+         * codec, so implementations must copy any bytes they want to keep.
+         *
+         * @param type   The {@link FrameType} of the frame
+         * @param buffer Buffer holding the payload
+         * @param offset Offset of the payload in the buffer
+         * @param length Length of the payload
+         */
+        void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final byte[] mRing;
+    private final int mMask;
+    private final byte[] mFrame;
+    private final int mMaxFrameLength;
+
+    // Absolute stream positions; the ring index is position & mMask
+    private long mReadPos;
+    private long mWritePos;
+
+    public FrameCodec() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param maxFrameLength The largest payload this codec will accept
+     */
+    public FrameCodec(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive");
+        }
+        int capacity = Integer.highestOneBit(maxFrameLength + MAX_HEADER_LENGTH - 1) << 1;
+        mRing = new byte[capacity];
+        mMask = capacity - 1;
+        mFrame = new byte[maxFrameLength];
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Return the largest payload this codec will accept.
+     */
+    public int getMaxFrameLength() {
+        return mMaxFrameLength;
+    }
+
+    /**
+     * Return the number of bytes received but not yet delivered as a frame.
+     */
+    public int getBufferedLength() {
+        return (int) (mWritePos - mReadPos);
+    }
+
+    /**
+     * Drop any partially received frame, e.g. after the link was re-established.
+     */
+    public void reset() {
+        mReadPos = 0;
+        mWritePos = 0;
+    }
+
+    /**
+     * Perform a single read from the stream and deliver every frame that
+     * became complete as a result.
+     *
+     * @param in       The stream to read from
+     * @param listener Receives the decoded frames
+     * @return The number of bytes read, or -1 if the stream has ended
+     * @throws IOException If the read fails or the stream carries a frame
+     *                     longer than {@link #getMaxFrameLength()}
+     */
+    public int readFrom(InputStream in, FrameListener listener) throws IOException {
+        int writeIndex = (int) (mWritePos & mMask);
+        int free = mRing.length - getBufferedLength();
+        // Read into the contiguous free region only; the next read picks up the rest
+        int count = Math.min(free, mRing.length - writeIndex);
+        int bytes = in.read(mRing, writeIndex, count);
+        if (bytes > 0) {
+            mWritePos += bytes;
+            drain(listener);
+        }
+        return bytes;
+    }
+
+    /**
+     * Feed bytes that were obtained elsewhere into the decoder and deliver every
+     * frame that became complete as a result.
+     *
+     * @throws IOException If the bytes carry a frame longer than {@link #getMaxFrameLength()}
+     */
+    public void feed(byte[] buffer, int offset, int length, FrameListener listener)
+            throws IOException {
+        while (length > 0) {
+            int writeIndex = (int) (mWritePos & mMask);
+            int free = mRing.length - getBufferedLength();
+            int count = Math.min(length, Math.min(free, mRing.length - writeIndex));
+            System.arraycopy(buffer, offset, mRing, writeIndex, count);
+            mWritePos += count;
+            offset += count;
+            length -= count;
+            drain(listener);
+        }
+    }
+
+    private void drain(FrameListener listener) throws IOException {
+        while (true) {
+            long available = mWritePos - mReadPos;
+            // Parse the varint header, which may itself wrap around the ring
+            int length = 0;
+            int headerLength = 0;
+            boolean complete = false;
+            while (headerLength < available && headerLength < MAX_HEADER_LENGTH - 1) {
+                int b = mRing[(int) ((mReadPos + headerLength) & mMask)] & 0xff;
+                length |= (b & 0x7f) << (7 * headerLength);
+                headerLength++;
+                if ((b & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete) {
+                if (headerLength == MAX_HEADER_LENGTH - 1) {
+                    throw new IOException("Malformed frame header");
+                }
+                return;
+            }
+            if (length < 0 || length > mMaxFrameLength) {
+                throw new IOException("Frame of " + length + " bytes exceeds limit of "
+                        + mMaxFrameLength);
+            }
+            // The type byte follows the length
+            headerLength++;
+            if (available < headerLength + length) {
+                return;
+            }
+            int type = mRing[(int) ((mReadPos + headerLength - 1) & mMask)] & 0xff;
+            copyOut(mReadPos + headerLength, length);
+            mReadPos += headerLength + length;
+            listener.onFrame(type, mFrame, 0, length);
+        }
+    }
+
+    private void copyOut(long position, int length) {
+        int start = (int) (position & mMask);
+        int first = Math.min(length, mRing.length - start);
+        System.arraycopy(mRing, start, mFrame, 0, first);
+        if (first < length) {
+            System.arraycopy(mRing, 0, mFrame, first, length - first);
+        }
+    }
+
+    /**
+     * Return the number of header bytes needed to frame a payload of the given length.
+     */
+    public static int headerLength(int length) {
+        int n = 2;
+        while ((length & ~0x7f) != 0) {
+            length >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Write the header for a payload of the given type and length.
+     *
+     * @param type   The {@link FrameType} of the payload
+     * @param length The payload length
+     * @param dst    Destination buffer
+     * @param offset Offset in the destination buffer
+     * @return The number of header bytes written
+     */
+    public static int writeHeader(int type, int length, byte[] dst, int offset) {
+        int start = offset;
+        while ((length & ~0x7f) != 0) {
+            dst[offset++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        dst[offset++] = (byte) length;
+        dst[offset++] = (byte) type;
+        return offset - start;
+    }
+
+    /**
+     * Return a new array holding the given payload framed for the wire.
+     */
+    public static byte[] encode(int type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[headerLength(length) + length];
+        int header = writeHeader(type, length, frame, 0);
+        System.arraycopy(payload, offset, frame, header, length);
+        return frame;
+    }
+
+    /**
+     * Return a new array holding the given payload framed for the wire.
+     */
+    public static byte[] encode(int type, byte[] payload) {
+        return encode(type, payload, 0, payload.length);
+    }
+}
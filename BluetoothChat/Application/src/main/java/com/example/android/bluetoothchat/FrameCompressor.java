@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the chat frames of one connection into {@link FrameType#DEFLATED}
+ * frames. All frames share one deflate stream, flushed after each frame, so
+ * a message can refer back to earlier ones; the stream starts from a preset
+ * dictionary of common chat text so even the first message compresses.
+ * <p>
+ * Because the stream carries history, frames must be compressed in the
+ * order they go on the wire; {@link FrameWriter} does it as it writes.
+ * Small payloads are sent as they are. A payload that does not shrink is
+ * also sent as it is, and the next compressed frame then starts a new stream,
+ * since the peer never saw the data the old one had taken in.
+ * <p>
+ * Used only on the writer thread; the counters may be read from any thread.
+ */
+public class FrameCompressor {
+
+    /**
+     * Capability bit announced in {@link FrameType#HELLO} by peers that can
+     * inflate DEFLATED frames made with {@link #DICTIONARY}.
+     */
+    public static final int CAPABILITY = 1;
+
+    /**
+     * Set in the first byte of a DEFLATED frame that starts a new stream.
+     */
+    static final int FLAG_RESET = 1;
+
+    /**
+     * DEFLATED frames carry the flags and the original type before the data.
+     */
+    static final int HEADER_LENGTH = 2;
+
+    /**
+     * Payloads shorter than this gain too little to be worth compressing.
+     */
+    public static final int MIN_LENGTH = 32;
+
+    /**
+     * The preset dictionary both peers start from. Changing it breaks
+     * compatibility, so a new one needs a new {@link #CAPABILITY} bit.
+     */
+    static final byte[] DICTIONARY = ("ok thanks yes no sorry what when where how why "
+            + "are you there can we meet later today tomorrow tonight morning evening "
+            + "I think that this is the it and for with have will on at be not just "
+            + "please see you soon good great sounds let me know call me back "
+            + "hello hi hey ").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] mBuffer = new byte[256];
+    private int mLength;
+    private boolean mReset = true;
+
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+
+    /**
+     * Try to compress a payload.
+     *
+     * @param type    The frame type of the payload
+     * @param payload The payload
+     * @return true if the DEFLATED frame payload is now in {@link #getBuffer()};
+     * false if the payload should be sent as it is
+     */
+    public boolean compress(int type, byte[] payload) {
+        if (type != FrameType.CHAT) {
+            return false;
+        }
+        mBytesIn.addAndGet(payload.length);
+        if (payload.length < MIN_LENGTH) {
+            mBytesOut.addAndGet(payload.length);
+            return false;
+        }
+
+        boolean reset = mReset;
+        if (reset) {
+            mDeflater.reset();
+            mDeflater.setDictionary(DICTIONARY);
+            mReset = false;
+        }
+        mBuffer[0] = (byte) (reset ? FLAG_RESET : 0);
+        mBuffer[1] = (byte) type;
+        mLength = HEADER_LENGTH;
+        mDeflater.setInput(payload);
+        while (true) {
+            int count = mDeflater.deflate(mBuffer, mLength, mBuffer.length - mLength,
+                    Deflater.SYNC_FLUSH);
+            mLength += count;
+            if (mLength < mBuffer.length) {
+                // Room was left over, so everything has been flushed
+                break;
+            }
+            byte[] buffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+
+        if (mLength >= payload.length) {
+            // Incompressible; our stream now holds data the peer will never see
+            mReset = true;
+            mBytesOut.addAndGet(payload.length);
+            return false;
+        }
+        mBytesOut.addAndGet(mLength);
+        return true;
+    }
+
+    /**
+     * Return the buffer holding the last DEFLATED payload; valid until the
+     * next call to {@link #compress(int, byte[])}.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Return the length of the last DEFLATED payload.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Return the bytes of chat payloads offered so far.
+     */
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    /**
+     * Return the bytes those payloads took on the wire.
+     */
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    /**
+     * Release the native deflater.
+     */
+    public void close() {
+        mDeflater.end();
+    }
+}
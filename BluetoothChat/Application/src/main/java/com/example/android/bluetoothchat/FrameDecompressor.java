@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the {@link FrameType#DEFLATED} frames made by a peer's
+ * {@link FrameCompressor}. Frames must be given in the order they were read.
+ * Used only on the reader thread.
+ */
+public class FrameDecompressor {
+
+    private final Inflater mInflater = new Inflater();
+    private final int mMaxFrameLength;
+    private byte[] mBuffer = new byte[1024];
+
+    /**
+     * @param maxFrameLength The largest inflated payload to accept
+     */
+    public FrameDecompressor(int maxFrameLength) {
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Inflate a DEFLATED frame and hand the original frame to the listener.
+     *
+     * @throws IOException If the data is corrupt or inflates past the maximum frame length
+     */
+    public void inflate(byte[] buffer, int offset, int length, FrameCodec.FrameListener listener)
+            throws IOException {
+        if (length < FrameCompressor.HEADER_LENGTH) {
+            throw new IOException("Truncated compressed frame");
+        }
+        if ((buffer[offset] & FrameCompressor.FLAG_RESET) != 0) {
+            mInflater.reset();
+        }
+        int type = buffer[offset + 1] & 0xff;
+        mInflater.setInput(buffer, offset + FrameCompressor.HEADER_LENGTH,
+                length - FrameCompressor.HEADER_LENGTH);
+
+        int inflated = 0;
+        try {
+            while (true) {
+                if (inflated == mBuffer.length) {
+                    if (mBuffer.length >= mMaxFrameLength) {
+                        throw new IOException("Compressed frame inflates past "
+                                + mMaxFrameLength + " bytes");
+                    }
+                    byte[] grown = new byte[Math.min(mBuffer.length * 2, mMaxFrameLength)];
+                    System.arraycopy(mBuffer, 0, grown, 0, inflated);
+                    mBuffer = grown;
+                }
+                int count = mInflater.inflate(mBuffer, inflated, mBuffer.length - inflated);
+                inflated += count;
+                if (count == 0) {
+                    if (mInflater.needsDictionary()) {
+                        mInflater.setDictionary(FrameCompressor.DICTIONARY);
+                    } else if (mInflater.needsInput() || mInflater.finished()) {
+                        break;
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        listener.onFrame(type, mBuffer, 0, inflated);
+    }
+
+    /**
+     * Release the native inflater.
+     */
+    public void close() {
+        mInflater.end();
+    }
+}
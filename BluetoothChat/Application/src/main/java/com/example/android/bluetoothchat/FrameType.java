@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Defines the type byte that follows the length of every frame written by
+ * {@link FrameCodec}. Frames of different types share one connection, so a
+ * file transfer does not hold up chat messages.
+ */
+public interface FrameType {
+
+    // Chat messages, see DeliveryWindow
+    int CHAT = 0;        // sequence number, message text
+    int CHAT_ACK = 5;    // highest sequence number received in order
+    int CHAT_SYNC = 6;   // sender epoch, oldest unacknowledged sequence number
+
+    // File transfer, see FileSender and FileReceiver
+    int FILE_OFFER = 1;  // transfer id, file size, file name
+    int FILE_CHUNK = 2;  // transfer id, offset, CRC32, data
+    int FILE_ACK = 3;    // transfer id, next offset the receiver expects
+    int FILE_NACK = 4;   // transfer id, offset to resend from
+
+    // Link measurements, see BluetoothChatService#ping(String)
+    int PING = 7;        // sender timestamp
+    int PONG = 8;        // the timestamp of the ping, echoed back
+
+    // Connection setup, see FrameCompressor
+    int HELLO = 9;       // capability bits; the first frame on every connection
+    int DEFLATED = 10;   // flags, original type, deflate stream data
+
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This thread owns the outgoing side of a connection. Callers enqueue
+ * typed payloads from any thread and return immediately; the writer frames them
+ * with {@link FrameCodec} and copies as many pending frames as fit into one
+ * buffer, so a burst of small messages costs a single stream write.
+ * <p>
+ * Data frames, {@link FrameType#CHAT} and {@link FrameType#FILE_CHUNK}, go
+ * through a bounded queue. What happens when it is full is decided by the
+ * {@link Policy} given at construction. Every other type is a small control
+ * frame, often queued by the reader thread in reply to the peer; those go
+ * through a separate unbounded queue that is written first and never blocks
+ * or drops, so two peers with full queues cannot stop each other's readers.
+ */
+public class FrameWriter extends Thread {
+
+    /**
+     * What {@link #enqueue(int, byte[])} does with a data frame when the queue is full.
+     */
+    public enum Policy {
+        /**
+         * Wait until the writer has made room.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest pending payload to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Reject the new payload.
+         */
+        FAIL_FAST
+    }
+
+    /**
+     * Receives the outcome of queued writes, on the writer thread.
+     */
+    public interface Listener {
+        /**
+         * Called once a payload has been handed to the stream.
+         */
+        void onFrameWritten(int type, byte[] payload);
+
+        /**
+         * Called when a payload was discarded under {@link Policy#DROP_OLDEST}.
+         */
+        void onFrameDropped(int type, byte[] payload);
+
+        /**
+         * Called when the stream fails. The writer stops after this.
+         */
+        void onWriteFailed(IOException e);
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final int INITIAL_CONTROL_CAPACITY = 16;
+    public static final int DEFAULT_COALESCE_BUFFER_SIZE = 8 * 1024;
+
+    private final OutputStream mOutStream;
+    private final Listener mListener;
+    private final Policy mPolicy;
+    private final int mCapacity;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    // Ring of pending frames; mTypes[i] belongs to mPayloads[i]
+    private final int[] mTypes;
+    private final byte[][] mPayloads;
+    private int mHead;
+    private int mCount;
+    // Ring of pending control frames; grows instead of filling up
+    private int[] mControlTypes = new int[INITIAL_CONTROL_CAPACITY];
+    private byte[][] mControlPayloads = new byte[INITIAL_CONTROL_CAPACITY][];
+    private int mControlHead;
+    private int mControlCount;
+    private boolean mClosed;
+
+    // Reused for every write; payloads that do not fit are written on their own
+    private final byte[] mCoalesceBuffer;
+    private final byte[] mHeader = new byte[FrameCodec.MAX_HEADER_LENGTH];
+    private int[] mBatchTypes;
+    private byte[][] mBatch;
+    private int mBatchSize;
+    // Set once the peer has agreed to compression; used on the writer thread only
+    private volatile FrameCompressor mCompressor;
+
+    private final AtomicLong mBytesInFlight = new AtomicLong();
+    private final AtomicLong mFramesWritten = new AtomicLong();
+    private final AtomicLong mWriteCalls = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    // Time spent in each stream write, in microseconds
+    private final Histogram mWriteStalls = new Histogram();
+
+    public FrameWriter(OutputStream out, Listener listener) {
+        this(out, listener, Policy.BLOCK, DEFAULT_CAPACITY, DEFAULT_COALESCE_BUFFER_SIZE);
+    }
+
+    /**
+     * @param out                The stream to write framed payloads to
+     * @param listener           Receives write results
+     * @param policy             What to do when the queue is full
+     * @param capacity           Maximum number of pending payloads
+     * @param coalesceBufferSize Size of the buffer used to batch small frames
+     */
+    public FrameWriter(OutputStream out, Listener listener, Policy policy, int capacity,
+                       int coalesceBufferSize) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mOutStream = out;
+        mListener = listener;
+        mPolicy = policy;
+        mCapacity = capacity;
+        mTypes = new int[capacity];
+        mPayloads = new byte[capacity][];
+        mBatchTypes = new int[capacity];
+        mBatch = new byte[capacity][];
+        mCoalesceBuffer = new byte[coalesceBufferSize];
+        setName("FrameWriter");
+    }
+
+    /**
+     * Return whether frames of the given type go through the bounded queue.
+     */
+    static boolean isData(int type) {
+        return type == FrameType.CHAT || type == FrameType.FILE_CHUNK;
+    }
+
+    /**
+     * Queue a payload for writing. Control frames are written ahead of any
+     * data frames still queued.
+     *
+     * @param type    The {@link FrameType} of the payload
+     * @param payload The bytes to send as one frame; must not be modified afterwards
+     * @return false if the payload was rejected, either because the writer is
+     * closed or because the queue is full under {@link Policy#FAIL_FAST}
+     */
+    public boolean enqueue(int type, byte[] payload) {
+        return enqueue(type, payload, mPolicy);
+    }
+
+    /**
+     * Queue a payload for writing without ever waiting or dropping another
+     * payload, whatever the policy. Callers that hold a lock the reader or UI
+     * thread needs use this, and try again once a frame has been written.
+     *
+     * @return false if the writer is closed or the queue is full
+     */
+    public boolean offer(int type, byte[] payload) {
+        return enqueue(type, payload, Policy.FAIL_FAST);
+    }
+
+    private boolean enqueue(int type, byte[] payload, Policy policy) {
+        int droppedType = 0;
+        byte[] dropped = null;
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+            if (!isData(type)) {
+                enqueueControl(type, payload);
+                return true;
+            }
+            if (mCount >= mCapacity) {
+                switch (policy) {
+                    case BLOCK:
+                        while (mCount >= mCapacity && !mClosed) {
+                            mNotFull.awaitUninterruptibly();
+                        }
+                        if (mClosed) {
+                            return false;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        droppedType = mTypes[mHead];
+                        dropped = mPayloads[mHead];
+                        mPayloads[mHead] = null;
+                        mHead = (mHead + 1) % mCapacity;
+                        mCount--;
+                        mBytesInFlight.addAndGet(-frameLength(dropped));
+                        mFramesDropped.incrementAndGet();
+                        break;
+                    case FAIL_FAST:
+                        return false;
+                }
+            }
+            int tail = (mHead + mCount) % mCapacity;
+            mTypes[tail] = type;
+            mPayloads[tail] = payload;
+            mCount++;
+            mBytesInFlight.addAndGet(frameLength(payload));
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+        if (dropped != null) {
+            mListener.onFrameDropped(droppedType, dropped);
+        }
+        return true;
+    }
+
+    /**
+     * Add a control frame to its queue, growing it if it is full. Called with the lock held.
+     */
+    private void enqueueControl(int type, byte[] payload) {
+        int capacity = mControlPayloads.length;
+        if (mControlCount == capacity) {
+            int[] types = new int[capacity * 2];
+            byte[][] payloads = new byte[capacity * 2][];
+            for (int i = 0; i < mControlCount; i++) {
+                int index = (mControlHead + i) % capacity;
+                types[i] = mControlTypes[index];
+                payloads[i] = mControlPayloads[index];
+            }
+            mControlTypes = types;
+            mControlPayloads = payloads;
+            mControlHead = 0;
+            capacity *= 2;
+        }
+        int tail = (mControlHead + mControlCount) % capacity;
+        mControlTypes[tail] = type;
+        mControlPayloads[tail] = payload;
+        mControlCount++;
+        mBytesInFlight.addAndGet(frameLength(payload));
+        mNotEmpty.signal();
+    }
+
+    /**
+     * Stop the writer. Payloads still queued are discarded and blocked
+     * callers of {@link #enqueue(int, byte[])} are released.
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            while (mCount > 0) {
+                mBytesInFlight.addAndGet(-frameLength(mPayloads[mHead]));
+                mPayloads[mHead] = null;
+                mHead = (mHead + 1) % mCapacity;
+                mCount--;
+            }
+            while (mControlCount > 0) {
+                mBytesInFlight.addAndGet(-frameLength(mControlPayloads[mControlHead]));
+                mControlPayloads[mControlHead] = null;
+                mControlHead = (mControlHead + 1) % mControlPayloads.length;
+                mControlCount--;
+            }
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Compress the frames written from now on. The writer closes the
+     * compressor when it stops.
+     */
+    public void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * Return the compressor in use, or null if frames are not compressed.
+     */
+    public FrameCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    /**
+     * Return the number of payloads waiting to be written, control frames included.
+     */
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mCount + mControlCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of framed bytes queued or currently being written.
+     */
+    public long getBytesInFlight() {
+        return mBytesInFlight.get();
+    }
+
+    /**
+     * Return the number of frames handed to the stream so far.
+     */
+    public long getFramesWritten() {
+        return mFramesWritten.get();
+    }
+
+    /**
+     * Return the number of stream writes issued so far. Comparing this to
+     * {@link #getFramesWritten()} shows how well frames are being coalesced.
+     */
+    public long getWriteCalls() {
+        return mWriteCalls.get();
+    }
+
+    /**
+     * Return the number of payloads discarded under {@link Policy#DROP_OLDEST}.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    /**
+     * Return the number of bytes handed to the stream so far, after any compression.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /**
+     * Return how long each stream write and flush blocked, in microseconds.
+     * Long stalls mean the link is not keeping up.
+     */
+    public Histogram getWriteStalls() {
+        return mWriteStalls;
+    }
+
+    public void run() {
+        try {
+            while (takeBatch()) {
+                writeBatch();
+            }
+        } catch (IOException e) {
+            close();
+            mListener.onWriteFailed(e);
+        } finally {
+            FrameCompressor compressor = mCompressor;
+            if (compressor != null) {
+                compressor.close();
+            }
+        }
+    }
+
+    /**
+     * Wait for at least one payload, then move every pending payload into the
+     * batch, control frames first.
+     */
+    private boolean takeBatch() {
+        mLock.lock();
+        try {
+            while (mCount == 0 && mControlCount == 0 && !mClosed) {
+                mNotEmpty.awaitUninterruptibly();
+            }
+            if (mClosed) {
+                return false;
+            }
+            if (mCount + mControlCount > mBatch.length) {
+                int size = Math.max(mBatch.length * 2, mCount + mControlCount);
+                mBatchTypes = new int[size];
+                mBatch = new byte[size][];
+            }
+            while (mControlCount > 0) {
+                mBatchTypes[mBatchSize] = mControlTypes[mControlHead];
+                mBatch[mBatchSize++] = mControlPayloads[mControlHead];
+                mControlPayloads[mControlHead] = null;
+                mControlHead = (mControlHead + 1) % mControlPayloads.length;
+                mControlCount--;
+            }
+            while (mCount > 0) {
+                mBatchTypes[mBatchSize] = mTypes[mHead];
+                mBatch[mBatchSize++] = mPayloads[mHead];
+                mPayloads[mHead] = null;
+                mHead = (mHead + 1) % mCapacity;
+                mCount--;
+            }
+            mNotFull.signalAll();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        FrameCompressor compressor = mCompressor;
+        int used = 0;
+        int first = 0;
+        for (int i = 0; i < mBatchSize; i++) {
+            // What goes on the wire; the batch keeps the original for the listener
+            int type = mBatchTypes[i];
+            byte[] data = mBatch[i];
+            int length = data.length;
+            if (compressor != null && compressor.compress(type, data)) {
+                type = FrameType.DEFLATED;
+                data = compressor.getBuffer();
+                length = compressor.getLength();
+            }
+            int frameLength = FrameCodec.headerLength(length) + length;
+            if (used > 0 && used + frameLength > mCoalesceBuffer.length) {
+                // The buffer is full; send what is batched so far
+                flush(mCoalesceBuffer, used);
+                written(first, i);
+                used = 0;
+                first = i;
+            }
+            if (frameLength > mCoalesceBuffer.length) {
+                // Too large to batch; write the header and payload directly
+                int header = FrameCodec.writeHeader(type, length, mHeader, 0);
+                mOutStream.write(mHeader, 0, header);
+                mBytesWritten.addAndGet(header);
+                flush(data, length);
+                written(i, i + 1);
+                first = i + 1;
+                continue;
+            }
+            used += FrameCodec.writeHeader(type, length, mCoalesceBuffer, used);
+            System.arraycopy(data, 0, mCoalesceBuffer, used, length);
+            used += length;
+        }
+        if (used > 0) {
+            flush(mCoalesceBuffer, used);
+            written(first, mBatchSize);
+        }
+        mBatchSize = 0;
+    }
+
+    private void flush(byte[] buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        mOutStream.write(buffer, 0, length);
+        mOutStream.flush();
+        mWriteStalls.record((System.nanoTime() - start) / 1000);
+        mWriteCalls.incrementAndGet();
+        mBytesWritten.addAndGet(length);
+    }
+
+    /**
+     * Report the batched payloads in [from, to) as written and release them.
+     */
+    private void written(int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte[] payload = mBatch[i];
+            mBatch[i] = null;
+            mBytesInFlight.addAndGet(-frameLength(payload));
+            mFramesWritten.incrementAndGet();
+            mListener.onFrameWritten(mBatchTypes[i], payload);
+        }
+    }
+
+    private static int frameLength(byte[] payload) {
+        return FrameCodec.headerLength(payload.length) + payload.length;
+    }
+}
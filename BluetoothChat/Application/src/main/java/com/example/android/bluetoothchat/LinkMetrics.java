@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.Locale;
+
+/**
+ * How a connection to one peer has performed since it was made. This is a
+ * snapshot; it does not change as the connection carries on.
+ */
+public class LinkMetrics {
+
+    private final String mAddress;
+    private final String mName;
+    private final long mUptimeMillis;
+    private final long mBytesRead;
+    private final long mFramesRead;
+    private final long mBytesWritten;
+    private final long mFramesWritten;
+    private final long mWriteCalls;
+    private final long mFramesDropped;
+    private final int mQueueDepth;
+    private final long mCompressionBytesIn;
+    private final long mCompressionBytesOut;
+    private final Histogram mRoundTrips;
+    private final Histogram mReadSizes;
+    private final Histogram mWriteStalls;
+
+    LinkMetrics(String address, String name, long uptimeMillis, long bytesRead,
+                long framesRead, long bytesWritten, long framesWritten, long writeCalls,
+                long framesDropped, int queueDepth, long compressionBytesIn,
+                long compressionBytesOut, Histogram roundTrips, Histogram readSizes,
+                Histogram writeStalls) {
+        mAddress = address;
+        mName = name;
+        mUptimeMillis = uptimeMillis;
+        mBytesRead = bytesRead;
+        mFramesRead = framesRead;
+        mBytesWritten = bytesWritten;
+        mFramesWritten = framesWritten;
+        mWriteCalls = writeCalls;
+        mFramesDropped = framesDropped;
+        mQueueDepth = queueDepth;
+        mCompressionBytesIn = compressionBytesIn;
+        mCompressionBytesOut = compressionBytesOut;
+        mRoundTrips = roundTrips;
+        mReadSizes = readSizes;
+        mWriteStalls = writeStalls;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Return how long the connection has been up, in milliseconds.
+     */
+    public long getUptimeMillis() {
+        return mUptimeMillis;
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public long getFramesRead() {
+        return mFramesRead;
+    }
+
+    /**
+     * Return the framed bytes written, headers included.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    /**
+     * Return the number of stream writes, each carrying one or more frames.
+     */
+    public long getWriteCalls() {
+        return mWriteCalls;
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /**
+     * Return the number of frames waiting to be written.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Return how many times smaller chat messages got on the wire, or 1 if
+     * the peer does not take compressed messages.
+     */
+    public double getCompressionRatio() {
+        return mCompressionBytesOut == 0 ? 1 : (double) mCompressionBytesIn / mCompressionBytesOut;
+    }
+
+    /**
+     * Return the ping round trip times, in microseconds.
+     */
+    public Histogram getRoundTrips() {
+        return mRoundTrips;
+    }
+
+    /**
+     * Return the number of bytes each stream read returned.
+     */
+    public Histogram getReadSizes() {
+        return mReadSizes;
+    }
+
+    /**
+     * Return how long each stream write blocked, in microseconds.
+     */
+    public Histogram getWriteStalls() {
+        return mWriteStalls;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mAddress + ") up " + mUptimeMillis / 1000 + "s"
+                + " rx " + mBytesRead + "B/" + mFramesRead + " frames"
+                + " tx " + mBytesWritten + "B/" + mFramesWritten + " frames in "
+                + mWriteCalls + " writes, " + mFramesDropped + " dropped, "
+                + mQueueDepth + " queued, compression "
+                + String.format(Locale.US, "%.2f", getCompressionRatio())
+                + "; rtt us " + mRoundTrips
+                + "; read B " + mReadSizes
+                + "; stall us " + mWriteStalls;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory {@link Transport} built on bounded pipes. Every connection
+ * opened on this transport is delivered to the {@link Acceptor} last returned
+ * by {@link #listen(boolean)} for the same secure flag, whatever the address,
+ * so one instance stands for one listening device. Each accepted connection
+ * reports an address of its own, so several clients can be told apart.
+ */
+public class LoopbackTransport implements Transport {
+
+    public static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    // Handed to accept() to make it fail once the acceptor is closed
+    private static final LoopbackConnection CLOSED = new LoopbackConnection(null, null, null);
+
+    private final int mPipeSize;
+    private final AtomicInteger mNextClient = new AtomicInteger();
+    // The acceptors listening, insecure first then secure; guarded by this
+    private final LoopbackAcceptor[] mAcceptors = new LoopbackAcceptor[2];
+
+    public LoopbackTransport() {
+        this(DEFAULT_PIPE_SIZE);
+    }
+
+    /**
+     * @param pipeSize Bytes each direction can buffer before writes block
+     */
+    public LoopbackTransport(int pipeSize) {
+        mPipeSize = pipeSize;
+    }
+
+    @Override
+    public synchronized Acceptor listen(boolean secure) {
+        LoopbackAcceptor acceptor = new LoopbackAcceptor(secure);
+        mAcceptors[secure ? 1 : 0] = acceptor;
+        return acceptor;
+    }
+
+    @Override
+    public Connection open(final String address, final boolean secure) {
+        return new Connection() {
+            private LoopbackConnection mmConnection;
+            private boolean mmClosed;
+
+            @Override
+            public synchronized void connect() throws IOException {
+                if (mmClosed) {
+                    throw new IOException("Connection closed");
+                }
+                LoopbackAcceptor acceptor;
+                synchronized (LoopbackTransport.this) {
+                    acceptor = mAcceptors[secure ? 1 : 0];
+                }
+                if (acceptor == null) {
+                    throw new IOException("Nobody is listening");
+                }
+                Pipe toClient = new Pipe(mPipeSize);
+                Pipe toServer = new Pipe(mPipeSize);
+                mmConnection = new LoopbackConnection(address, toClient, toServer);
+                acceptor.mmPending.add(new LoopbackConnection(
+                        "client-" + mNextClient.incrementAndGet(), toServer, toClient));
+            }
+
+            @Override
+            public synchronized InputStream getInputStream() throws IOException {
+                return connection().getInputStream();
+            }
+
+            @Override
+            public synchronized OutputStream getOutputStream() throws IOException {
+                return connection().getOutputStream();
+            }
+
+            @Override
+            public String getRemoteAddress() {
+                return address;
+            }
+
+            @Override
+            public String getRemoteName() {
+                return "loopback:" + address;
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                mmClosed = true;
+                if (mmConnection != null) {
+                    mmConnection.close();
+                }
+            }
+
+            private LoopbackConnection connection() throws IOException {
+                if (mmConnection == null) {
+                    throw new IOException("Not connected");
+                }
+                return mmConnection;
+            }
+        };
+    }
+
+    /**
+     * Hands out the connections made to it, in order.
+     */
+    private class LoopbackAcceptor implements Acceptor {
+        private final boolean mmSecure;
+        private final BlockingQueue<LoopbackConnection> mmPending = new LinkedBlockingQueue<>();
+
+        LoopbackAcceptor(boolean secure) {
+            mmSecure = secure;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            LoopbackConnection connection;
+            try {
+                connection = mmPending.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while accepting", e);
+            }
+            if (connection == CLOSED) {
+                // Leave it for any other thread blocked here
+                mmPending.add(CLOSED);
+                throw new IOException("Acceptor closed");
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            synchronized (LoopbackTransport.this) {
+                if (mAcceptors[mmSecure ? 1 : 0] == this) {
+                    mAcceptors[mmSecure ? 1 : 0] = null;
+                }
+            }
+            mmPending.add(CLOSED);
+        }
+    }
+
+    /**
+     * An established pair of pipes.
+     */
+    private static class LoopbackConnection implements Connection {
+        private final String mmAddress;
+        private final Pipe mmIn;
+        private final Pipe mmOut;
+
+        LoopbackConnection(String address, Pipe in, Pipe out) {
+            mmAddress = address;
+            mmIn = in;
+            mmOut = out;
+        }
+
+        @Override
+        public void connect() {
+            // Already connected
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmIn.mmInputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOut.mmOutputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "loopback:" + mmAddress;
+        }
+
+        @Override
+        public void close() {
+            // Closing our output lets the peer's reads end; closing our input
+            // makes a read or write blocked on this side fail
+            mmOut.closeWriter();
+            mmIn.closeReader();
+        }
+    }
+
+    /**
+     * A bounded byte queue from one thread to another. Unlike
+     * PipedInputStream, a read blocked on it fails as soon as its reading end
+     * is closed, and it does not care which threads come and go.
+     */
+    private static class Pipe {
+        private final byte[] mmBuffer;
+        private int mmHead;
+        private int mmCount;
+        private boolean mmReaderClosed;
+        private boolean mmWriterClosed;
+
+        final InputStream mmInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return Pipe.this.read(buffer, offset, length);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mmCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+
+        final OutputStream mmOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                Pipe.this.write(buffer, offset, length);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+
+        Pipe(int size) {
+            mmBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (mmCount == 0 && !mmWriterClosed && !mmReaderClosed) {
+                await();
+            }
+            if (mmReaderClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (mmCount == 0) {
+                return -1;
+            }
+            int count = Math.min(length, Math.min(mmCount, mmBuffer.length - mmHead));
+            System.arraycopy(mmBuffer, mmHead, buffer, offset, count);
+            mmHead = (mmHead + count) % mmBuffer.length;
+            mmCount -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mmCount == mmBuffer.length && !mmWriterClosed && !mmReaderClosed) {
+                    await();
+                }
+                if (mmWriterClosed || mmReaderClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                int tail = (mmHead + mmCount) % mmBuffer.length;
+                int count = Math.min(length,
+                        Math.min(mmBuffer.length - mmCount, mmBuffer.length - tail));
+                System.arraycopy(buffer, offset, mmBuffer, tail, count);
+                mmCount += count;
+                offset += count;
+                length -= count;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeReader() {
+            mmReaderClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeWriter() {
+            mmWriterClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting on the pipe");
+            }
+        }
+    }
+}
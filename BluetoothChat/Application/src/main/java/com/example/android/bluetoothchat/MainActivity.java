@@ -26,10 +26,15 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentTransaction;
 
 import com.example.android.common.activities.SampleActivityBase;
+import com.example.android.common.logger.AsyncLogNode;
 import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogFileNode;
 import com.example.android.common.logger.LogFragment;
 import com.example.android.common.logger.LogWrapper;
-import com.example.android.common.logger.MessageOnlyLogFilter;
+import com.example.android.common.logger.RateLimitLogFilter;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * A simple launcher activity containing a summary sample description, sample log and a custom
@@ -45,6 +50,17 @@ public class MainActivity extends SampleActivityBase {
     // Whether the Log Fragment is currently shown
     private boolean mLogShown;
 
+    // Thins out tags that log on every chunk of a transfer; kept across onStart with its
+    // counts of suppressed records
+    private RateLimitLogFilter mRateLimitLogFilter;
+
+    // Feeds the on screen log; kept across onStart so only one consumer thread runs
+    private AsyncLogNode mAsyncLogNode;
+
+    // Keeps the log on storage for later diagnosis; one for the whole process, so each
+    // new activity carries on in the same segment
+    private static LogFileNode sLogFileNode;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -58,6 +74,20 @@ public class MainActivity extends SampleActivityBase {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Unlink the chain before closing it, so threads that outlive the activity log to
+        // Android's log only rather than into a closed node
+        if (Log.getLogNode() == mRateLimitLogFilter) {
+            Log.setLogNode(new LogWrapper());
+        }
+        if (mAsyncLogNode != null) {
+            mAsyncLogNode.close();
+            mAsyncLogNode = null;
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
@@ -95,19 +125,46 @@ public class MainActivity extends SampleActivityBase {
      */
     @Override
     public void initializeLogging() {
+        // Limits tags that can log faster than anyone reads, such as the file transfer
+        // progress of the chat fragment. Errors always get through.
+        if (mRateLimitLogFilter == null) {
+            mRateLimitLogFilter = new RateLimitLogFilter();
+            mRateLimitLogFilter.setRateLimit("BluetoothChatFragment", 10, 20);
+        }
+        // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
+        Log.setLogNode(mRateLimitLogFilter);
+
         // Wraps Android's native log framework.
         LogWrapper logWrapper = new LogWrapper();
-        // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
-        Log.setLogNode(logWrapper);
+        mRateLimitLogFilter.setNext(logWrapper);
 
-        // Filter strips out everything except the message text.
-        MessageOnlyLogFilter msgFilter = new MessageOnlyLogFilter();
-        logWrapper.setNext(msgFilter);
+        // Hands log data to the rest of the chain on its own thread, a frame's worth at a
+        // time, so busy threads do not wait on the log files or the UI.
+        if (mAsyncLogNode == null) {
+            mAsyncLogNode = new AsyncLogNode();
+        }
+        logWrapper.setNext(mAsyncLogNode);
+
+        // Keeps the log in files, read back with LogFileReader. Written on the
+        // AsyncLogNode's thread, since starting a new segment touches the disk.
+        if (sLogFileNode == null) {
+            try {
+                sLogFileNode = new LogFileNode(new File(getFilesDir(), "logs"));
+            } catch (IOException e) {
+                android.util.Log.e(TAG, "Unable to open the log files", e);
+            }
+        }
 
-        // On screen logging via a fragment with a TextView.
+        // On screen logging via a fragment with a list of the latest messages. It shows
+        // the message text only, but keeps the priority and tag to filter on.
         LogFragment logFragment = (LogFragment) getSupportFragmentManager()
                 .findFragmentById(R.id.log_fragment);
-        msgFilter.setNext(logFragment.getLogView());
+        if (sLogFileNode != null) {
+            mAsyncLogNode.setNext(sLogFileNode);
+            sLogFileNode.setNext(logFragment.getLogAdapter());
+        } else {
+            mAsyncLogNode.setNext(logFragment.getLogAdapter());
+        }
 
         Log.i(TAG, "Ready");
     }
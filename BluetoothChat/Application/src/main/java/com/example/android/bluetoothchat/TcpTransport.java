@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * {@link Transport} over TCP on the loopback interface. Addresses are port
+ * numbers. Unlike {@link LoopbackTransport} this goes through real socket
+ * system calls, so it shows what write coalescing saves.
+ */
+public class TcpTransport implements Transport {
+
+    private final int mPort;
+
+    /**
+     * @param port The port to listen on, or 0 to pick a free one
+     */
+    public TcpTransport(int port) {
+        mPort = port;
+    }
+
+    @Override
+    public TcpAcceptor listen(boolean secure) throws IOException {
+        return new TcpAcceptor(new ServerSocket(mPort, 50, InetAddress.getLoopbackAddress()));
+    }
+
+    @Override
+    public Connection open(String address, boolean secure) {
+        return new TcpConnection(new Socket(), Integer.parseInt(address));
+    }
+
+    /**
+     * Listens on the loopback interface.
+     */
+    public static class TcpAcceptor implements Acceptor {
+        private final ServerSocket mmServerSocket;
+
+        TcpAcceptor(ServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        /**
+         * Return the address to pass to {@link #open(String, boolean)} to reach this acceptor.
+         */
+        public String getAddress() {
+            return Integer.toString(mmServerSocket.getLocalPort());
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            Socket socket = mmServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            return new TcpConnection(socket, -1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+    private static class TcpConnection implements Connection {
+        private final Socket mmSocket;
+        private final int mmPort;
+
+        TcpConnection(Socket socket, int port) {
+            mmSocket = socket;
+            mmPort = port;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmPort < 0) {
+                return;
+            }
+            mmSocket.setTcpNoDelay(true);
+            mmSocket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), mmPort));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return Integer.toString(mmPort >= 0 ? mmPort : mmSocket.getPort());
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "tcp:" + getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
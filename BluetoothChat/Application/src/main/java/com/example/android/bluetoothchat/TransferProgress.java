@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * An immutable snapshot of a file transfer, sent to the UI with
+ * {@link BluetoothChatService.Listener#onFileProgress(TransferProgress)}.
+ */
+public class TransferProgress {
+
+    private final boolean mIncoming;
+    private final String mAddress;
+    private final int mTransferId;
+    private final String mName;
+    private final long mBytesDone;
+    private final long mTotalBytes;
+    private final long mBytesPerSecond;
+
+    public TransferProgress(boolean incoming, String address, int transferId, String name,
+                            long bytesDone, long totalBytes, long bytesPerSecond) {
+        mIncoming = incoming;
+        mAddress = address;
+        mTransferId = transferId;
+        mName = name;
+        mBytesDone = bytesDone;
+        mTotalBytes = totalBytes;
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Return true if the file is being received, false if it is being sent.
+     */
+    public boolean isIncoming() {
+        return mIncoming;
+    }
+
+    /**
+     * Return the address of the peer on the other end of the transfer.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getTransferId() {
+        return mTransferId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Return the number of bytes confirmed so far, including any resumed from
+     * an earlier connection.
+     */
+    public long getBytesDone() {
+        return mBytesDone;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Return the average throughput since the transfer was (re)started on the
+     * current connection.
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Return the estimated time to completion in milliseconds, or -1 if the
+     * throughput is not known yet.
+     */
+    public long getEtaMillis() {
+        if (mBytesPerSecond <= 0) {
+            return isComplete() ? 0 : -1;
+        }
+        return (mTotalBytes - mBytesDone) * 1000 / mBytesPerSecond;
+    }
+
+    public boolean isComplete() {
+        return mBytesDone >= mTotalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return (mIncoming ? "receiving " : "sending ") + mName + " " + mBytesDone + "/"
+                + mTotalBytes + " bytes, " + mBytesPerSecond + " B/s, eta "
+                + getEtaMillis() + " ms";
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The link layer used by {@link BluetoothChatService}. It mirrors the shape of
+ * BluetoothServerSocket and BluetoothSocket so the service threads work the
+ * same over any implementation: {@link RfcommTransport} on devices, and
+ * {@link LoopbackTransport} or {@link TcpTransport} for measuring the
+ * framing, queueing and acknowledgement code on a plain JVM.
+ * <p>
+ * Closing an {@link Acceptor} or {@link Connection} from another thread must
+ * make a blocked accept(), connect() or read() fail with an IOException;
+ * that is how the service cancels its threads.
+ */
+public interface Transport {
+
+    /**
+     * A listening endpoint, like BluetoothServerSocket.
+     */
+    interface Acceptor extends Closeable {
+        /**
+         * Block until a peer connects.
+         */
+        Connection accept() throws IOException;
+    }
+
+    /**
+     * One end of a stream pair, like BluetoothSocket.
+     */
+    interface Connection extends Closeable {
+        /**
+         * Block until the connection is established. Does nothing for
+         * connections returned by {@link Acceptor#accept()}.
+         */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Return the address that identifies the peer across reconnects.
+         */
+        String getRemoteAddress();
+
+        /**
+         * Return a human readable name for the peer.
+         */
+        String getRemoteName();
+    }
+
+    /**
+     * Start listening for incoming connections.
+     *
+     * @param secure Whether the link must be authenticated and encrypted,
+     *               for transports that make the distinction
+     */
+    Acceptor listen(boolean secure) throws IOException;
+
+    /**
+     * Create an unconnected connection to the given peer; call
+     * {@link Connection#connect()} to establish it.
+     */
+    Connection open(String address, boolean secure) throws IOException;
+}
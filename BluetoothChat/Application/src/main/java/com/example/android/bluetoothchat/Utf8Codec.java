@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts chat text to and from UTF-8, whatever the platform charset.
+ * One encoder and decoder work over a byte and a char buffer that are kept
+ * and grown as needed, so converting a message allocates nothing beyond
+ * its result, and large texts go straight between the caller's
+ * {@link CharSequence} or {@link ByteBuffer} and ours with no String between.
+ * <p>
+ * {@link #decode(ByteBuffer, boolean)} takes text in pieces: a character
+ * whose bytes are split between two pieces is held back until the rest
+ * arrives. Malformed input and unpaired surrogates become replacement
+ * characters rather than errors.
+ * <p>
+ * Not thread safe; each thread that converts text needs its own codec.
+ */
+public class Utf8Codec {
+
+    /**
+     * Room for the longest UTF-8 sequence, for bytes held between pieces.
+     */
+    private static final int MAX_SEQUENCE_LENGTH = 4;
+
+    private final CharsetEncoder mEncoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer mBytes = ByteBuffer.allocate(256);
+    private CharBuffer mChars = CharBuffer.allocate(256);
+    private final ByteBuffer mCarry = ByteBuffer.allocate(MAX_SEQUENCE_LENGTH * 2);
+
+    /**
+     * Encode text. Any char buffer returned before is overwritten.
+     *
+     * @return Our byte buffer holding the UTF-8 bytes between its position and
+     * limit; valid until the next call
+     */
+    public ByteBuffer encode(CharSequence text) {
+        CharBuffer in = copy(text);
+        ByteBuffer out = bytes((int) (text.length() * mEncoder.maxBytesPerChar()) + 1);
+        mEncoder.reset();
+        CoderResult result;
+        do {
+            result = mEncoder.encode(in, out, true);
+            if (result.isOverflow()) {
+                out = growBytes(out);
+            }
+        } while (result.isOverflow());
+        while (mEncoder.flush(out).isOverflow()) {
+            out = growBytes(out);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode text into a new array of exactly its UTF-8 length.
+     */
+    public byte[] encodeToArray(CharSequence text) {
+        ByteBuffer encoded = encode(text);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode the next piece of a text. Bytes of a character cut off at the end
+     * of the piece are kept and decoded with the next one.
+     *
+     * @param in         The bytes between position and limit; all are consumed
+     * @param endOfInput Whether this is the last piece. Bytes still held then
+     *                   are malformed and become a replacement character
+     * @return Our char buffer holding the characters decoded so far from this
+     * piece between its position and limit; valid until the next call
+     */
+    public CharBuffer decode(ByteBuffer in, boolean endOfInput) {
+        CharBuffer out = chars(in.remaining() + mCarry.position() + 1);
+        // Finish the character split by the previous piece a byte at a time
+        while (mCarry.position() > 0 && in.hasRemaining()) {
+            mCarry.put(in.get());
+            mCarry.flip();
+            out = decode(mCarry, out, false);
+            mCarry.compact();
+        }
+        if (mCarry.position() == 0) {
+            out = decode(in, out, endOfInput);
+            // The decoder leaves the start of a cut off character in the input
+            mCarry.put(in);
+        }
+        if (endOfInput) {
+            mCarry.flip();
+            out = decode(mCarry, out, true);
+            mCarry.clear();
+            while (mDecoder.flush(out).isOverflow()) {
+                out = growChars(out);
+            }
+            mDecoder.reset();
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Decode a piece of text from an array.
+     *
+     * @see #decode(ByteBuffer, boolean)
+     */
+    public CharBuffer decode(byte[] buffer, int offset, int length, boolean endOfInput) {
+        return decode(ByteBuffer.wrap(buffer, offset, length), endOfInput);
+    }
+
+    /**
+     * Decode a whole text. Bytes held from a text being decoded in pieces
+     * are not affected.
+     */
+    public String decodeToString(ByteBuffer in) {
+        CharBuffer out = chars(in.remaining() + 1);
+        mDecoder.reset();
+        out = decode(in, out, true);
+        while (mDecoder.flush(out).isOverflow()) {
+            out = growChars(out);
+        }
+        mDecoder.reset();
+        out.flip();
+        return out.toString();
+    }
+
+    /**
+     * Decode a whole text from an array.
+     */
+    public String decodeToString(byte[] buffer, int offset, int length) {
+        return decodeToString(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * Forget any bytes held from a text being decoded in pieces.
+     */
+    public void reset() {
+        mCarry.clear();
+        mDecoder.reset();
+    }
+
+    /**
+     * Copy text into our char buffer, where the encoder can work on the
+     * array directly instead of a character at a time.
+     */
+    private CharBuffer copy(CharSequence text) {
+        int length = text.length();
+        CharBuffer chars = chars(length);
+        char[] array = chars.array();
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, array, 0);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(0, length, array, 0);
+        } else {
+            for (int i = 0; i < length; i++) {
+                array[i] = text.charAt(i);
+            }
+        }
+        chars.limit(length);
+        return chars;
+    }
+
+    private CharBuffer decode(ByteBuffer in, CharBuffer out, boolean endOfInput) {
+        while (mDecoder.decode(in, out, endOfInput).isOverflow()) {
+            out = growChars(out);
+        }
+        return out;
+    }
+
+    private ByteBuffer bytes(int capacity) {
+        if (mBytes.capacity() < capacity) {
+            mBytes = ByteBuffer.allocate(Math.max(capacity, mBytes.capacity() * 2));
+        }
+        mBytes.clear();
+        return mBytes;
+    }
+
+    private CharBuffer chars(int capacity) {
+        if (mChars.capacity() < capacity) {
+            mChars = CharBuffer.allocate(Math.max(capacity, mChars.capacity() * 2));
+        }
+        mChars.clear();
+        return mChars;
+    }
+
+    private ByteBuffer growBytes(ByteBuffer out) {
+        ByteBuffer grown = ByteBuffer.allocate(out.capacity() * 2);
+        out.flip();
+        grown.put(out);
+        mBytes = grown;
+        return grown;
+    }
+
+    private CharBuffer growChars(CharBuffer out) {
+        CharBuffer grown = CharBuffer.allocate(out.capacity() * 2);
+        out.flip();
+        grown.put(out);
+        mChars = grown;
+        return grown;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LogNode} that hands log data to the rest of the chain on its own thread, so
+ * logging from a busy thread costs a few stores instead of formatting and drawing.
+ *
+ * <p>Records go into a fixed ring of preallocated slots that any number of threads can
+ * fill without locking. A single consumer thread takes them out in batches and passes
+ * each batch down the chain, at most once per frame interval, so a view at the end of
+ * the chain is updated once per frame however fast the records come. When the ring is
+ * full, the {@link Policy} decides whether the caller waits or the record is dropped;
+ * dropped records are counted and reported down the chain with the next batch.</p>
+ */
+public class AsyncLogNode implements LogNode {
+
+    /**
+     * What {@link #println(int, String, String, Throwable)} does when the ring is full.
+     */
+    public enum Policy {
+        /**
+         * Wait until the consumer has made room.
+         */
+        BLOCK,
+        /**
+         * Drop the new record and count it.
+         */
+        DROP_NEWEST
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 16;
+
+    private static final String TAG = "AsyncLogNode";
+
+    // The next LogNode in the chain.
+    private volatile LogNode mNext;
+
+    private final Policy mPolicy;
+    private final long mFlushIntervalNanos;
+
+    // The ring. A slot is free for the producer claiming position p when its sequence is
+    // p, and holds a record for the consumer at position p when its sequence is p + 1.
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final int[] mPriorities;
+    private final String[] mTags;
+    private final String[] mMessages;
+    private final Throwable[] mThrowables;
+    private final AtomicLong mTail = new AtomicLong();
+    private long mHead;
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mDroppedReported;
+
+    private final Thread mConsumer;
+    private volatile boolean mConsumerWaiting;
+    private volatile boolean mClosed;
+
+    public AsyncLogNode() {
+        this(Policy.DROP_NEWEST, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param policy What to do when the ring is full
+     * @param capacity The number of records the ring holds; rounded up to a power of two
+     * @param flushIntervalMillis The shortest time between two batches
+     */
+    public AsyncLogNode(Policy policy, int capacity, long flushIntervalMillis) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mPolicy = policy;
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mPriorities = new int[size];
+        mTags = new String[size];
+        mMessages = new String[size];
+        mThrowables = new Throwable[size];
+
+        mConsumer = new Thread(mDrainLoop, TAG);
+        mConsumer.setDaemon(true);
+        mConsumer.start();
+    }
+
+    /**
+     * Queues the log data for the rest of the chain.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        if (Thread.currentThread() == mConsumer) {
+            // Logged by a node further down; waiting on ourselves would never end
+            LogNode next = mNext;
+            if (next != null) {
+                next.println(priority, tag, msg, tr);
+            }
+            return;
+        }
+
+        long position = mTail.get();
+        int slot;
+        while (true) {
+            slot = (int) position & mMask;
+            long available = mSequences.get(slot) - position;
+            if (available == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                // Full
+                if (mPolicy == Policy.DROP_NEWEST || mClosed) {
+                    mDropped.incrementAndGet();
+                    return;
+                }
+                wakeConsumer();
+                LockSupport.parkNanos(mFlushIntervalNanos / 4);
+            }
+            position = mTail.get();
+        }
+
+        mPriorities[slot] = priority;
+        mTags[slot] = tag;
+        mMessages[slot] = msg;
+        mThrowables[slot] = tr;
+        // Publishes the fields above to the consumer. A full volatile write, so that a
+        // consumer about to park either sees the record or is seen waiting below.
+        mSequences.set(slot, position + 1);
+
+        if (mConsumerWaiting) {
+            wakeConsumer();
+        }
+    }
+
+    /**
+     * Returns the number of records dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Has the consumer thread pass on the records already queued and then stop. Records
+     * logged afterwards are dropped. Does not wait for the thread.
+     */
+    public void close() {
+        mClosed = true;
+        wakeConsumer();
+    }
+
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    private void wakeConsumer() {
+        LockSupport.unpark(mConsumer);
+    }
+
+    private final Runnable mDrainLoop = new Runnable() {
+        @Override
+        public void run() {
+            long lastFlush = System.nanoTime() - mFlushIntervalNanos;
+            while (true) {
+                // Let records gather until the next frame
+                long wait = lastFlush + mFlushIntervalNanos - System.nanoTime();
+                if (wait > 0 && !mClosed) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                if (!hasRecord()) {
+                    if (mClosed) {
+                        break;
+                    }
+                    mConsumerWaiting = true;
+                    // Check again now producers know to wake us
+                    if (!hasRecord() && !mClosed) {
+                        LockSupport.park();
+                    }
+                    mConsumerWaiting = false;
+                    continue;
+                }
+                lastFlush = System.nanoTime();
+                drain();
+            }
+        }
+    };
+
+    private boolean hasRecord() {
+        return mSequences.get((int) mHead & mMask) == mHead + 1;
+    }
+
+    /**
+     * Passes the queued records down the chain, at most a ring's worth so a flood of
+     * records cannot keep one batch going. Called on the consumer thread only.
+     */
+    private void drain() {
+        LogNode next = mNext;
+        for (int count = 0; count <= mMask && hasRecord(); count++) {
+            int slot = (int) mHead & mMask;
+            int priority = mPriorities[slot];
+            String tag = mTags[slot];
+            String msg = mMessages[slot];
+            Throwable tr = mThrowables[slot];
+            mTags[slot] = null;
+            mMessages[slot] = null;
+            mThrowables[slot] = null;
+            // Hands the slot back to the producers
+            mSequences.lazySet(slot, mHead + mMask + 1);
+            mHead++;
+            if (next != null) {
+                next.println(priority, tag, msg, tr);
+            }
+        }
+
+        long dropped = mDropped.get();
+        if (dropped != mDroppedReported && next != null) {
+            next.println(Log.WARN, TAG, "Dropped " + (dropped - mDroppedReported)
+                    + " log records", null);
+        }
+        mDroppedReported = dropped;
+    }
+}
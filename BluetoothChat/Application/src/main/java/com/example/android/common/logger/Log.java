@@ -15,6 +15,12 @@
  */
 package com.example.android.common.logger;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
 /**
  * Helper class for a list (or tree) of LoggerNodes.
  *
@@ -22,6 +28,14 @@ package com.example.android.common.logger;
  * an instance of it can function as a drop-in replacement for {@link android.util.Log}.
  * Most of the methods in this class server only to map a method call in Log to its equivalent
  * in LogNode.</p>
+ *
+ * <p>Data below the level set for its tag, or overall, is not passed on. For hot paths there
+ * are overloads of {@link #v}, {@link #d} and {@link #i} that take a format and its arguments,
+ * and only build the message if it is going to be logged; when it is not, such a call costs a
+ * comparison and allocates nothing, as long as the arguments are already objects or are
+ * passed to the {@code long} overloads. There are also overloads that take a supplier, but a
+ * lambda that captures a variable is a new object on every call, logged or not, so keep
+ * those for suppliers that capture nothing.</p>
  */
 public class Log {
     // Grabbing the native values from Android's native logging facilities,
@@ -35,7 +49,16 @@ public class Log {
     public static final int ASSERT = android.util.Log.ASSERT;
 
     // Stores the beginning of the LogNode topology.
-    private static LogNode mLogNode;
+    private static volatile LogNode mLogNode;
+
+    // The lowest priority passed on for tags without a level of their own.
+    private static volatile int mLevel = VERBOSE;
+
+    // Levels of single tags. Replaced rather than changed, so it can be read without a lock.
+    private static volatile Map<String, Integer> mTagLevels = Collections.emptyMap();
+
+    // The lowest of all the levels, so most calls below it return without a lookup.
+    private static volatile int mLowestLevel = VERBOSE;
 
     /**
      * Returns the next LogNode in the linked list.
@@ -51,6 +74,68 @@ public class Log {
         mLogNode = node;
     }
 
+    /**
+     * Sets the lowest priority passed on for tags without a level of their own.
+     *
+     * @param level Log level such as {@link #DEBUG}; VERBOSE passes everything.
+     */
+    public static synchronized void setLevel(int level) {
+        mLevel = level;
+        updateLowestLevel();
+    }
+
+    /**
+     * Sets the lowest priority passed on for one tag, overriding the overall level.
+     *
+     * @param tag Tag for for the log data.
+     * @param level Log level such as {@link #DEBUG}; VERBOSE passes everything.
+     */
+    public static synchronized void setLevel(String tag, int level) {
+        Map<String, Integer> tagLevels = new HashMap<>(mTagLevels);
+        tagLevels.put(tag, level);
+        mTagLevels = tagLevels;
+        updateLowestLevel();
+    }
+
+    /**
+     * Makes a tag follow the overall level again.
+     */
+    public static synchronized void clearLevel(String tag) {
+        Map<String, Integer> tagLevels = new HashMap<>(mTagLevels);
+        tagLevels.remove(tag);
+        mTagLevels = tagLevels.isEmpty() ? Collections.<String, Integer>emptyMap() : tagLevels;
+        updateLowestLevel();
+    }
+
+    private static void updateLowestLevel() {
+        int lowest = mLevel;
+        for (int level : mTagLevels.values()) {
+            lowest = Math.min(lowest, level);
+        }
+        mLowestLevel = lowest;
+    }
+
+    /**
+     * Returns whether log data of a priority and tag would be passed on. Checking first
+     * saves building a message that would be thrown away.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data.
+     */
+    public static boolean isLoggable(int priority, String tag) {
+        if (priority < mLowestLevel || mLogNode == null) {
+            return false;
+        }
+        Map<String, Integer> tagLevels = mTagLevels;
+        if (!tagLevels.isEmpty()) {
+            Integer level = tagLevels.get(tag);
+            if (level != null) {
+                return priority >= level;
+            }
+        }
+        return priority >= mLevel;
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -62,11 +147,32 @@ public class Log {
      *           to extract and print useful information.
      */
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mLogNode != null) {
-            mLogNode.println(priority, tag, msg, tr);
+        LogNode node = mLogNode;
+        if (node != null && isLoggable(priority, tag)) {
+            node.println(priority, tag, msg, tr);
         }
     }
 
+    /**
+     * Builds a message and prints it, if the priority is logged for the tag.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg Builds the message to be logged.
+     */
+    public static void println(int priority, String tag, Supplier<String> msg) {
+        if (isLoggable(priority, tag)) {
+            println(priority, tag, msg.get(), null);
+        }
+    }
+
+    /**
+     * Formats a message and prints it. Callers check the level first.
+     */
+    private static void printf(int priority, String tag, String format, Object... args) {
+        println(priority, tag, String.format(Locale.US, format, args), null);
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -101,6 +207,86 @@ public class Log {
         v(tag, msg, null);
     }
 
+    /**
+     * Prints a message at VERBOSE priority, building it only if VERBOSE is logged for the tag.
+     * The supplier should capture nothing, or it is allocated on every call; otherwise use
+     * a format.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg Builds the message to be logged.
+     */
+    public static void v(String tag, Supplier<String> msg) {
+        println(VERBOSE, tag, msg);
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if VERBOSE is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg The argument to the pattern.
+     */
+    public static void v(String tag, String format, Object arg) {
+        if (isLoggable(VERBOSE, tag)) {
+            printf(VERBOSE, tag, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if VERBOSE is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg The argument to the pattern; not boxed unless the message is built.
+     */
+    public static void v(String tag, String format, long arg) {
+        if (isLoggable(VERBOSE, tag)) {
+            printf(VERBOSE, tag, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if VERBOSE is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern.
+     * @param arg2 The second argument to the pattern.
+     */
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(VERBOSE, tag)) {
+            printf(VERBOSE, tag, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if VERBOSE is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern.
+     * @param arg2 The second argument to the pattern; not boxed unless the message is built.
+     */
+    public static void v(String tag, String format, Object arg1, long arg2) {
+        if (isLoggable(VERBOSE, tag)) {
+            printf(VERBOSE, tag, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if VERBOSE is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern; not boxed unless the message is built.
+     * @param arg2 The second argument to the pattern; not boxed unless the message is built.
+     */
+    public static void v(String tag, String format, long arg1, long arg2) {
+        if (isLoggable(VERBOSE, tag)) {
+            printf(VERBOSE, tag, format, arg1, arg2);
+        }
+    }
+
 
     /**
      * Prints a message at DEBUG priority.
@@ -124,6 +310,86 @@ public class Log {
         d(tag, msg, null);
     }
 
+    /**
+     * Prints a message at DEBUG priority, building it only if DEBUG is logged for the tag.
+     * The supplier should capture nothing, or it is allocated on every call; otherwise use
+     * a format.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg Builds the message to be logged.
+     */
+    public static void d(String tag, Supplier<String> msg) {
+        println(DEBUG, tag, msg);
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if DEBUG is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg The argument to the pattern.
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(DEBUG, tag)) {
+            printf(DEBUG, tag, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if DEBUG is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg The argument to the pattern; not boxed unless the message is built.
+     */
+    public static void d(String tag, String format, long arg) {
+        if (isLoggable(DEBUG, tag)) {
+            printf(DEBUG, tag, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if DEBUG is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern.
+     * @param arg2 The second argument to the pattern.
+     */
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(DEBUG, tag)) {
+            printf(DEBUG, tag, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if DEBUG is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern.
+     * @param arg2 The second argument to the pattern; not boxed unless the message is built.
+     */
+    public static void d(String tag, String format, Object arg1, long arg2) {
+        if (isLoggable(DEBUG, tag)) {
+            printf(DEBUG, tag, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if DEBUG is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern; not boxed unless the message is built.
+     * @param arg2 The second argument to the pattern; not boxed unless the message is built.
+     */
+    public static void d(String tag, String format, long arg1, long arg2) {
+        if (isLoggable(DEBUG, tag)) {
+            printf(DEBUG, tag, format, arg1, arg2);
+        }
+    }
+
     /**
      * Prints a message at INFO priority.
      *
@@ -146,6 +412,86 @@ public class Log {
         i(tag, msg, null);
     }
 
+    /**
+     * Prints a message at INFO priority, building it only if INFO is logged for the tag.
+     * The supplier should capture nothing, or it is allocated on every call; otherwise use
+     * a format.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg Builds the message to be logged.
+     */
+    public static void i(String tag, Supplier<String> msg) {
+        println(INFO, tag, msg);
+    }
+
+    /**
+     * Prints a message at INFO priority, formatting it only if INFO is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg The argument to the pattern.
+     */
+    public static void i(String tag, String format, Object arg) {
+        if (isLoggable(INFO, tag)) {
+            printf(INFO, tag, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at INFO priority, formatting it only if INFO is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg The argument to the pattern; not boxed unless the message is built.
+     */
+    public static void i(String tag, String format, long arg) {
+        if (isLoggable(INFO, tag)) {
+            printf(INFO, tag, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at INFO priority, formatting it only if INFO is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern.
+     * @param arg2 The second argument to the pattern.
+     */
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(INFO, tag)) {
+            printf(INFO, tag, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at INFO priority, formatting it only if INFO is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern.
+     * @param arg2 The second argument to the pattern; not boxed unless the message is built.
+     */
+    public static void i(String tag, String format, Object arg1, long arg2) {
+        if (isLoggable(INFO, tag)) {
+            printf(INFO, tag, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at INFO priority, formatting it only if INFO is logged for the tag.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format} pattern for the message.
+     * @param arg1 The first argument to the pattern; not boxed unless the message is built.
+     * @param arg2 The second argument to the pattern; not boxed unless the message is built.
+     */
+    public static void i(String tag, String format, long arg1, long arg2) {
+        if (isLoggable(INFO, tag)) {
+            printf(INFO, tag, format, arg1, arg2);
+        }
+    }
+
     /**
      * Prints a message at WARN priority.
      *
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link LogNode} that keeps log data in compact binary files on the device, so it is still
+ * there for diagnosis after logcat has moved on. {@link LogFileReader} prints it back.
+ *
+ * <p>Records go into memory-mapped segment files of a fixed size. When one is full the
+ * next is started, and the oldest are deleted to keep at most a set number. Each segment
+ * starts with a header (magic, version, creation time) and then holds records back to back:
+ * a length int, a CRC32 of the payload, and the payload, which is a type byte followed by
+ * either a tag definition (tag id short, UTF-8 name) or a log entry (timestamp long,
+ * priority byte, tag id short, UTF-8 message). Tags are written once per segment and
+ * referred to by id after that, so every segment can be read on its own.</p>
+ *
+ * <p>The length of a record is written after the rest of it. A segment is zero filled when
+ * it is created, and readers stop at a zero length or a bad CRC, so a crash while writing
+ * leaves the file ending at the last whole record. A new node carries on after that record
+ * in the last segment.</p>
+ *
+ * <p>Starting a segment forces the last one out, creates a file and deletes old ones, all
+ * under the node's lock, so the node belongs behind an {@link AsyncLogNode} rather than
+ * on the threads that log.</p>
+ */
+public class LogFileNode implements LogNode, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    static final String SEGMENT_PREFIX = "log-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final int MAGIC = 0x424c4f47;
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_LENGTH = 16;
+    static final int RECORD_HEADER_LENGTH = 8;
+    static final int RECORD_TAG = 1;
+    static final int RECORD_ENTRY = 2;
+    static final int ENTRY_HEADER_LENGTH = 1 + 8 + 1 + 2;
+    static final int MAX_TAG_ID = Short.MAX_VALUE;
+
+    private static final String TAG = "LogFileNode";
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final CharsetEncoder mEncoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CRC32 mCrc = new CRC32();
+
+    // Ids of the tags defined in the current segment
+    private final Map<String, Integer> mTagIds = new HashMap<>();
+    private int mSegmentNumber;
+    private FileChannel mChannel;
+    private MappedByteBuffer mSegment;
+    private int mPosition;
+    private boolean mFailed;
+
+    // The next LogNode in the chain; set on the UI thread, used on the logging thread.
+    private volatile LogNode mNext;
+
+    public LogFileNode(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Carries on from the last segment in the directory, or starts one.
+     *
+     * @param directory Where the segment files go
+     * @param segmentSize The size of each segment file in bytes
+     * @param maxSegments The number of segment files to keep
+     */
+    public LogFileNode(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        File[] segments = listSegments(directory);
+        if (segments.length == 0) {
+            startSegment();
+        } else {
+            mSegmentNumber = segmentNumber(segments[segments.length - 1]);
+            if (!resumeSegment(segments[segments.length - 1])) {
+                startSegment();
+            }
+        }
+    }
+
+    /**
+     * Writes the log data to the current segment, then passes it on.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        IOException failure = null;
+        synchronized (this) {
+            if (!mFailed) {
+                try {
+                    write(System.currentTimeMillis(), priority, tag == null ? "" : tag,
+                            text(msg, tr));
+                } catch (IOException e) {
+                    // Give up on the file rather than fail every call
+                    mFailed = true;
+                    failure = e;
+                }
+            }
+        }
+        if (mNext != null) {
+            mNext.println(priority, tag, msg, tr);
+            if (failure != null) {
+                mNext.println(Log.ERROR, TAG, "Unable to write the log file", failure);
+            }
+        }
+    }
+
+    /**
+     * Writes the current segment out to storage.
+     */
+    public synchronized void flush() {
+        if (mSegment != null) {
+            mSegment.force();
+        }
+    }
+
+    /**
+     * Writes the current segment out and stops writing.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        mFailed = true;
+        mSegment = null;
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    private static CharSequence text(String msg, Throwable tr) {
+        if (tr == null) {
+            return msg == null ? "" : msg;
+        }
+        StringWriter text = new StringWriter();
+        if (msg != null) {
+            text.append(msg).append('\n');
+        }
+        tr.printStackTrace(new PrintWriter(text));
+        return text.getBuffer();
+    }
+
+    private void write(long timestamp, int priority, String tag, CharSequence text)
+            throws IOException {
+        if (!write(timestamp, priority, tag, text, false)) {
+            startSegment();
+            // Cut a message that would not fit even an empty segment
+            write(timestamp, priority, tag, text, true);
+        }
+    }
+
+    /**
+     * Writes an entry, and its tag first if the segment does not have it yet.
+     *
+     * @return false if it does not fit in the current segment, which then still ends at
+     * its last whole record
+     */
+    private boolean write(long timestamp, int priority, String tag, CharSequence text,
+                          boolean truncate) {
+        Integer id = mTagIds.get(tag);
+        if (id == null) {
+            if (mTagIds.size() > MAX_TAG_ID) {
+                return false;
+            }
+            id = mTagIds.size();
+            ByteBuffer out = beginRecord(RECORD_TAG, 2);
+            if (out == null) {
+                return false;
+            }
+            out.putShort((short) (int) id);
+            if (!encode(tag, out, truncate)) {
+                return false;
+            }
+            commitRecord(out);
+            mTagIds.put(tag, id);
+        }
+
+        ByteBuffer out = beginRecord(RECORD_ENTRY, ENTRY_HEADER_LENGTH - 1);
+        if (out == null) {
+            return false;
+        }
+        out.putLong(timestamp);
+        out.put((byte) priority);
+        out.putShort((short) (int) id);
+        if (!encode(text, out, truncate)) {
+            return false;
+        }
+        commitRecord(out);
+        return true;
+    }
+
+    /**
+     * Returns a buffer positioned after the type byte of a new record, or null if the
+     * record header and the given number of bytes do not fit.
+     */
+    private ByteBuffer beginRecord(int type, int length) {
+        if (mPosition + RECORD_HEADER_LENGTH + 1 + length > mSegmentSize) {
+            return null;
+        }
+        ByteBuffer out = mSegment.duplicate();
+        out.position(mPosition + RECORD_HEADER_LENGTH);
+        out.put((byte) type);
+        return out;
+    }
+
+    private boolean encode(CharSequence text, ByteBuffer out, boolean truncate) {
+        mEncoder.reset();
+        if (mEncoder.encode(CharBuffer.wrap(text), out, true).isOverflow() && !truncate) {
+            return false;
+        }
+        mEncoder.flush(out);
+        return true;
+    }
+
+    private void commitRecord(ByteBuffer out) {
+        int start = mPosition + RECORD_HEADER_LENGTH;
+        ByteBuffer payload = mSegment.duplicate();
+        payload.position(start);
+        payload.limit(out.position());
+        mCrc.reset();
+        mCrc.update(payload);
+        mSegment.putInt(mPosition + 4, (int) mCrc.getValue());
+        // The length goes in last; until it does, readers see the end of the segment here
+        mSegment.putInt(mPosition, out.position() - start);
+        mPosition = out.position();
+    }
+
+    /**
+     * Opens a segment written before to append to it, picking up its tags.
+     *
+     * @return false if the file is not a whole segment of our size
+     */
+    private boolean resumeSegment(File file) throws IOException {
+        if (file.length() != mSegmentSize) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer segment;
+        try {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+            raf.close();
+            return false;
+        }
+
+        int position = SEGMENT_HEADER_LENGTH;
+        while (position + RECORD_HEADER_LENGTH < mSegmentSize) {
+            int length = segment.getInt(position);
+            int start = position + RECORD_HEADER_LENGTH;
+            if (length <= 0 || length > mSegmentSize - start) {
+                break;
+            }
+            ByteBuffer payload = segment.duplicate();
+            payload.position(start);
+            payload.limit(start + length);
+            mCrc.reset();
+            mCrc.update(payload);
+            if ((int) mCrc.getValue() != segment.getInt(position + 4)) {
+                break;
+            }
+            if (segment.get(start) == RECORD_TAG) {
+                payload.position(start + 1);
+                int id = payload.getShort();
+                mTagIds.put(StandardCharsets.UTF_8.decode(payload).toString(), id);
+            }
+            position = start + length;
+        }
+        // Drop whatever a crash left of the next record
+        if (position + 4 <= mSegmentSize) {
+            segment.putInt(position, 0);
+        }
+
+        mChannel = raf.getChannel();
+        mSegment = segment;
+        mPosition = position;
+        return true;
+    }
+
+    private void startSegment() throws IOException {
+        if (mChannel != null) {
+            mSegment.force();
+            mChannel.close();
+        }
+        mSegmentNumber++;
+        File file = new File(mDirectory,
+                String.format("%s%08d%s", SEGMENT_PREFIX, mSegmentNumber, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Zero filled, so the first record length reads as the end
+            raf.setLength(0);
+            raf.setLength(mSegmentSize);
+            mChannel = raf.getChannel();
+            mSegment = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } catch (IOException e) {
+            raf.close();
+            mChannel = null;
+            throw e;
+        }
+        mSegment.putInt(0, MAGIC);
+        mSegment.putInt(4, VERSION);
+        mSegment.putLong(8, System.currentTimeMillis());
+        mPosition = SEGMENT_HEADER_LENGTH;
+        mTagIds.clear();
+
+        File[] segments = listSegments(mDirectory);
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            segments[i].delete();
+        }
+    }
+
+    /**
+     * Returns the segment files in a directory, oldest first.
+     */
+    static File[] listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (segmentNumber(file) > 0) {
+                files[count++] = file;
+            }
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        Arrays.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Integer.compare(segmentNumber(a), segmentNumber(b));
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * Returns the number in a segment file name, or 0 if it is not a segment file.
+     */
+    static int segmentNumber(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the segment files written by {@link LogFileNode}. Uses nothing from Android, so it
+ * also runs on a desktop JVM against files pulled from a device:
+ *
+ * <pre>
+ * adb exec-out run-as com.example.android.bluetoothchat tar c files/logs | tar x
+ * java -cp build/intermediates/javac/debug/classes \
+ *     com.example.android.common.logger.LogFileReader \
+ *     --from 2014-06-01T12:00:00 --level W --tag BluetoothChatService files/logs
+ * </pre>
+ *
+ * <p>Segments are mapped rather than read, so only the pages holding records that are
+ * looked at are loaded. A segment entirely outside the time range is skipped unread, as
+ * is the message of an entry that does not pass the filter.</p>
+ */
+public class LogFileReader {
+
+    private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+    private static final String PRIORITY_LETTERS = "??VDIWEA";
+
+    /**
+     * Receives the entries that pass the filter, in the order they were written.
+     */
+    public interface EntryListener {
+        void onEntry(long timestamp, int priority, String tag, String msg);
+    }
+
+    private long mFrom = Long.MIN_VALUE;
+    private long mTo = Long.MAX_VALUE;
+    private int mMinPriority = Log.VERBOSE;
+    private final Set<String> mTags = new HashSet<>();
+
+    /**
+     * Only passes entries from this time on, in milliseconds since the epoch.
+     */
+    public void setFrom(long from) {
+        mFrom = from;
+    }
+
+    /**
+     * Only passes entries before this time, in milliseconds since the epoch.
+     */
+    public void setTo(long to) {
+        mTo = to;
+    }
+
+    public void setMinPriority(int minPriority) {
+        mMinPriority = minPriority;
+    }
+
+    /**
+     * Only passes entries with this tag. Can be called for several tags.
+     */
+    public void addTag(String tag) {
+        mTags.add(tag);
+    }
+
+    /**
+     * Reads the entries that pass the filter from segment files, or directories of them.
+     * A segment that is not one, or whose end is damaged, is read up to the problem.
+     */
+    public void read(List<File> paths, EntryListener listener) throws IOException {
+        List<File> segments = new ArrayList<>();
+        for (File path : paths) {
+            if (path.isDirectory()) {
+                segments.addAll(Arrays.asList(LogFileNode.listSegments(path)));
+            } else {
+                segments.add(path);
+            }
+        }
+
+        // A segment's entries are all older than the next segment, which lets most
+        // segments outside the time range go unread
+        long[] created = new long[segments.size()];
+        for (int i = 0; i < segments.size(); i++) {
+            created[i] = createdTime(segments.get(i));
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            boolean endsBeforeFrom = i + 1 < segments.size() && created[i + 1] > 0
+                    && created[i + 1] < mFrom;
+            if (created[i] >= mTo || endsBeforeFrom) {
+                continue;
+            }
+            readSegment(segments.get(i), listener);
+        }
+    }
+
+    private static long createdTime(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < LogFileNode.SEGMENT_HEADER_LENGTH
+                    || raf.readInt() != LogFileNode.MAGIC
+                    || raf.readInt() != LogFileNode.VERSION) {
+                return -1;
+            }
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void readSegment(File file, EntryListener listener) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (segment.limit() < LogFileNode.SEGMENT_HEADER_LENGTH
+                    || segment.getInt(0) != LogFileNode.MAGIC
+                    || segment.getInt(4) != LogFileNode.VERSION) {
+                return;
+            }
+
+            // Tag names by id, and whether each passes the filter
+            Map<Integer, String> tags = new HashMap<>();
+            Set<Integer> wantedTags = new HashSet<>();
+            CRC32 crc = new CRC32();
+            int position = LogFileNode.SEGMENT_HEADER_LENGTH;
+            while (position + LogFileNode.RECORD_HEADER_LENGTH < segment.limit()) {
+                int length = segment.getInt(position);
+                int start = position + LogFileNode.RECORD_HEADER_LENGTH;
+                if (length <= 0 || length > segment.limit() - start) {
+                    // The end of what was written
+                    break;
+                }
+                ByteBuffer payload = segment.duplicate();
+                payload.position(start);
+                payload.limit(start + length);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != segment.getInt(position + 4)) {
+                    // A record cut short by a crash
+                    break;
+                }
+                payload.position(start);
+
+                int type = payload.get();
+                if (type == LogFileNode.RECORD_TAG) {
+                    int id = payload.getShort();
+                    String tag = StandardCharsets.UTF_8.decode(payload).toString();
+                    tags.put(id, tag);
+                    if (mTags.isEmpty() || mTags.contains(tag)) {
+                        wantedTags.add(id);
+                    }
+                } else if (type == LogFileNode.RECORD_ENTRY
+                        && length >= LogFileNode.ENTRY_HEADER_LENGTH) {
+                    long timestamp = payload.getLong();
+                    int priority = payload.get();
+                    int id = payload.getShort();
+                    if (timestamp >= mFrom && timestamp < mTo && wantedTags.contains(id)
+                            && (priority == Log.NONE || priority >= mMinPriority)) {
+                        listener.onEntry(timestamp, priority, tags.get(id),
+                                StandardCharsets.UTF_8.decode(payload).toString());
+                    }
+                }
+                position = start + length;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void usage(PrintStream out) {
+        out.println("Usage: LogFileReader [--from TIME] [--to TIME] [--tag TAG]..."
+                + " [--level V|D|I|W|E|A] DIR|SEGMENT...");
+        out.println("TIME is " + TIME_FORMAT + " in local time, or milliseconds since the epoch");
+    }
+
+    private static long parseTime(String text) throws ParseException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return new SimpleDateFormat(TIME_FORMAT, Locale.US).parse(text).getTime();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        LogFileReader reader = new LogFileReader();
+        List<File> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--from") && i + 1 < args.length) {
+                    reader.setFrom(parseTime(args[++i]));
+                } else if (arg.equals("--to") && i + 1 < args.length) {
+                    reader.setTo(parseTime(args[++i]));
+                } else if (arg.equals("--tag") && i + 1 < args.length) {
+                    reader.addTag(args[++i]);
+                } else if (arg.equals("--level") && i + 1 < args.length) {
+                    int priority = PRIORITY_LETTERS.indexOf(args[++i].toUpperCase(Locale.US));
+                    if (priority < Log.VERBOSE) {
+                        throw new IllegalArgumentException("Unknown level " + args[i]);
+                    }
+                    reader.setMinPriority(priority);
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    paths.add(new File(arg));
+                }
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage(System.err);
+            System.exit(2);
+        }
+        if (paths.isEmpty()) {
+            usage(System.err);
+            System.exit(2);
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS",
+                Locale.US);
+        final PrintStream out = System.out;
+        reader.read(paths, new EntryListener() {
+            @Override
+            public void onEntry(long timestamp, int priority, String tag, String msg) {
+                char letter = priority >= 0 && priority < PRIORITY_LETTERS.length()
+                        ? PRIORITY_LETTERS.charAt(priority) : '?';
+                out.println(format.format(new Date(timestamp)) + " " + letter + "/" + tag
+                        + ": " + msg);
+            }
+        });
+        out.flush();
+    }
+}
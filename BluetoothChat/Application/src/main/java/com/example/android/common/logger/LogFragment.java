@@ -31,55 +31,80 @@
 
 package com.example.android.common.logger;
 
-import android.graphics.Typeface;
 import android.os.Bundle;
 import androidx.fragment.app.Fragment;
 import android.text.Editable;
 import android.text.TextWatcher;
-import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ScrollView;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.Spinner;
 
 /**
- * Simple fraggment which contains a LogView and uses is to output log data it receives
- * through the LogNode interface.
+ * Simple fraggment which contains a list of the latest log data it receives through the
+ * LogNode interface, with a choice of lowest priority to show and a search field.
  */
 public class LogFragment extends Fragment {
 
-    private LogView mLogView;
-    private ScrollView mScrollView;
+    // Choices for the lowest priority shown, and the priorities they stand for
+    private static final String[] LEVEL_NAMES = {"VERBOSE", "DEBUG", "INFO", "WARN", "ERROR"};
+    private static final int[] LEVELS = {Log.VERBOSE, Log.DEBUG, Log.INFO, Log.WARN, Log.ERROR};
+
+    // Kept across view recreation, so the log survives rotation
+    private final LogListAdapter mLogAdapter = new LogListAdapter();
+    private ListView mListView;
+    private Spinner mLevelSpinner;
+    private EditText mSearchText;
 
     public LogFragment() {}
 
     public View inflateViews() {
-        mScrollView = new ScrollView(getActivity());
-        ViewGroup.LayoutParams scrollParams = new ViewGroup.LayoutParams(
+        LinearLayout layout = new LinearLayout(getActivity());
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.setLayoutParams(new ViewGroup.LayoutParams(
                 ViewGroup.LayoutParams.MATCH_PARENT,
-                ViewGroup.LayoutParams.MATCH_PARENT);
-        mScrollView.setLayoutParams(scrollParams);
-
-        mLogView = new LogView(getActivity());
-        ViewGroup.LayoutParams logParams = new ViewGroup.LayoutParams(scrollParams);
-        logParams.height = ViewGroup.LayoutParams.WRAP_CONTENT;
-        mLogView.setLayoutParams(logParams);
-        mLogView.setClickable(true);
-        mLogView.setFocusable(true);
-        mLogView.setTypeface(Typeface.MONOSPACE);
+                ViewGroup.LayoutParams.MATCH_PARENT));
 
         // Want to set padding as 16 dips, setPadding takes pixels.  Hooray math!
         int paddingDips = 16;
         double scale = getResources().getDisplayMetrics().density;
         int paddingPixels = (int) ((paddingDips * (scale)) + .5);
-        mLogView.setPadding(paddingPixels, paddingPixels, paddingPixels, paddingPixels);
-        mLogView.setCompoundDrawablePadding(paddingPixels);
-
-        mLogView.setGravity(Gravity.BOTTOM);
-        mLogView.setTextAppearance(getActivity(), android.R.style.TextAppearance_Holo_Medium);
 
-        mScrollView.addView(mLogView);
-        return mScrollView;
+        LinearLayout filterRow = new LinearLayout(getActivity());
+        filterRow.setOrientation(LinearLayout.HORIZONTAL);
+        filterRow.setPadding(paddingPixels, 0, paddingPixels, 0);
+        mLevelSpinner = new Spinner(getActivity());
+        ArrayAdapter<String> levels = new ArrayAdapter<>(getActivity(),
+                android.R.layout.simple_spinner_item, LEVEL_NAMES);
+        levels.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        mLevelSpinner.setAdapter(levels);
+        filterRow.addView(mLevelSpinner, new LinearLayout.LayoutParams(
+                ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        mSearchText = new EditText(getActivity());
+        mSearchText.setHint(android.R.string.search_go);
+        mSearchText.setSingleLine(true);
+        filterRow.addView(mSearchText, new LinearLayout.LayoutParams(
+                0, ViewGroup.LayoutParams.WRAP_CONTENT, 1));
+        layout.addView(filterRow);
+
+        mListView = new ListView(getActivity());
+        mListView.setPadding(paddingPixels, 0, paddingPixels, paddingPixels);
+        mListView.setClipToPadding(false);
+        mListView.setDivider(null);
+        // Stay at the newest record while it is in view, like a terminal
+        mListView.setTranscriptMode(AbsListView.TRANSCRIPT_MODE_NORMAL);
+        mListView.setStackFromBottom(true);
+        mLogAdapter.setTextAppearance(android.R.style.TextAppearance_Holo_Medium);
+        mListView.setAdapter(mLogAdapter);
+        layout.addView(mListView, new LinearLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, 0, 1));
+        return layout;
     }
 
     @Override
@@ -88,7 +113,16 @@ public class LogFragment extends Fragment {
 
         View result = inflateViews();
 
-        mLogView.addTextChangedListener(new TextWatcher() {
+        mLevelSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                applyFilter();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {}
+        });
+        mSearchText.addTextChangedListener(new TextWatcher() {
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
 
@@ -97,13 +131,25 @@ public class LogFragment extends Fragment {
 
             @Override
             public void afterTextChanged(Editable s) {
-                mScrollView.fullScroll(ScrollView.FOCUS_DOWN);
+                applyFilter();
             }
         });
         return result;
     }
 
-    public LogView getLogView() {
-        return mLogView;
+    private void applyFilter() {
+        int level = LEVELS[Math.max(0, mLevelSpinner.getSelectedItemPosition())];
+        String query = mSearchText.getText().toString();
+        LogRing records = mLogAdapter.getRecords();
+        if (level != records.getMinPriority() || !query.equals(records.getQuery())) {
+            mLogAdapter.setFilter(level, query);
+        }
+    }
+
+    /**
+     * Returns the LogNode that shows log data in this fragment.
+     */
+    public LogListAdapter getLogAdapter() {
+        return mLogAdapter;
     }
-}
\ No newline at end of file
+}
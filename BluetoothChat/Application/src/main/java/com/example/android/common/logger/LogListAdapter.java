@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Adapter that shows log data received through the LogNode interface in a list, one row
+ * per record. Only the last records are kept, in a {@link LogRing}, and a list view only
+ * builds the rows on screen, recycling them as it scrolls, so neither memory use nor
+ * layout cost grows with the length of the log.
+ *
+ * <p>Log data can come from any thread. It is held in a second ring until the UI thread
+ * moves it over, all that has arrived in one go, and updates the list.</p>
+ */
+public class LogListAdapter extends BaseAdapter implements LogNode {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final LogRing mRecords;
+    // Records waiting for the UI thread; guarded by itself
+    private final LogRing mPending;
+    private boolean mMovePosted;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mTextAppearance;
+
+    // The next LogNode in the chain.
+    private LogNode mNext;
+
+    public LogListAdapter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of records to keep
+     */
+    public LogListAdapter(int capacity) {
+        mRecords = new LogRing(capacity);
+        mPending = new LogRing(capacity);
+    }
+
+    /**
+     * Keeps the log data to show in the list.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        boolean post;
+        synchronized (mPending) {
+            mPending.add(priority, tag, msg, tr);
+            post = !mMovePosted;
+            mMovePosted = true;
+        }
+        if (post) {
+            mHandler.post(mMovePending);
+        }
+
+        if (mNext != null) {
+            mNext.println(priority, tag, msg, tr);
+        }
+    }
+
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /**
+     * Shows only the records at or above a priority that contain some text. Call on the
+     * UI thread.
+     *
+     * @param minPriority The lowest priority to show, such as {@link Log#DEBUG}
+     * @param query Text the message or tag must contain, ignoring case; empty for any
+     */
+    public void setFilter(int minPriority, String query) {
+        mRecords.setFilter(minPriority, query);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the filtered records; read it on the UI thread only.
+     */
+    public LogRing getRecords() {
+        return mRecords;
+    }
+
+    /**
+     * Sets the text appearance of the rows, such as
+     * {@code android.R.style.TextAppearance_Holo_Medium}.
+     */
+    public void setTextAppearance(int resId) {
+        mTextAppearance = resId;
+        notifyDataSetChanged();
+    }
+
+    private final Runnable mMovePending = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPending) {
+                for (int i = 0; i < mPending.size(); i++) {
+                    mRecords.add(mPending.getPriority(i), mPending.getTag(i),
+                            mPending.getMessage(i), mPending.getThrowable(i));
+                }
+                mPending.clear();
+                mMovePosted = false;
+            }
+            notifyDataSetChanged();
+        }
+    };
+
+    @Override
+    public int getCount() {
+        return mRecords.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mRecords.getMessage(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRecords.getSequence(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView row = (TextView) convertView;
+        if (row == null) {
+            row = new TextView(parent.getContext());
+            row.setTypeface(Typeface.MONOSPACE);
+            if (mTextAppearance != 0) {
+                row.setTextAppearance(mTextAppearance);
+            }
+        }
+        String msg = mRecords.getMessage(position);
+        Throwable tr = mRecords.getThrowable(position);
+        if (tr != null) {
+            msg = (msg == null ? "" : msg + "\n") + android.util.Log.getStackTraceString(tr);
+        }
+        row.setText(msg);
+        return row;
+    }
+}
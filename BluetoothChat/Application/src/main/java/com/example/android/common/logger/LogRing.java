@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+/**
+ * Holds the last records of log data in a fixed number of slots, overwriting the oldest
+ * once full, so its memory use does not grow however long the app runs.
+ *
+ * <p>A filter on priority and text picks the records shown; positions count the matching
+ * records only, oldest first. The ring keeps the sequence numbers of the matches in a
+ * second ring, so filtering copies no log data, and a new record is matched once, as it
+ * comes in. Changing the filter scans the ring again.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public class LogRing {
+
+    private final int mCapacity;
+    private final int[] mPriorities;
+    private final String[] mTags;
+    private final String[] mMessages;
+    private final Throwable[] mThrowables;
+    // The number of records ever added; record s is in slot s % capacity while it is kept
+    private long mAdded;
+
+    private int mMinPriority = Log.VERBOSE;
+    private String mQuery = "";
+    // Sequence numbers of the kept records that pass the filter, oldest first
+    private final long[] mMatches;
+    private int mMatchStart;
+    private int mMatchCount;
+
+    /**
+     * @param capacity The number of records to keep
+     */
+    public LogRing(int capacity) {
+        mCapacity = capacity;
+        mPriorities = new int[capacity];
+        mTags = new String[capacity];
+        mMessages = new String[capacity];
+        mThrowables = new Throwable[capacity];
+        mMatches = new long[capacity];
+    }
+
+    /**
+     * Adds a record, overwriting the oldest one if the ring is full.
+     */
+    public void add(int priority, String tag, String msg, Throwable tr) {
+        long sequence = mAdded;
+        if (sequence >= mCapacity && mMatchCount > 0
+                && mMatches[mMatchStart] == sequence - mCapacity) {
+            // The oldest record goes, and with it the oldest match
+            mMatchStart = (mMatchStart + 1) % mCapacity;
+            mMatchCount--;
+        }
+        int slot = (int) (sequence % mCapacity);
+        mPriorities[slot] = priority;
+        mTags[slot] = tag;
+        mMessages[slot] = msg;
+        mThrowables[slot] = tr;
+        mAdded++;
+        if (matches(slot)) {
+            mMatches[(mMatchStart + mMatchCount) % mCapacity] = sequence;
+            mMatchCount++;
+        }
+    }
+
+    /**
+     * Drops every record.
+     */
+    public void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            mTags[i] = null;
+            mMessages[i] = null;
+            mThrowables[i] = null;
+        }
+        mAdded = 0;
+        mMatchStart = 0;
+        mMatchCount = 0;
+    }
+
+    /**
+     * Returns the number of kept records that pass the filter.
+     */
+    public int size() {
+        return mMatchCount;
+    }
+
+    public int getPriority(int position) {
+        return mPriorities[slot(position)];
+    }
+
+    public String getTag(int position) {
+        return mTags[slot(position)];
+    }
+
+    public String getMessage(int position) {
+        return mMessages[slot(position)];
+    }
+
+    public Throwable getThrowable(int position) {
+        return mThrowables[slot(position)];
+    }
+
+    /**
+     * Returns the sequence number of a record, which stays the same as the ring moves
+     * on and as the filter changes.
+     */
+    public long getSequence(int position) {
+        if (position < 0 || position >= mMatchCount) {
+            throw new IndexOutOfBoundsException(position + " of " + mMatchCount);
+        }
+        return mMatches[(mMatchStart + position) % mCapacity];
+    }
+
+    /**
+     * Shows only the records at or above a priority that contain some text.
+     *
+     * @param minPriority The lowest priority to show, such as {@link Log#DEBUG}
+     * @param query Text the message or tag must contain, ignoring case; empty for any
+     */
+    public void setFilter(int minPriority, String query) {
+        mMinPriority = minPriority;
+        mQuery = query == null ? "" : query;
+        mMatchStart = 0;
+        mMatchCount = 0;
+        for (long sequence = Math.max(0, mAdded - mCapacity); sequence < mAdded; sequence++) {
+            if (matches((int) (sequence % mCapacity))) {
+                mMatches[mMatchCount++] = sequence;
+            }
+        }
+    }
+
+    public int getMinPriority() {
+        return mMinPriority;
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    private int slot(int position) {
+        return (int) (getSequence(position) % mCapacity);
+    }
+
+    private boolean matches(int slot) {
+        // Records logged without a priority always pass
+        int priority = mPriorities[slot];
+        if (priority != Log.NONE && priority < mMinPriority) {
+            return false;
+        }
+        return mQuery.isEmpty() || contains(mMessages[slot], mQuery)
+                || contains(mTags[slot], mQuery);
+    }
+
+    /**
+     * Returns whether text contains a query, ignoring case, without making lowercase copies.
+     */
+    private static boolean contains(String text, String query) {
+        if (text == null) {
+            return false;
+        }
+        for (int i = 0, last = text.length() - query.length(); i <= last; i++) {
+            if (text.regionMatches(true, i, query, 0, query.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link LogNode} filter that thins out the log data of tags that log too often, such as
+ * code that logs every packet, so they do not flood the rest of the chain.
+ *
+ * <p>Each tag can have a rate limit, a token bucket that passes a burst of records and
+ * then a steady number per second, and can be sampled, passing one record in N picked at
+ * random. Errors always pass. The number of records each tag had suppressed is reported
+ * down the chain every so often, by whichever thread logs once the report is due.</p>
+ *
+ * <p>Nothing here locks: the rules are replaced rather than changed, a bucket is a single
+ * compare-and-set, sampling draws a per-thread random number and the counters are
+ * striped, so threads logging at the same time do not wait on each other.</p>
+ */
+public class RateLimitLogFilter implements LogNode {
+
+    public static final long DEFAULT_REPORT_INTERVAL_MILLIS = 10000;
+
+    private static final String TAG = "RateLimitLogFilter";
+
+    // The next LogNode in the chain.
+    private volatile LogNode mNext;
+
+    // Rules by tag. Replaced rather than changed, so it can be read without a lock.
+    private volatile Map<String, Rule> mRules = Collections.emptyMap();
+
+    private final long mReportIntervalNanos;
+    private final AtomicLong mNextReport;
+
+    public RateLimitLogFilter() {
+        this(DEFAULT_REPORT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param reportIntervalMillis The shortest time between two reports of suppressed records
+     */
+    public RateLimitLogFilter(long reportIntervalMillis) {
+        mReportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+        mNextReport = new AtomicLong(System.nanoTime() + mReportIntervalNanos);
+    }
+
+    /**
+     * Limits a tag to a burst of records, then a steady rate, and samples what passes.
+     * Replaces the tag's previous rule and its counts.
+     *
+     * @param tag Tag for for the log data.
+     * @param perSecond Records passed per second once the burst is spent; 0 for no limit
+     * @param burst Records that can pass at once after a quiet spell
+     * @param sampleEvery Passes one record in this many; 1 passes them all
+     */
+    public synchronized void setRule(String tag, double perSecond, int burst, int sampleEvery) {
+        Map<String, Rule> rules = new HashMap<>(mRules);
+        rules.put(tag, new Rule(perSecond, burst, sampleEvery));
+        mRules = rules;
+    }
+
+    /**
+     * Limits a tag to a burst of records, then a steady rate.
+     */
+    public void setRateLimit(String tag, double perSecond, int burst) {
+        setRule(tag, perSecond, burst, 1);
+    }
+
+    /**
+     * Passes one record in N of a tag.
+     */
+    public void setSampling(String tag, int sampleEvery) {
+        setRule(tag, 0, 0, sampleEvery);
+    }
+
+    /**
+     * Lets every record of a tag through again.
+     */
+    public synchronized void clearRule(String tag) {
+        Map<String, Rule> rules = new HashMap<>(mRules);
+        rules.remove(tag);
+        mRules = rules.isEmpty() ? Collections.<String, Rule>emptyMap() : rules;
+    }
+
+    /**
+     * Returns the number of records of a tag suppressed since it was last reported.
+     */
+    public long getSuppressedCount(String tag) {
+        Rule rule = mRules.get(tag);
+        return rule == null ? 0 : rule.mmSuppressed.sum();
+    }
+
+    /**
+     * Passes the log data on unless its tag is over its limit or not sampled.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        Map<String, Rule> rules = mRules;
+        long now = System.nanoTime();
+        if (!rules.isEmpty()) {
+            if (now - mNextReport.get() >= 0) {
+                report(rules, now);
+            }
+            Rule rule = tag == null ? null : rules.get(tag);
+            if (rule != null && priority < Log.ERROR && !rule.pass(now)) {
+                rule.mmSuppressed.increment();
+                return;
+            }
+        }
+        LogNode next = mNext;
+        if (next != null) {
+            next.println(priority, tag, msg, tr);
+        }
+    }
+
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /**
+     * Reports the records suppressed since the last report, if no other thread has taken
+     * this one on.
+     */
+    private void report(Map<String, Rule> rules, long now) {
+        long due = mNextReport.get();
+        if (now - due < 0 || !mNextReport.compareAndSet(due, now + mReportIntervalNanos)) {
+            return;
+        }
+        LogNode next = mNext;
+        for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+            long suppressed = entry.getValue().mmSuppressed.sumThenReset();
+            if (suppressed > 0 && next != null) {
+                next.println(Log.INFO, TAG, "Suppressed " + suppressed + " log records of "
+                        + entry.getKey(), null);
+            }
+        }
+    }
+
+    /**
+     * The limits of one tag and their state.
+     */
+    private static class Rule {
+        private final long mmIntervalNanos;
+        private final long mmBurstNanos;
+        private final int mmSampleEvery;
+
+        // The token bucket, as the time it will be full again. A record moves that on by
+        // one interval, and passes if it is then no more than a burst's worth from now.
+        private final AtomicLong mmFullAt = new AtomicLong(Long.MIN_VALUE / 2);
+        // Striped, so logging threads do not contend on one counter
+        private final LongAdder mmSuppressed = new LongAdder();
+
+        Rule(double perSecond, int burst, int sampleEvery) {
+            mmIntervalNanos = perSecond > 0
+                    ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+            mmBurstNanos = mmIntervalNanos * Math.max(1, burst);
+            mmSampleEvery = Math.max(1, sampleEvery);
+        }
+
+        boolean pass(long now) {
+            // Picked at random, which needs no state shared between threads
+            if (mmSampleEvery > 1
+                    && ThreadLocalRandom.current().nextInt(mmSampleEvery) != 0) {
+                return false;
+            }
+            if (mmIntervalNanos == 0) {
+                return true;
+            }
+            while (true) {
+                long fullAt = mmFullAt.get();
+                long start = Math.max(fullAt, now);
+                if (start + mmIntervalNanos - now > mmBurstNanos) {
+                    return false;
+                }
+                if (mmFullAt.compareAndSet(fullAt, start + mmIntervalNanos)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Measures how fast {@link FrameCodec} decodes a stream of chat sized frames.
+ * Not a unit test; run {@link #main} from the test classpath.
+ */
+public class FrameCodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 4096; i++) {
+            stream.write(FrameCodecTest.frame(FrameType.CHAT, 32 + i % 64));
+        }
+        byte[] bytes = stream.toByteArray();
+        final int[] delivered = new int[1];
+        FrameCodec.FrameListener counter = new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                delivered[0]++;
+            }
+        };
+        FrameCodec codec = new FrameCodec();
+        // Warm up the JIT before measuring
+        for (int i = 0; i < 200; i++) {
+            readAll(codec, bytes, counter);
+        }
+        int rounds = 2000;
+        delivered[0] = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            readAll(codec, bytes, counter);
+        }
+        long nanos = System.nanoTime() - start;
+        if (delivered[0] != 4096 * rounds) {
+            throw new AssertionError("Delivered " + delivered[0] + " frames");
+        }
+        System.out.println(String.format(Locale.US, "FrameCodec  %8.0f frames/s  %7.1f MB/s",
+                delivered[0] * 1e9 / nanos, (double) bytes.length * rounds * 1e3 / nanos));
+    }
+
+    private static void readAll(FrameCodec codec, byte[] bytes, FrameCodec.FrameListener listener)
+            throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes);
+        while (codec.readFrom(in, listener) >= 0) {
+            // Keep reading
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks {@link FrameCodec} against a byte array standing in for the socket:
+ * frames cut at every byte, lengths either side of a varint boundary, frames
+ * too long to accept and many frames in one read. {@link FrameCodecBenchmark}
+ * measures how fast it decodes.
+ */
+public class FrameCodecTest {
+
+    private static final int[] BOUNDARY_LENGTHS = {0, 1, 127, 128, 16383, 16384};
+
+    @Test
+    public void splitAtEveryByte() throws IOException {
+        byte[] stream = concat(frame(FrameType.CHAT, 5), frame(FrameType.PING, 0),
+                frame(FrameType.FILE_CHUNK, 300));
+        for (int split = 0; split <= stream.length; split++) {
+            FrameCodec codec = new FrameCodec();
+            Frames frames = new Frames();
+            codec.feed(stream, 0, split, frames);
+            codec.feed(stream, split, stream.length - split, frames);
+            assertEquals("split at " + split, 3, frames.size());
+            frames.assertFrame(0, FrameType.CHAT, 5);
+            frames.assertFrame(1, FrameType.PING, 0);
+            frames.assertFrame(2, FrameType.FILE_CHUNK, 300);
+            assertEquals(0, codec.getBufferedLength());
+        }
+
+        // A byte at a time
+        FrameCodec codec = new FrameCodec();
+        Frames frames = new Frames();
+        InputStream in = new OneByteInputStream(stream);
+        while (codec.readFrom(in, frames) >= 0) {
+            // Keep reading
+        }
+        assertEquals(3, frames.size());
+        frames.assertFrame(2, FrameType.FILE_CHUNK, 300);
+    }
+
+    @Test
+    public void varintBoundaries() throws IOException {
+        for (int length : BOUNDARY_LENGTHS) {
+            byte[] frame = frame(FrameType.CHAT, length);
+            int expectedHeader = length < 128 ? 2 : length < 16384 ? 3 : 4;
+            assertEquals("length " + length, expectedHeader, FrameCodec.headerLength(length));
+            assertEquals(expectedHeader + length, frame.length);
+
+            FrameCodec codec = new FrameCodec();
+            Frames frames = new Frames();
+            codec.feed(frame, 0, frame.length, frames);
+            assertEquals(1, frames.size());
+            frames.assertFrame(0, FrameType.CHAT, length);
+        }
+    }
+
+    @Test
+    public void largestFrameIsAccepted() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        Frames frames = new Frames();
+        byte[] frame = frame(FrameType.CHAT, FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+        codec.feed(frame, 0, frame.length, frames);
+        frames.assertFrame(0, FrameType.CHAT, FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+
+        // The longest message the sender lets through fits in it
+        assertEquals(FrameCodec.DEFAULT_MAX_FRAME_LENGTH,
+                DeliveryWindow.SEQUENCE_LENGTH + DeliveryWindow.MAX_MESSAGE_LENGTH);
+        DeliveryWindow window = new DeliveryWindow(null, 1, 1);
+        assertTrue(window.send(new byte[DeliveryWindow.MAX_MESSAGE_LENGTH]));
+        assertFalse(window.send(new byte[DeliveryWindow.MAX_MESSAGE_LENGTH + 1]));
+    }
+
+    @Test
+    public void oversizedLengthIsRejected() {
+        // Only the header is needed to tell the frame is too long
+        byte[] header = new byte[FrameCodec.MAX_HEADER_LENGTH];
+        int length = FrameCodec.writeHeader(FrameType.CHAT, 1025, header, 0);
+        FrameCodec codec = new FrameCodec(1024);
+        try {
+            codec.feed(header, 0, length, new Frames());
+            fail("Accepted a frame longer than the limit");
+        } catch (IOException expected) {
+            // Expected
+        }
+
+        // As is a varint too long for an int
+        byte[] malformed = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0};
+        try {
+            new FrameCodec().feed(malformed, 0, malformed.length, new Frames());
+            fail("Accepted a malformed header");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void manyFramesInOneRead() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            stream.write(frame(FrameType.CHAT, i % 40));
+        }
+        byte[] bytes = stream.toByteArray();
+        // Small enough for the ring, so one read takes all of it
+        FrameCodec codec = new FrameCodec();
+        Frames frames = new Frames();
+        assertEquals(bytes.length, codec.readFrom(new ByteArrayInputStream(bytes), frames));
+        assertEquals(count, frames.size());
+        for (int i = 0; i < count; i++) {
+            frames.assertFrame(i, FrameType.CHAT, i % 40);
+        }
+        assertEquals(0, codec.getBufferedLength());
+    }
+
+    /**
+     * Return a frame whose payload bytes count up from its length, so a
+     * payload delivered out of place shows.
+     */
+    static byte[] frame(int type, int length) {
+        return FrameCodec.encode(type, payload(length));
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (length + i);
+        }
+        return payload;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Collects a copy of every frame delivered.
+     */
+    private static class Frames implements FrameCodec.FrameListener {
+        private final List<Integer> mTypes = new ArrayList<>();
+        private final List<byte[]> mPayloads = new ArrayList<>();
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) {
+            mTypes.add(type);
+            mPayloads.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        int size() {
+            return mTypes.size();
+        }
+
+        void assertFrame(int index, int type, int length) {
+            assertEquals(type, (int) mTypes.get(index));
+            assertArrayEquals(payload(length), mPayloads.get(index));
+        }
+    }
+
+    /**
+     * Returns at most one byte from every read, like a slow socket.
+     */
+    private static class OneByteInputStream extends ByteArrayInputStream {
+        OneByteInputStream(byte[] buffer) {
+            super(buffer);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, 1));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the framing and write queue of {@link BluetoothChatService} over
+ * the JVM transports. Each run pushes timestamped messages through a
+ * {@link FrameWriter} on one end and a {@link FrameCodec} reader on the other,
+ * and reports messages per second and p50/p99 one-way latency.
+ * <p>
+ * Not a unit test, so {@code gradle test} does not spend time on it; run
+ * {@link #main} from the test classpath. {@link TransportTest} checks the
+ * same path for correctness. Set the system property
+ * {@code benchmark.minMessagesPerSecond} to make the runs fail below that
+ * throughput, e.g. in CI.
+ */
+public class TransportBenchmark {
+
+    private static final int[] MESSAGE_SIZES = {32, 512, 8 * 1024};
+    private static final long BYTES_PER_RUN = 16L * 1024 * 1024;
+    private static final int MAX_MESSAGES_PER_RUN = 50000;
+
+    /**
+     * A FrameWriter setup to compare.
+     */
+    private static class WriterConfig {
+        final String mmName;
+        final FrameWriter.Policy mmPolicy;
+        final int mmCapacity;
+        final int mmCoalesceBufferSize;
+
+        WriterConfig(String name, FrameWriter.Policy policy, int capacity,
+                     int coalesceBufferSize) {
+            mmName = name;
+            mmPolicy = policy;
+            mmCapacity = capacity;
+            mmCoalesceBufferSize = coalesceBufferSize;
+        }
+    }
+
+    private static final WriterConfig[] WRITER_CONFIGS = {
+            new WriterConfig("default", FrameWriter.Policy.BLOCK,
+                    FrameWriter.DEFAULT_CAPACITY, FrameWriter.DEFAULT_COALESCE_BUFFER_SIZE),
+            new WriterConfig("no-coalesce", FrameWriter.Policy.BLOCK,
+                    FrameWriter.DEFAULT_CAPACITY, 0),
+            new WriterConfig("deep-queue", FrameWriter.Policy.BLOCK, 1024,
+                    FrameWriter.DEFAULT_COALESCE_BUFFER_SIZE),
+    };
+
+    public static void main(String[] args) throws Exception {
+        TransportBenchmark benchmark = new TransportBenchmark();
+        benchmark.loopback();
+        benchmark.tcp();
+    }
+
+    private void loopback() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        Transport.Acceptor acceptor = transport.listen(false);
+        try {
+            runAll("loopback", transport, acceptor, "peer");
+        } finally {
+            acceptor.close();
+        }
+    }
+
+    private void tcp() throws Exception {
+        TcpTransport transport = new TcpTransport(0);
+        TcpTransport.TcpAcceptor acceptor = transport.listen(false);
+        try {
+            runAll("tcp", transport, acceptor, acceptor.getAddress());
+        } finally {
+            acceptor.close();
+        }
+    }
+
+    private void runAll(String transportName, Transport transport, Transport.Acceptor acceptor,
+                        String address) throws Exception {
+        double minRate = Double.parseDouble(
+                System.getProperty("benchmark.minMessagesPerSecond", "0"));
+        // Warm up the JIT before measuring
+        run(transport, acceptor, address, WRITER_CONFIGS[0], 512, 5000);
+        for (int size : MESSAGE_SIZES) {
+            int messages = (int) Math.min(MAX_MESSAGES_PER_RUN, BYTES_PER_RUN / size);
+            for (WriterConfig config : WRITER_CONFIGS) {
+                Result result = run(transport, acceptor, address, config, size, messages);
+                System.out.println(String.format(Locale.US,
+                        "%-8s %-12s %6d B  %10.0f msg/s  %8.1f MB/s  p50 %8.1f us  p99 %8.1f us",
+                        transportName, config.mmName, size, result.mmMessagesPerSecond,
+                        result.mmMessagesPerSecond * size / (1024 * 1024),
+                        result.mmP50Nanos / 1000.0, result.mmP99Nanos / 1000.0));
+                if (result.mmMessagesPerSecond < minRate) {
+                    throw new AssertionError(
+                            transportName + "/" + config.mmName + "/" + size + " too slow");
+                }
+            }
+        }
+    }
+
+    private static class Result {
+        double mmMessagesPerSecond;
+        long mmP50Nanos;
+        long mmP99Nanos;
+    }
+
+    private Result run(Transport transport, Transport.Acceptor acceptor, String address,
+                       WriterConfig config, int size, final int messages) throws Exception {
+        Transport.Connection client = transport.open(address, false);
+        client.connect();
+        final Transport.Connection server = acceptor.accept();
+
+        final long[] latencies = new long[messages];
+        final int[] received = new int[1];
+        final IOException[] failure = new IOException[1];
+        Thread reader = new Thread("BenchmarkReader") {
+            public void run() {
+                FrameCodec codec = new FrameCodec();
+                FrameCodec.FrameListener listener = new FrameCodec.FrameListener() {
+                    @Override
+                    public void onFrame(int type, byte[] buffer, int offset, int length) {
+                        latencies[received[0]++] = System.nanoTime() - getLong(buffer, offset);
+                    }
+                };
+                try {
+                    InputStream in = server.getInputStream();
+                    while (received[0] < messages && codec.readFrom(in, listener) >= 0) {
+                        // Keep reading
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        reader.start();
+
+        FrameWriter writer = new FrameWriter(client.getOutputStream(), NO_OP_LISTENER,
+                config.mmPolicy, config.mmCapacity, config.mmCoalesceBufferSize);
+        writer.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // The writer keeps a reference to each payload until it is written
+            byte[] payload = new byte[size];
+            putLong(payload, 0, System.nanoTime());
+            writer.enqueue(FrameType.CHAT, payload);
+        }
+        reader.join();
+        long elapsed = System.nanoTime() - start;
+
+        writer.close();
+        client.close();
+        server.close();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        if (received[0] != messages) {
+            throw new AssertionError("Received " + received[0] + " of " + messages);
+        }
+
+        Arrays.sort(latencies);
+        Result result = new Result();
+        result.mmMessagesPerSecond = messages * 1e9 / elapsed;
+        result.mmP50Nanos = latencies[messages / 2];
+        result.mmP99Nanos = latencies[(int) (messages * 0.99)];
+        return result;
+    }
+
+    private static final FrameWriter.Listener NO_OP_LISTENER = new FrameWriter.Listener() {
+        @Override
+        public void onFrameWritten(int type, byte[] payload) {
+        }
+
+        @Override
+        public void onFrameDropped(int type, byte[] payload) {
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+        }
+    };
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
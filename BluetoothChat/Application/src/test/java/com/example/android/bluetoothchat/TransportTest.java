@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends messages through a {@link FrameWriter} over each JVM transport and
+ * checks a {@link FrameCodec} on the other end gets every one, intact and in
+ * order. {@link TransportBenchmark} measures the same path.
+ */
+public class TransportTest {
+
+    private static final int[] MESSAGE_SIZES = {0, 32, 512, 8 * 1024, 20 * 1024};
+    private static final int MESSAGES = 200;
+
+    @Test
+    public void loopback() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        Transport.Acceptor acceptor = transport.listen(false);
+        try {
+            sendAll(transport, acceptor, "peer");
+        } finally {
+            acceptor.close();
+        }
+    }
+
+    @Test
+    public void tcp() throws Exception {
+        TcpTransport transport = new TcpTransport(0);
+        TcpTransport.TcpAcceptor acceptor = transport.listen(false);
+        try {
+            sendAll(transport, acceptor, acceptor.getAddress());
+        } finally {
+            acceptor.close();
+        }
+    }
+
+    private void sendAll(Transport transport, Transport.Acceptor acceptor, String address)
+            throws Exception {
+        Transport.Connection client = transport.open(address, false);
+        client.connect();
+        final Transport.Connection server = acceptor.accept();
+
+        final int count = MESSAGES * MESSAGE_SIZES.length;
+        final List<byte[]> received = new ArrayList<>();
+        final IOException[] failure = new IOException[1];
+        Thread reader = new Thread("TransportTestReader") {
+            public void run() {
+                FrameCodec codec = new FrameCodec();
+                FrameCodec.FrameListener listener = new FrameCodec.FrameListener() {
+                    @Override
+                    public void onFrame(int type, byte[] buffer, int offset, int length) {
+                        received.add(Arrays.copyOfRange(buffer, offset, offset + length));
+                    }
+                };
+                try {
+                    InputStream in = server.getInputStream();
+                    while (received.size() < count && codec.readFrom(in, listener) >= 0) {
+                        // Keep reading
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        reader.start();
+
+        FrameWriter writer = new FrameWriter(client.getOutputStream(), NO_OP_LISTENER);
+        writer.start();
+        for (int i = 0; i < count; i++) {
+            writer.enqueue(FrameType.CHAT, message(i));
+        }
+        reader.join();
+        writer.close();
+        client.close();
+        server.close();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        assertEquals(count, received.size());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals("message " + i, message(i), received.get(i));
+        }
+    }
+
+    /**
+     * Return a message whose size cycles through {@link #MESSAGE_SIZES} and
+     * whose bytes depend on its index, so a lost or reordered one shows.
+     */
+    private static byte[] message(int index) {
+        byte[] message = new byte[MESSAGE_SIZES[index % MESSAGE_SIZES.length]];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) (index * 31 + i);
+        }
+        return message;
+    }
+
+    private static final FrameWriter.Listener NO_OP_LISTENER = new FrameWriter.Listener() {
+        @Override
+        public void onFrameWritten(int type, byte[] payload) {
+        }
+
+        @Override
+        public void onFrameDropped(int type, byte[] payload) {
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+        }
+    };
+}
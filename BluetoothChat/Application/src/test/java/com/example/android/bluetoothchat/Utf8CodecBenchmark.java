@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Compares {@link Utf8Codec} with the {@code String.getBytes()} and
+ * {@code new String(byte[])} calls chat messages used to go through, on the
+ * messages {@link Utf8CodecTest} checks. Not a unit test; run {@link #main}
+ * from the test classpath.
+ */
+public class Utf8CodecBenchmark {
+
+    private static final long CHARS_PER_RUN = 32L * 1024 * 1024;
+
+    public static void main(String[] args) {
+        Utf8Codec codec = new Utf8Codec();
+        // Warm up the JIT before measuring
+        for (int i = 0; i < 3; i++) {
+            for (int length : Utf8CodecTest.MESSAGE_LENGTHS) {
+                run(codec, length, length * 1000L);
+            }
+        }
+        for (int length : Utf8CodecTest.MESSAGE_LENGTHS) {
+            run(codec, length, CHARS_PER_RUN);
+        }
+    }
+
+    private static void run(Utf8Codec codec, int length, long chars) {
+        String text = Utf8CodecTest.message(length);
+        StringBuilder editable = new StringBuilder(text);
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer wire = ByteBuffer.wrap(encoded);
+        int iterations = (int) Math.max(1, chars / length);
+        long sink = 0;
+
+        // What the fragment did: EditText text to String to bytes, bytes to String
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += editable.toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        long stringEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += new String(encoded, StandardCharsets.UTF_8).length();
+        }
+        long stringDecode = System.nanoTime() - start;
+
+        // The codec: straight from the CharSequence, and into the pooled buffer
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += codec.encode(editable).remaining();
+        }
+        long codecEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            wire.rewind();
+            sink += codec.decode(wire, true).remaining();
+        }
+        long codecDecode = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US,
+                "%6d chars  encode: String %7.1f ns  codec %7.1f ns"
+                        + "  decode: String %7.1f ns  codec %7.1f ns  (%d)",
+                length, (double) stringEncode / iterations, (double) codecEncode / iterations,
+                (double) stringDecode / iterations, (double) codecDecode / iterations,
+                sink % 10));
+    }
+}
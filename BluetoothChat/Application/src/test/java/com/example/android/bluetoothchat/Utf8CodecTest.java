@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks {@link Utf8Codec} against {@code String.getBytes()} for short,
+ * typical and large messages of mixed ASCII, accented, CJK and emoji text,
+ * and that text cut into pieces at every byte decodes intact.
+ * {@link Utf8CodecBenchmark} measures it.
+ */
+public class Utf8CodecTest {
+
+    static final String SAMPLE = "Hello, see you at the café at 8? 你好 👋 ok! ";
+    static final int[] MESSAGE_LENGTHS = {32, 512, 64 * 1024};
+
+    @Test
+    public void roundTrip() {
+        Utf8Codec codec = new Utf8Codec();
+        for (int length : MESSAGE_LENGTHS) {
+            String text = message(length);
+            byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(expected, codec.encodeToArray(text));
+            assertEquals(text, codec.decodeToString(expected, 0, expected.length));
+        }
+    }
+
+    @Test
+    public void piecesSplitCharacters() {
+        Utf8Codec codec = new Utf8Codec();
+        byte[] bytes = SAMPLE.getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= bytes.length; split++) {
+            StringBuilder decoded = new StringBuilder();
+            decoded.append(codec.decode(bytes, 0, split, false));
+            decoded.append(codec.decode(bytes, split, bytes.length - split, true));
+            assertEquals("split at " + split, SAMPLE, decoded.toString());
+        }
+        // A byte at a time
+        StringBuilder decoded = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            decoded.append(codec.decode(bytes, i, 1, i == bytes.length - 1));
+        }
+        assertEquals(SAMPLE, decoded.toString());
+        // A character cut off for good becomes a replacement character
+        int emoji = SAMPLE.substring(0, SAMPLE.indexOf("👋"))
+                .getBytes(StandardCharsets.UTF_8).length;
+        CharBuffer truncated = codec.decode(bytes, 0, emoji + 2, true);
+        assertEquals('\uFFFD', truncated.get(truncated.limit() - 1));
+    }
+
+    /**
+     * Return the sample text repeated to the given length.
+     */
+    static String message(int length) {
+        StringBuilder text = new StringBuilder(length + SAMPLE.length());
+        while (text.length() < length) {
+            text.append(SAMPLE);
+        }
+        text.setLength(length);
+        // Do not end on half a surrogate pair
+        if (Character.isHighSurrogate(text.charAt(length - 1))) {
+            text.setCharAt(length - 1, '!');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.logger;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Compares what a disabled log call costs when its message is concatenated at the call
+ * site with the format and supplier overloads of {@link Log}, which build nothing below
+ * the level. Not a unit test; run {@link #main} from the test classpath.
+ */
+public class LogBenchmark {
+
+    private static final String TAG = "LogBenchmark";
+    private static final int ITERATIONS = 5000000;
+
+    private final LogTest.CountingNode mNode = new LogTest.CountingNode();
+
+    public static void main(String[] args) {
+        LogBenchmark benchmark = new LogBenchmark();
+        Log.setLogNode(benchmark.mNode);
+        benchmark.run();
+    }
+
+    private void run() {
+        for (int i = 0; i < 3; i++) {
+            run(ITERATIONS / 10, false);
+        }
+        run(ITERATIONS, true);
+    }
+
+    private void run(int iterations, boolean print) {
+        final String address = "00:11:22:33:44:55";
+        long sink = 0;
+
+        Log.setLevel(Log.INFO);
+        // What the call sites did: the message is built and then thrown away
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Log.d(TAG, "Reconnecting to " + address + " in " + i + " ms");
+        }
+        long concat = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Log.d(TAG, "Reconnecting to %s in %d ms", address, i);
+        }
+        long format = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final int delay = i;
+            Log.d(TAG, new Supplier<String>() {
+                @Override
+                public String get() {
+                    return "Reconnecting to " + address + " in " + delay + " ms";
+                }
+            });
+        }
+        long supplier = System.nanoTime() - start;
+        sink += mNode.mCount;
+
+        // For scale: the same messages when they are logged
+        Log.setLevel(Log.VERBOSE);
+        int enabledIterations = iterations / 10;
+        start = System.nanoTime();
+        for (int i = 0; i < enabledIterations; i++) {
+            Log.d(TAG, "Reconnecting to " + address + " in " + i + " ms");
+        }
+        long enabledConcat = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < enabledIterations; i++) {
+            Log.d(TAG, "Reconnecting to %s in %d ms", address, i);
+        }
+        long enabledFormat = System.nanoTime() - start;
+        sink += mNode.mCount;
+
+        if (print) {
+            System.out.println(String.format(Locale.US,
+                    "disabled: concat %6.1f ns  format %6.1f ns  supplier %6.1f ns"
+                            + "  enabled: concat %6.1f ns  format %6.1f ns  (%d)",
+                    (double) concat / iterations, (double) format / iterations,
+                    (double) supplier / iterations, (double) enabledConcat / enabledIterations,
+                    (double) enabledFormat / enabledIterations, sink % 10));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks the per-tag levels of {@link Log}, and that a disabled call to a
+ * format overload allocates nothing. {@link LogBenchmark} measures what
+ * disabled calls cost.
+ */
+public class LogTest {
+
+    private static final String TAG = "LogTest";
+    // Enough for the JIT to compile the loop, so it is what gets measured
+    private static final int ITERATIONS = 200000;
+
+    private final CountingNode mNode = new CountingNode();
+    private LogNode mSavedNode;
+
+    @Before
+    public void setUp() {
+        mSavedNode = Log.getLogNode();
+        Log.setLogNode(mNode);
+    }
+
+    @After
+    public void tearDown() {
+        Log.setLogNode(mSavedNode);
+        Log.setLevel(Log.VERBOSE);
+        Log.clearLevel(TAG);
+    }
+
+    @Test
+    public void levels() {
+        Log.setLevel(Log.INFO);
+        assertFalse(Log.isLoggable(Log.DEBUG, TAG));
+        assertTrue(Log.isLoggable(Log.INFO, TAG));
+
+        Log.setLevel(TAG, Log.VERBOSE);
+        assertTrue(Log.isLoggable(Log.VERBOSE, TAG));
+        assertFalse(Log.isLoggable(Log.DEBUG, "Other"));
+        Log.d(TAG, "state %d -> %d", 1, 2);
+        Log.d("Other", "state %d -> %d", 1, 2);
+        assertEquals(1, mNode.mCount);
+        assertEquals("state 1 -> 2", mNode.mLast);
+
+        Log.clearLevel(TAG);
+        assertFalse(Log.isLoggable(Log.DEBUG, TAG));
+        Log.setLogNode(null);
+        assertFalse(Log.isLoggable(Log.ERROR, TAG));
+    }
+
+    @Test
+    public void disabledCallsDoNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Log.setLevel(Log.INFO);
+        final String address = "00:11:22:33:44:55";
+        long id = Thread.currentThread().getId();
+        // Warm up so the JIT, not the interpreter, is measured
+        for (int i = 0; i < ITERATIONS; i++) {
+            Log.d(TAG, "Reconnecting to %s in %d ms", address, i);
+        }
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            Log.d(TAG, "Reconnecting to %s in %d ms", address, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        // A little slack for the allocation counter itself
+        assertTrue(allocated + " bytes", allocated < 1024);
+        assertEquals(0, mNode.mCount);
+    }
+
+    /**
+     * Counts the messages that reach it, and keeps the last.
+     */
+    static class CountingNode implements LogNode {
+        int mCount;
+        String mLast;
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            mCount++;
+            mLast = msg;
+        }
+    }
+}
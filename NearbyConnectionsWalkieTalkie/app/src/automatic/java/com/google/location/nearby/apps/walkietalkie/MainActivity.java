@@ -113,22 +113,25 @@ public class MainActivity extends ConnectionsActivity {
         @Override
         protected void onHold() {
           logV("onHold");
-          startRecording();
+          startTalking(getDownTime());
         }
 
         @Override
         protected void onRelease() {
           logV("onRelease");
-          stopRecording();
+          stopTalking();
         }
       };
 
-  /** For recording audio as the user speaks. */
+  /** For recording audio as the user speaks. Kept ready the whole time we're connected. */
   @Nullable private AudioRecorder mRecorder;
 
   /** For playing audio from other users nearby. */
   @Nullable private AudioPlayer mAudioPlayer;
 
+  /** Agrees with the device we're connected to on the sample rate to send audio at. */
+  private SampleRateNegotiator mSampleRateNegotiator;
+
   /** The phone's original media volume. */
   private int mOriginalVolume;
 
@@ -147,6 +150,7 @@ public class MainActivity extends ConnectionsActivity {
     mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
 
     mName = generateRandomName();
+    mSampleRateNegotiator = new SampleRateNegotiator(AudioRecorder.getCaptureSampleRate());
 
     ((TextView) findViewById(R.id.name)).setText(mName);
   }
@@ -230,6 +234,7 @@ public class MainActivity extends ConnectionsActivity {
     Toast.makeText(
             this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+    send(Payload.fromBytes(mSampleRateNegotiator.getCapabilities()));
     setState(State.CONNECTED);
   }
 
@@ -282,6 +287,14 @@ public class MainActivity extends ConnectionsActivity {
       mCurrentAnimator.cancel();
     }
 
+    // Get the microphone ready only while there's someone to talk to.
+    if (oldState == State.CONNECTED && isRecording()) {
+      stopRecording();
+    }
+    if (oldState == State.CONNECTED) {
+      mSampleRateNegotiator.reset();
+    }
+
     // Update Nearby Connections to the new state.
     switch (newState) {
       case SEARCHING:
@@ -292,6 +305,7 @@ public class MainActivity extends ConnectionsActivity {
       case CONNECTED:
         stopDiscovering();
         stopAdvertising();
+        startRecording();
         break;
       case UNKNOWN:
         stopAllEndpoints();
@@ -463,6 +477,17 @@ public class MainActivity extends ConnectionsActivity {
           };
       mAudioPlayer = player;
       player.start();
+    } else if (payload.getType() == Payload.Type.BYTES
+        && mSampleRateNegotiator.onCapabilities(endpoint.getId(), payload.asBytes())) {
+      updateSampleRate();
+    }
+  }
+
+  /** Sends audio at the sample rate agreed with the device we're connected to. */
+  private void updateSampleRate() {
+    if (isRecording() && mRecorder.getSampleRate() != mSampleRateNegotiator.getSampleRate()) {
+      logD("Sending audio at " + mSampleRateNegotiator.getSampleRate() + "Hz");
+      mRecorder.setSampleRate(mSampleRateNegotiator.getSampleRate());
     }
   }
 
@@ -480,7 +505,10 @@ public class MainActivity extends ConnectionsActivity {
     return mAudioPlayer != null;
   }
 
-  /** Starts recording sound from the microphone and streaming it to all connected devices. */
+  /**
+   * Gets the microphone ready, and opens a stream to all connected devices, for whenever the user
+   * talks.
+   */
   private void startRecording() {
     logV("startRecording()");
     try {
@@ -491,13 +519,36 @@ public class MainActivity extends ConnectionsActivity {
 
       // Use the second half of the payload (the write side) in AudioRecorder.
       mRecorder = new AudioRecorder(payloadPipe[1]);
+      mRecorder.setSampleRate(mSampleRateNegotiator.getSampleRate());
       mRecorder.start();
     } catch (IOException e) {
       logE("startRecording() failed", e);
     }
   }
 
-  /** Stops streaming sound from the microphone. */
+  /**
+   * Starts streaming sound from the microphone to all connected devices.
+   *
+   * @param downTimeMs When the user pressed the talk button, in the {@link
+   *     android.os.SystemClock#uptimeMillis()} time base.
+   */
+  private void startTalking(long downTimeMs) {
+    if (!isRecording()) {
+      startRecording();
+    }
+    if (isRecording()) {
+      mRecorder.startTalking(downTimeMs);
+    }
+  }
+
+  /** Stops streaming sound from the microphone, keeping it ready for next time. */
+  private void stopTalking() {
+    if (isRecording()) {
+      mRecorder.stopTalking();
+    }
+  }
+
+  /** Stops streaming sound from the microphone, and lets it go. */
   private void stopRecording() {
     logV("stopRecording()");
     if (mRecorder != null) {
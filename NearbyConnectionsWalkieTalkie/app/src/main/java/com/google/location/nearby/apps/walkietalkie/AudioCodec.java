@@ -0,0 +1,37 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Compresses the 16 bit PCM audio of one {@link AudioFrame} for the stream, and expands it again
+ * on the other side. PCM is little endian, as {@link android.media.AudioRecord} gives it and {@link
+ * android.media.AudioTrack} takes it.
+ *
+ * <p>Implementations work between caller-owned arrays and allocate nothing, so they can run on the
+ * audio threads for every frame. Every encoded frame decodes on its own, so losing one frame
+ * doesn't spoil the next. An instance keeps state between frames and is used by one thread.
+ */
+public interface AudioCodec {
+  /** @return The codec id written in the frame header, such as {@link AudioFrame#CODEC_PCM_16}. */
+  int getId();
+
+  /** @return The most bytes {@link #encode} writes for the given length of PCM. */
+  int getMaxEncodedSize(int pcmLength);
+
+  /** @return The most bytes of PCM {@link #decode} writes for the given encoded length. */
+  int getMaxDecodedSize(int encodedLength);
+
+  /**
+   * Encodes a frame of PCM.
+   *
+   * @param pcm The samples, 2 bytes each.
+   * @param pcmLength The length of the samples in bytes; an even number.
+   * @return The number of bytes written to {@code out}.
+   */
+  int encode(byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset);
+
+  /**
+   * Decodes a frame written by {@link #encode}.
+   *
+   * @return The number of bytes of PCM written to {@code pcm}.
+   */
+  int decode(byte[] in, int inOffset, int inLength, byte[] pcm, int pcmOffset);
+}
@@ -0,0 +1,55 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/** Creates the {@link AudioCodec} for a codec id in an {@link AudioFrame} header. */
+public final class AudioCodecs {
+  private AudioCodecs() {}
+
+  /**
+   * @return A new codec for the id.
+   * @throws IllegalArgumentException If there is no codec with that id.
+   */
+  public static AudioCodec create(int codec) {
+    switch (codec) {
+      case AudioFrame.CODEC_PCM_16:
+        return new PcmCodec();
+      case AudioFrame.CODEC_IMA_ADPCM:
+        return new ImaAdpcmCodec();
+      case AudioFrame.CODEC_MU_LAW:
+        return new MuLawCodec();
+      case AudioFrame.CODEC_COMFORT_NOISE:
+        return new ComfortNoiseCodec();
+      default:
+        throw new IllegalArgumentException("Unknown codec " + codec);
+    }
+  }
+
+  /** Passes the PCM through as it is. */
+  private static class PcmCodec implements AudioCodec {
+    @Override
+    public int getId() {
+      return AudioFrame.CODEC_PCM_16;
+    }
+
+    @Override
+    public int getMaxEncodedSize(int pcmLength) {
+      return pcmLength;
+    }
+
+    @Override
+    public int getMaxDecodedSize(int encodedLength) {
+      return encodedLength;
+    }
+
+    @Override
+    public int encode(byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset) {
+      System.arraycopy(pcm, pcmOffset, out, outOffset, pcmLength);
+      return pcmLength;
+    }
+
+    @Override
+    public int decode(byte[] in, int inOffset, int inLength, byte[] pcm, int pcmOffset) {
+      System.arraycopy(in, inOffset, pcm, pcmOffset, inLength);
+      return inLength;
+    }
+  }
+}
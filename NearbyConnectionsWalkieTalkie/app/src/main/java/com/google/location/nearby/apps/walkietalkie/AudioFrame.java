@@ -0,0 +1,180 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * One frame of audio as it goes over the stream between an {@link AudioRecorder} and an {@link
+ * AudioPlayer}: a fixed {@link #FRAME_DURATION_MS} of mono audio, encoded by an {@link AudioCodec},
+ * behind a small header.
+ *
+ * <pre>
+ *  0  version        1 byte
+ *  1  codec          1 byte, such as {@link #CODEC_PCM_16}
+ *  2  payload length 2 bytes, unsigned
+ *  4  sequence       4 bytes, one more for every frame of a recording
+ *  8  sample rate    4 bytes, in Hz
+ * 12  capture time   8 bytes, microseconds on the sender's monotonic clock
+ * 20  payload
+ * </pre>
+ *
+ * <p>The header and payload share one buffer, allocated once, so the recorder encodes audio
+ * straight into place behind the header and a frame goes out in a single write. Frames are
+ * reused; a recorder or player keeps one and fills it again for every frame.
+ */
+public class AudioFrame {
+  /** The version of the header written, and the only one read. */
+  public static final int VERSION = 1;
+
+  /** The length of the header; the payload starts here in {@link #getBuffer()}. */
+  public static final int HEADER_SIZE = 20;
+
+  /** The length of audio in every frame. */
+  public static final int FRAME_DURATION_MS = 20;
+
+  /** 16 bit signed little endian PCM samples. */
+  public static final int CODEC_PCM_16 = 0;
+
+  /** IMA ADPCM, 4 bits a sample; see {@link ImaAdpcmCodec}. */
+  public static final int CODEC_IMA_ADPCM = 1;
+
+  /** G.711 mu-law, 8 bits a sample; see {@link MuLawCodec}. */
+  public static final int CODEC_MU_LAW = 2;
+
+  /** Silence, sent as the level of the background noise; see {@link ComfortNoiseCodec}. */
+  public static final int CODEC_COMFORT_NOISE = 3;
+
+  /** The largest payload a frame can carry: uncompressed 16 bit PCM at 48kHz. */
+  public static final int MAX_PAYLOAD_SIZE = samplesPerFrame(48000) * 2;
+
+  private final byte[] mBuffer = new byte[HEADER_SIZE + MAX_PAYLOAD_SIZE];
+
+  private int mCodec;
+  private int mPayloadLength;
+  private int mSequence;
+  private int mSampleRate;
+  private long mCaptureTimeUs;
+
+  /** @return The number of samples in a frame at the given sample rate. */
+  public static int samplesPerFrame(int sampleRate) {
+    return sampleRate * FRAME_DURATION_MS / 1000;
+  }
+
+  /**
+   * @return The buffer holding the header and then the payload, at {@link #HEADER_SIZE}. Put the
+   *     payload in place before calling {@link #setHeader}.
+   */
+  public byte[] getBuffer() {
+    return mBuffer;
+  }
+
+  /** Describes the payload already in the buffer, and writes the header in front of it. */
+  public void setHeader(
+      int codec, int payloadLength, int sequence, int sampleRate, long captureTimeUs) {
+    if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+      throw new IllegalArgumentException("Payload too long: " + payloadLength);
+    }
+    mCodec = codec;
+    mPayloadLength = payloadLength;
+    mSequence = sequence;
+    mSampleRate = sampleRate;
+    mCaptureTimeUs = captureTimeUs;
+
+    mBuffer[0] = (byte) VERSION;
+    mBuffer[1] = (byte) codec;
+    putShort(2, payloadLength);
+    putInt(4, sequence);
+    putInt(8, sampleRate);
+    putInt(12, (int) (captureTimeUs >>> 32));
+    putInt(16, (int) captureTimeUs);
+  }
+
+  /** Writes the header and payload in a single write. */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(mBuffer, 0, HEADER_SIZE + mPayloadLength);
+  }
+
+  /**
+   * Reads the next frame over this one.
+   *
+   * @return False if the stream ended cleanly before the frame.
+   * @throws IOException If the stream failed, ended within the frame, or isn't made of frames.
+   */
+  public boolean readFrom(DataInputStream in) throws IOException {
+    int version = in.read();
+    if (version < 0) {
+      return false;
+    }
+    if (version != VERSION) {
+      throw new IOException("Unknown audio frame version " + version);
+    }
+    mBuffer[0] = (byte) version;
+    in.readFully(mBuffer, 1, HEADER_SIZE - 1);
+    int payloadLength = getShort(2);
+    if (payloadLength > MAX_PAYLOAD_SIZE) {
+      throw new IOException("Audio frame too long: " + payloadLength);
+    }
+    in.readFully(mBuffer, HEADER_SIZE, payloadLength);
+
+    mCodec = mBuffer[1] & 0xFF;
+    mPayloadLength = payloadLength;
+    mSequence = getInt(4);
+    mSampleRate = getInt(8);
+    mCaptureTimeUs = ((long) getInt(12) << 32) | (getInt(16) & 0xFFFFFFFFL);
+    return true;
+  }
+
+  /** Copies another frame into this one. */
+  public void copyFrom(AudioFrame frame) {
+    System.arraycopy(frame.mBuffer, 0, mBuffer, 0, HEADER_SIZE + frame.mPayloadLength);
+    mCodec = frame.mCodec;
+    mPayloadLength = frame.mPayloadLength;
+    mSequence = frame.mSequence;
+    mSampleRate = frame.mSampleRate;
+    mCaptureTimeUs = frame.mCaptureTimeUs;
+  }
+
+  public int getCodec() {
+    return mCodec;
+  }
+
+  public int getPayloadLength() {
+    return mPayloadLength;
+  }
+
+  public int getSequence() {
+    return mSequence;
+  }
+
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  public long getCaptureTimeUs() {
+    return mCaptureTimeUs;
+  }
+
+  private void putShort(int offset, int value) {
+    mBuffer[offset] = (byte) (value >>> 8);
+    mBuffer[offset + 1] = (byte) value;
+  }
+
+  private void putInt(int offset, int value) {
+    mBuffer[offset] = (byte) (value >>> 24);
+    mBuffer[offset + 1] = (byte) (value >>> 16);
+    mBuffer[offset + 2] = (byte) (value >>> 8);
+    mBuffer[offset + 3] = (byte) value;
+  }
+
+  private int getShort(int offset) {
+    return ((mBuffer[offset] & 0xFF) << 8) | (mBuffer[offset + 1] & 0xFF);
+  }
+
+  private int getInt(int offset) {
+    return ((mBuffer[offset] & 0xFF) << 24)
+        | ((mBuffer[offset + 1] & 0xFF) << 16)
+        | ((mBuffer[offset + 2] & 0xFF) << 8)
+        | (mBuffer[offset + 3] & 0xFF);
+  }
+}
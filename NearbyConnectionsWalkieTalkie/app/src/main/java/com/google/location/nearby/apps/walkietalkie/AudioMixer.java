@@ -0,0 +1,379 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Plays any number of streams at once through one {@link AudioTrack}, mixed by one thread. A
+ * fire-once class, like {@link AudioPlayer}: once {@link #stop()} is called it plays no more.
+ *
+ * <p>Every stream added with {@link #addStream} gets a thread that reads its {@link AudioFrame}s
+ * into its own {@link JitterBuffer}, since reading blocks. Once every frame period, the playout
+ * thread takes the next frame of every stream, decodes it, adds them all up and clamps the sum to
+ * 16 bits, then writes it to the track, which paces the loop. Nothing is allocated per frame.
+ *
+ * <p>A stream fades in over its first frame, and a gap or the end of a stream fades out over its
+ * last frame played backwards, so the waveform never jumps when someone starts or stops talking.
+ *
+ * <p>The track plays at the device's native output rate, so the platform doesn't have to convert
+ * it again, and each stream has a {@link Resampler} from whatever rate its frames are at. Streams
+ * at different rates mix together, and the track never needs reopening. Designing a resampler's
+ * filter takes a while, so a stream's reading thread makes one for each rate it sees, before the
+ * frame reaches the playout thread, and keeps it for when the rate comes back.
+ */
+public class AudioMixer {
+  /** Full volume, as a 16.16 fixed point gain. */
+  private static final int UNITY_GAIN = 1 << 16;
+
+  /** The rate the track plays at, which every stream is converted to. */
+  private final int mSampleRate = getOutputSampleRate();
+
+  /** Guards changes to {@link #mInputs}, and wakes the playout thread when a stream is added. */
+  private final Object mLock = new Object();
+
+  /**
+   * The streams being mixed. Replaced rather than changed, so the playout thread can go through it
+   * without holding the lock.
+   */
+  private volatile Input[] mInputs = new Input[0];
+
+  /**
+   * If true, the background threads will continue to loop and play audio. Once false, the threads
+   * will shut down.
+   */
+  private volatile boolean mAlive;
+
+  /** The background thread mixing and playing the streams. */
+  private Thread mPlayoutThread;
+
+  /** @return The number of streams being played. */
+  public int getStreamCount() {
+    return mInputs.length;
+  }
+
+  /** Starts the playout thread. Streams can be added before or after. */
+  public void start() {
+    mAlive = true;
+    mPlayoutThread =
+        new Thread() {
+          @Override
+          public void run() {
+            setThreadPriority(THREAD_PRIORITY_AUDIO);
+
+            int sampleRate = mSampleRate;
+            int samples = AudioFrame.samplesPerFrame(sampleRate);
+            int[] mix = new int[samples];
+            byte[] pcm = new byte[samples * 2];
+            AudioTrack audioTrack = AudioPlayer.createAudioTrack(sampleRate);
+            audioTrack.play();
+            try {
+              while (mAlive) {
+                Input[] inputs = mInputs;
+                if (inputs.length == 0) {
+                  waitForInput();
+                  continue;
+                }
+
+                // Silence if no stream has anything to play, which keeps the track running
+                Arrays.fill(mix, 0);
+                for (Input input : inputs) {
+                  if (!input.next()) {
+                    removeInput(input);
+                    continue;
+                  }
+                  input.mixInto(mix, samples);
+                }
+                for (int i = 0; i < samples; i++) {
+                  int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+                  pcm[2 * i] = (byte) sample;
+                  pcm[2 * i + 1] = (byte) (sample >> 8);
+                }
+                // Blocks while the track is full, which paces this loop
+                audioTrack.write(pcm, 0, samples * 2);
+              }
+            } catch (InterruptedException e) {
+              Log.e(TAG, "Interrupted while mixing streams", e);
+            } finally {
+              mAlive = false;
+              audioTrack.release();
+            }
+          }
+        };
+    mPlayoutThread.start();
+  }
+
+  /**
+   * Starts playing a stream of {@link AudioFrame}s, as written by {@link AudioRecorder}, alongside
+   * any others. It is read from until it ends or {@link #stop()} is called.
+   */
+  public void addStream(InputStream inputStream) {
+    Input input = new Input(inputStream);
+    synchronized (mLock) {
+      if (!mAlive) {
+        input.close();
+        return;
+      }
+      Input[] inputs = Arrays.copyOf(mInputs, mInputs.length + 1);
+      inputs[inputs.length - 1] = input;
+      mInputs = inputs;
+      mLock.notifyAll();
+    }
+    input.start();
+  }
+
+  /** Stops playing every stream, and the playout thread. */
+  public void stop() {
+    Input[] inputs;
+    synchronized (mLock) {
+      mAlive = false;
+      inputs = mInputs;
+      mInputs = new Input[0];
+      mLock.notifyAll();
+    }
+    for (Input input : inputs) {
+      input.close();
+    }
+    try {
+      mPlayoutThread.join();
+      for (Input input : inputs) {
+        input.join();
+      }
+    } catch (InterruptedException e) {
+      Log.e(TAG, "Interrupted while joining AudioMixer threads", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** @return The device's native output sample rate, if the {@link Resampler} supports it. */
+  private static int getOutputSampleRate() {
+    int sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+    return Resampler.isSupported(sampleRate) ? sampleRate : 48000;
+  }
+
+  private void waitForInput() throws InterruptedException {
+    synchronized (mLock) {
+      while (mAlive && mInputs.length == 0) {
+        mLock.wait();
+      }
+    }
+  }
+
+  private void removeInput(Input input) {
+    synchronized (mLock) {
+      int index = Arrays.asList(mInputs).indexOf(input);
+      if (index < 0) {
+        // Already removed by stop()
+        return;
+      }
+      Input[] inputs = new Input[mInputs.length - 1];
+      System.arraycopy(mInputs, 0, inputs, 0, index);
+      System.arraycopy(mInputs, index + 1, inputs, index, inputs.length - index);
+      mInputs = inputs;
+    }
+    input.logStats();
+  }
+
+  /** One stream being mixed in. Apart from reading, only used by the playout thread. */
+  private class Input {
+    /** The audio stream we're reading from. */
+    private final InputStream mInputStream;
+
+    /** Evens out the times frames arrive at. */
+    private final JitterBuffer mJitterBuffer = new JitterBuffer();
+
+    /** The background thread reading frames into the jitter buffer. */
+    private final Thread mThread;
+
+    private volatile boolean mClosed;
+
+    private final AudioFrame mFrame = new AudioFrame();
+
+    /** The last frame decoded. */
+    private final byte[] mDecoded = new byte[AudioFrame.MAX_PAYLOAD_SIZE];
+
+    /** The last frame decoded, converted to the track's sample rate, and its length. */
+    private final byte[] mPcm = new byte[AudioFrame.MAX_PAYLOAD_SIZE + 2];
+
+    private int mPcmLength;
+
+    private AudioCodec mCodec;
+
+    /**
+     * Converts to the track's rate from each rate the stream has been at, by {@link
+     * Resampler#indexOf}. Filled in by the reading thread.
+     */
+    private final AtomicReferenceArray<Resampler> mResamplers =
+        new AtomicReferenceArray<>(Resampler.RATE_COUNT);
+
+    /** The one of {@link #mResamplers} for the rate the stream is at now. */
+    private Resampler mResampler;
+
+    /** The gain at the end of what was last played. */
+    private int mGain;
+
+    /** What to mix in this frame period: the gains to ramp between, and which way to play it. */
+    private int mStartGain;
+
+    private int mEndGain;
+    private boolean mReversed;
+    private boolean mPlaying;
+
+    Input(InputStream inputStream) {
+      mInputStream = inputStream;
+      mThread =
+          new Thread() {
+            @Override
+            public void run() {
+              setThreadPriority(THREAD_PRIORITY_AUDIO);
+
+              DataInputStream in = new DataInputStream(mInputStream);
+              AudioFrame frame = new AudioFrame();
+              try {
+                while (!mClosed && frame.readFrom(in)) {
+                  prepareResampler(frame.getSampleRate());
+                  mJitterBuffer.put(frame, System.nanoTime() / 1000);
+                }
+              } catch (IOException e) {
+                if (!mClosed) {
+                  Log.e(TAG, "Exception with playing stream", e);
+                }
+              } finally {
+                // Lets the playout thread finish what has arrived
+                mJitterBuffer.close();
+              }
+            }
+          };
+    }
+
+    void start() {
+      mThread.start();
+    }
+
+    /** Makes the resampler for frames at this rate, unless there is one. On the reading thread. */
+    private void prepareResampler(int sampleRate) {
+      int index = Resampler.indexOf(sampleRate);
+      if (index >= 0 && mResamplers.get(index) == null) {
+        mResamplers.set(index, new Resampler(sampleRate, mSampleRate));
+      }
+    }
+
+    void close() {
+      mClosed = true;
+      mJitterBuffer.close();
+      try {
+        mInputStream.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close input stream", e);
+      }
+    }
+
+    void join() throws InterruptedException {
+      if (mThread.isAlive()) {
+        mThread.join();
+      }
+    }
+
+    /**
+     * Takes what to play in the next frame period from the jitter buffer.
+     *
+     * @return False once the stream has ended and faded out.
+     */
+    boolean next() {
+      int status = mJitterBuffer.poll(mFrame);
+      if (status == JitterBuffer.FRAME) {
+        if (mCodec == null || mCodec.getId() != mFrame.getCodec()) {
+          mCodec = AudioPlayer.createCodec(mFrame.getCodec());
+        }
+        int frameSampleRate = mFrame.getSampleRate();
+        int frameSize = AudioFrame.samplesPerFrame(frameSampleRate) * 2;
+        int len = mCodec == null ? -1 : AudioPlayer.decode(mCodec, mFrame, mDecoded);
+        // The reading thread made one for every supported rate it read
+        int index = Resampler.indexOf(frameSampleRate);
+        Resampler resampler = index < 0 ? null : mResamplers.get(index);
+        if (len >= 0 && resampler != null) {
+          if (resampler != mResampler) {
+            // Whatever it converted last time is long gone
+            resampler.reset();
+            mResampler = resampler;
+          }
+          mPcmLength = mResampler.resample(mDecoded, 0, Math.min(len, frameSize), mPcm, 0);
+          // Fades in if it was silent
+          play(UNITY_GAIN, false);
+          return true;
+        }
+        Log.w(TAG, "Skipping frame that can't be decoded");
+      } else if (status == JitterBuffer.WAITING) {
+        mPlaying = false;
+        return true;
+      }
+
+      // Nothing to play; fade out what was playing, backwards so it carries on from the last sample
+      if (mGain > 0 && mPcmLength > 0) {
+        play(0, true);
+        return true;
+      }
+      mPlaying = false;
+      return status != JitterBuffer.END;
+    }
+
+    /**
+     * Adds what {@link #next} found to the mix. A frame converted from a rate that isn't a whole
+     * number of samples a frame can come out a sample short or over; the last sample is held to
+     * make up the difference, or the extra dropped.
+     */
+    void mixInto(int[] mix, int samples) {
+      int count = Math.min(samples, mPcmLength / 2);
+      if (!mPlaying || count == 0) {
+        return;
+      }
+      if (mStartGain == UNITY_GAIN && mEndGain == UNITY_GAIN && !mReversed) {
+        for (int i = 0; i < samples; i++) {
+          int p = 2 * Math.min(i, count - 1);
+          mix[i] += (mPcm[p] & 0xFF) | (mPcm[p + 1] << 8);
+        }
+        return;
+      }
+      int gain = mStartGain;
+      int step = (mEndGain - mStartGain) / samples;
+      for (int i = 0; i < samples; i++) {
+        int p = 2 * (mReversed ? Math.max(0, count - 1 - i) : Math.min(i, count - 1));
+        int sample = (mPcm[p] & 0xFF) | (mPcm[p + 1] << 8);
+        mix[i] += (sample * gain) >> 16;
+        gain += step;
+      }
+    }
+
+    /** Mixes in the last frame decoded, ramping from the gain it was last played at. */
+    private void play(int gain, boolean reversed) {
+      mStartGain = mGain;
+      mEndGain = gain;
+      mGain = gain;
+      mReversed = reversed;
+      mPlaying = true;
+    }
+
+    void logStats() {
+      Log.d(
+          TAG,
+          String.format(
+              "Stream played: %d lost, %d late, %d dropped, %d underruns,"
+                  + " jitter %.1f ms, delay %d ms",
+              mJitterBuffer.getLostFrames(),
+              mJitterBuffer.getLateFrames(),
+              mJitterBuffer.getDroppedFrames(),
+              mJitterBuffer.getUnderruns(),
+              mJitterBuffer.getJitterMs(),
+              mJitterBuffer.getTargetDepth() * AudioFrame.FRAME_DURATION_MS));
+    }
+  }
+}
@@ -8,6 +8,7 @@ import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.util.Log;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -15,20 +16,31 @@ import java.io.InputStream;
  * A fire-once class. When created, you must pass a {@link InputStream}. Once {@link #start()} is
  * called, the input stream will be read from until either {@link #stop()} is called or the stream
  * ends.
+ *
+ * <p>The stream is made of {@link AudioFrame}s, as written by {@link AudioRecorder}. One thread
+ * reads them into a {@link JitterBuffer} as they arrive, and another plays them from it, one every
+ * frame period, paced by the {@link AudioTrack}. A frame that is missing when its turn comes is
+ * covered up with a quieter repeat of the one before, then with silence.
  */
 public class AudioPlayer {
   /** The audio stream we're reading from. */
   private final InputStream mInputStream;
 
+  /** Evens out the times frames arrive at. */
+  private final JitterBuffer mJitterBuffer = new JitterBuffer();
+
   /**
-   * If true, the background thread will continue to loop and play audio. Once false, the thread
+   * If true, the background threads will continue to loop and play audio. Once false, the threads
    * will shut down.
    */
   private volatile boolean mAlive;
 
-  /** The background thread recording audio for us. */
+  /** The background thread reading frames into the jitter buffer. */
   private Thread mThread;
 
+  /** The background thread playing frames from the jitter buffer. */
+  private Thread mPlayoutThread;
+
   /**
    * A simple audio player.
    *
@@ -43,6 +55,16 @@ public class AudioPlayer {
     return mAlive;
   }
 
+  /** @return How much audio is waiting to be played, in milliseconds. */
+  public int getBufferDepthMs() {
+    return mJitterBuffer.getDepth() * AudioFrame.FRAME_DURATION_MS;
+  }
+
+  /** @return How many times playback ran out of audio and had to wait for more. */
+  public int getUnderrunCount() {
+    return mJitterBuffer.getUnderruns();
+  }
+
   /** Starts playing the stream. */
   public void start() {
     mAlive = true;
@@ -52,32 +74,101 @@ public class AudioPlayer {
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
 
-            Buffer buffer = new Buffer();
-            AudioTrack audioTrack =
-                new AudioTrack(
-                    AudioManager.STREAM_MUSIC,
-                    buffer.sampleRate,
-                    AudioFormat.CHANNEL_OUT_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    buffer.size,
-                    AudioTrack.MODE_STREAM);
-            audioTrack.play();
-
-            int len;
+            DataInputStream in = new DataInputStream(mInputStream);
+            AudioFrame frame = new AudioFrame();
             try {
-              while (isPlaying() && (len = mInputStream.read(buffer.data)) > 0) {
-                audioTrack.write(buffer.data, 0, len);
+              while (isPlaying() && frame.readFrom(in)) {
+                mJitterBuffer.put(frame, System.nanoTime() / 1000);
               }
             } catch (IOException e) {
-              Log.e(TAG, "Exception with playing stream", e);
+              if (isPlaying()) {
+                Log.e(TAG, "Exception with playing stream", e);
+              }
+            } finally {
+              // Lets the playout thread finish what has arrived
+              mJitterBuffer.close();
+            }
+          }
+        };
+    mPlayoutThread =
+        new Thread() {
+          @Override
+          public void run() {
+            setThreadPriority(THREAD_PRIORITY_AUDIO);
+
+            AudioFrame frame = new AudioFrame();
+            // Decoded audio; a frame holds no more than this
+            byte[] pcm = new byte[AudioFrame.MAX_PAYLOAD_SIZE];
+            byte[] silence = new byte[AudioFrame.MAX_PAYLOAD_SIZE];
+            int pcmLength = 0;
+            int concealed = 0;
+            AudioCodec codec = null;
+            // Opened at the sample rate of the first frame, so we play at the rate recorded
+            AudioTrack audioTrack = null;
+            try {
+              while (isPlaying()) {
+                int status = mJitterBuffer.take(frame);
+                if (status == JitterBuffer.END) {
+                  break;
+                }
+                if (status == JitterBuffer.FRAME) {
+                  if (codec == null || codec.getId() != frame.getCodec()) {
+                    codec = createCodec(frame.getCodec());
+                  }
+                  int len = codec == null ? -1 : decode(codec, frame, pcm);
+                  if (len >= 0) {
+                    if (audioTrack == null
+                        || audioTrack.getSampleRate() != frame.getSampleRate()) {
+                      if (audioTrack != null) {
+                        audioTrack.release();
+                      }
+                      audioTrack = createAudioTrack(frame.getSampleRate());
+                      audioTrack.play();
+                    }
+                    // Blocks while the track is full, which paces this loop
+                    audioTrack.write(pcm, 0, len);
+                    pcmLength = len;
+                    concealed = 0;
+                    continue;
+                  }
+                  Log.w(TAG, "Skipping frame that can't be decoded");
+                }
+
+                // Nothing to play; cover the gap
+                if (audioTrack == null) {
+                  continue;
+                }
+                if (concealed++ == 0) {
+                  halveVolume(pcm, pcmLength);
+                  audioTrack.write(pcm, 0, pcmLength);
+                } else {
+                  audioTrack.write(silence, 0, pcmLength);
+                }
+              }
+            } catch (InterruptedException e) {
+              Log.e(TAG, "Interrupted while playing stream", e);
             } finally {
               stopInternal();
-              audioTrack.release();
+              if (audioTrack != null) {
+                audioTrack.release();
+              }
+              Log.d(
+                  TAG,
+                  String.format(
+                      "Stream played: %d lost, %d late, %d dropped, %d underruns,"
+                          + " jitter %.1f ms, delay %d ms",
+                      mJitterBuffer.getLostFrames(),
+                      mJitterBuffer.getLateFrames(),
+                      mJitterBuffer.getDroppedFrames(),
+                      mJitterBuffer.getUnderruns(),
+                      mJitterBuffer.getJitterMs(),
+                      mJitterBuffer.getTargetDepth() * AudioFrame.FRAME_DURATION_MS));
               onFinish();
             }
           }
         };
     mThread.start();
+    mPlayoutThread.start();
   }
 
   private void stopInternal() {
@@ -92,10 +183,12 @@ public class AudioPlayer {
   /** Stops playing the stream. */
   public void stop() {
     stopInternal();
+    mJitterBuffer.close();
     try {
       mThread.join();
+      mPlayoutThread.join();
     } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted while joining AudioRecorder thread", e);
+      Log.e(TAG, "Interrupted while joining AudioPlayer threads", e);
       Thread.currentThread().interrupt();
     }
   }
@@ -103,16 +196,48 @@ public class AudioPlayer {
   /** The stream has now ended. */
   protected void onFinish() {}
 
-  private static class Buffer extends AudioBuffer {
-    @Override
-    protected boolean validSize(int size) {
-      return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
+  /** @return A codec for the id, or null if there is none. */
+  static AudioCodec createCodec(int id) {
+    try {
+      return AudioCodecs.create(id);
+    } catch (IllegalArgumentException e) {
+      return null;
     }
+  }
 
-    @Override
-    protected int getMinBufferSize(int sampleRate) {
-      return AudioTrack.getMinBufferSize(
-          sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+  /** Halves the volume of 16 bit little endian PCM, in place. */
+  private static void halveVolume(byte[] pcm, int length) {
+    for (int i = 0; i + 1 < length; i += 2) {
+      int sample = ((pcm[i] & 0xFF) | (pcm[i + 1] << 8)) >> 1;
+      pcm[i] = (byte) sample;
+      pcm[i + 1] = (byte) (sample >> 8);
     }
   }
+
+  /**
+   * Decodes the payload of a frame.
+   *
+   * @return The length of the PCM, or -1 if it wouldn't fit.
+   */
+  static int decode(AudioCodec codec, AudioFrame frame, byte[] pcm) {
+    if (codec.getMaxDecodedSize(frame.getPayloadLength()) > pcm.length) {
+      return -1;
+    }
+    return codec.decode(
+        frame.getBuffer(), AudioFrame.HEADER_SIZE, frame.getPayloadLength(), pcm, 0);
+  }
+
+  static AudioTrack createAudioTrack(int sampleRate) {
+    int minBufferSize =
+        AudioTrack.getMinBufferSize(
+            sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    int frameSize = AudioFrame.samplesPerFrame(sampleRate) * 2;
+    return new AudioTrack(
+        AudioManager.STREAM_MUSIC,
+        sampleRate,
+        AudioFormat.CHANNEL_OUT_MONO,
+        AudioFormat.ENCODING_PCM_16BIT,
+        Math.max(minBufferSize, 2 * frameSize),
+        AudioTrack.MODE_STREAM);
+  }
 }
@@ -9,6 +9,7 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -16,11 +17,70 @@ import java.io.OutputStream;
 /**
  * When created, you must pass a {@link ParcelFileDescriptor}. Once {@link #start()} is called, the
  * file descriptor will be written to until {@link #stop()} is called.
+ *
+ * <p>The recorder is meant to last the whole time we're connected, not one press of the talk
+ * button. {@link #start()} sets up the microphone, and the stream to the other side, ahead of
+ * time; {@link #startTalking} and {@link #stopTalking()} then only start and stop the microphone,
+ * so the first words aren't lost waiting for it. Between presses nothing is sent.
+ *
+ * <p>Audio is written as {@link AudioFrame}s, so the other side can tell the sample rate and notice
+ * frames that are lost or out of order. The microphone records at whatever rate the device
+ * supports, and a {@link Resampler} converts it to the rate agreed with the other side, set with
+ * {@link #setSampleRate(int)}, before it is encoded. Sequence numbers carry on counting frames
+ * through the pauses, and each press ends with a silent comfort noise frame, so the other side
+ * plays silence until the next rather than hunt for lost frames.
+ *
+ * <p>Unless told otherwise, frames with nobody speaking in them are left out. A {@link
+ * VoiceActivityDetector} picks out the speech, and in the gaps only a comfort noise frame is sent
+ * every {@link #SILENCE_INTERVAL_FRAMES}, for the other side to play noise as loud as the
+ * background in the meantime. The last few quiet frames are held back, and those not already sent
+ * as comfort noise go ahead of the first frame heard as speech, so the start of a word isn't cut
+ * off.
  */
 public class AudioRecorder {
+  /** How many quiet frames to send ahead of speech: 100ms. */
+  private static final int PRE_ROLL_FRAMES = 5;
+
+  /** How often to send a comfort noise frame while quiet: every 200ms. */
+  private static final int SILENCE_INTERVAL_FRAMES = 10;
+
+  private static final long FRAME_DURATION_NS = AudioFrame.FRAME_DURATION_MS * 1000000L;
+
+  /** The sample rate and buffer size found for the microphone, worked out once. */
+  private static Buffer sBuffer;
+
   /** The stream to write to. */
   private final OutputStream mOutputStream;
 
+  /** Compresses the audio for the stream. */
+  private final AudioCodec mCodec;
+
+  /** If true, frames without speech are left out. */
+  private final boolean mSuppressSilence;
+
+  /** The sample rate to send audio at, or 0 to send it at the rate it's recorded at. */
+  private volatile int mSampleRate;
+
+  /** The bytes written so far, and those that would have been without leaving out silence. */
+  private volatile long mBytesSent;
+
+  private volatile long mBytesRecorded;
+
+  /** Guards {@link #mTalking}, and wakes the background thread when the user starts talking. */
+  private final Object mLock = new Object();
+
+  /** If true, the user is holding the talk button. */
+  private volatile boolean mTalking;
+
+  /**
+   * When the user last pressed the talk button, on the {@link SystemClock#uptimeMillis()} clock,
+   * until the first frame after it is sent.
+   */
+  private volatile long mTalkTimeMs;
+
+  /** How long it took from pressing the talk button to sending the first frame, last time. */
+  private volatile long mStartLatencyMs = -1;
+
   /**
    * If true, the background thread will continue to loop and record audio. Once false, the thread
    * will shut down.
@@ -31,20 +91,89 @@ public class AudioRecorder {
   private Thread mThread;
 
   /**
-   * A simple audio recorder.
+   * A simple audio recorder. Compresses the audio with IMA ADPCM, to a quarter of its size.
    *
    * @param file The output stream of the recording.
    */
   public AudioRecorder(ParcelFileDescriptor file) {
+    this(file, AudioFrame.CODEC_IMA_ADPCM);
+  }
+
+  /**
+   * A simple audio recorder.
+   *
+   * @param file The output stream of the recording.
+   * @param codec How to encode the audio, such as {@link AudioFrame#CODEC_PCM_16}.
+   */
+  public AudioRecorder(ParcelFileDescriptor file, int codec) {
+    this(file, codec, true);
+  }
+
+  /**
+   * A simple audio recorder.
+   *
+   * @param file The output stream of the recording.
+   * @param codec How to encode the audio, such as {@link AudioFrame#CODEC_PCM_16}.
+   * @param suppressSilence If true, frames without speech are left out.
+   */
+  public AudioRecorder(ParcelFileDescriptor file, int codec, boolean suppressSilence) {
     mOutputStream = new ParcelFileDescriptor.AutoCloseOutputStream(file);
+    mCodec = AudioCodecs.create(codec);
+    mSuppressSilence = suppressSilence;
   }
 
-  /** @return True if actively recording. False otherwise. */
+  /**
+   * Sets the sample rate to send audio at, such as one agreed with a {@link SampleRateNegotiator}.
+   * Takes effect from the next frame, and may be changed while recording.
+   *
+   * @param sampleRate One the {@link Resampler} supports.
+   */
+  public void setSampleRate(int sampleRate) {
+    if (!Resampler.isSupported(sampleRate)) {
+      throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+    }
+    mSampleRate = sampleRate;
+  }
+
+  /** @return The sample rate audio is sent at. */
+  public int getSampleRate() {
+    return mSampleRate == 0 ? getCaptureSampleRate() : mSampleRate;
+  }
+
+  /** @return The sample rate the microphone records at on this device. */
+  public static int getCaptureSampleRate() {
+    return getBuffer().sampleRate;
+  }
+
+  /** @return True if the recorder is running, whether or not the user is talking. */
   public boolean isRecording() {
     return mAlive;
   }
 
-  /** Starts recording audio. */
+  /** @return True if the user is talking, and audio is being sent. */
+  public boolean isTalking() {
+    return mTalking;
+  }
+
+  /** @return The number of bytes written to the stream so far. */
+  public long getBytesSent() {
+    return mBytesSent;
+  }
+
+  /** @return The number of bytes not written so far, by leaving out silence. */
+  public long getBytesSaved() {
+    return mBytesRecorded - mBytesSent;
+  }
+
+  /**
+   * @return How long it took from the last press of the talk button to the first frame being
+   *     sent, in milliseconds, or -1 if nothing has been sent yet.
+   */
+  public long getStartLatencyMs() {
+    return mStartLatencyMs;
+  }
+
+  /** Sets up the microphone and starts the background thread, ready for the user to talk. */
   public void start() {
     if (isRecording()) {
       Log.w(TAG, "Already running");
@@ -58,14 +187,28 @@ public class AudioRecorder {
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
 
-            Buffer buffer = new Buffer();
+            Buffer buffer = getBuffer();
+            // Audio is read a frame at a time, then encoded into the frame behind its header
+            AudioFrame frame = new AudioFrame();
+            int frameSize = AudioFrame.samplesPerFrame(buffer.sampleRate) * 2;
+            byte[] capture = new byte[frameSize];
+            Resampler resampler = null;
+            // The frame just read and converted, and the quiet ones before it, held back in case
+            // speech follows
+            byte[][] pcm = new byte[PRE_ROLL_FRAMES + 1][AudioFrame.MAX_PAYLOAD_SIZE + 2];
+            int[] pcmLengths = new int[PRE_ROLL_FRAMES + 1];
+            int[] sampleRates = new int[PRE_ROLL_FRAMES + 1];
+            long[] captureTimesUs = new long[PRE_ROLL_FRAMES + 1];
+            byte[] silence = new byte[AudioFrame.MAX_PAYLOAD_SIZE];
+            VoiceActivityDetector detector = mSuppressSilence ? new VoiceActivityDetector() : null;
+            AudioCodec comfortNoise = new ComfortNoiseCodec();
             @SuppressLint("MissingPermission") AudioRecord record =
                 new AudioRecord(
                     MediaRecorder.AudioSource.DEFAULT,
                     buffer.sampleRate,
                     AudioFormat.CHANNEL_IN_MONO,
                     AudioFormat.ENCODING_PCM_16BIT,
-                    buffer.size);
+                    Math.max(buffer.size, 2 * frameSize));
 
             if (record.getState() != AudioRecord.STATE_INITIALIZED) {
               Log.w(TAG, "Failed to start recording");
@@ -73,22 +216,102 @@ public class AudioRecorder {
               return;
             }
 
-            record.startRecording();
-
-            // While we're running, we'll read the bytes from the AudioRecord and write them
-            // to our output stream.
+            // Between presses, we wait for the user to talk. While they do, we'll read a frame's
+            // worth of audio from the AudioRecord at a time, encode it and write it, with its
+            // header, to our output stream.
+            int sequence = 0;
+            long pausedAtNs = 0;
             try {
-              while (isRecording()) {
-                int len = record.read(buffer.data, 0, buffer.size);
-                if (len >= 0 && len <= buffer.size) {
-                  mOutputStream.write(buffer.data, 0, len);
-                  mOutputStream.flush();
-                } else {
-                  Log.w(TAG, "Unexpected length returned: " + len);
+              while (waitForTalking()) {
+                if (pausedAtNs != 0) {
+                  // Count the frames we didn't send, so the other side knows how long we paused
+                  sequence += (int) ((System.nanoTime() - pausedAtNs) / FRAME_DURATION_NS);
                 }
+                record.startRecording();
+                if (detector != null) {
+                  // Whatever comes first is meant to be heard
+                  detector.startHangover();
+                }
+
+                // How many frames before this one were held back, and how many were quiet
+                int held = 0;
+                int quiet = 0;
+                // The last frame sent, so none goes out twice
+                int sent = sequence - 1;
+                while (isTalking() && isRecording()) {
+                  int slot = sequence % pcm.length;
+                  int len = record.read(capture, 0, frameSize);
+                  if (len != frameSize) {
+                    Log.w(TAG, "Unexpected length returned: " + len);
+                    continue;
+                  }
+                  // The read returns once the last sample is in, so the first came a frame ago
+                  captureTimesUs[slot] =
+                      System.nanoTime() / 1000 - AudioFrame.FRAME_DURATION_MS * 1000L;
+
+                  int sampleRate = mSampleRate == 0 ? buffer.sampleRate : mSampleRate;
+                  if (resampler == null || resampler.getOutputRate() != sampleRate) {
+                    Log.d(TAG, "Sending at " + sampleRate + "Hz, recorded at " + buffer.sampleRate);
+                    resampler = new Resampler(buffer.sampleRate, sampleRate);
+                  }
+                  // Rates that aren't a whole number of samples a frame can come out one over
+                  len =
+                      Math.min(
+                          AudioFrame.MAX_PAYLOAD_SIZE,
+                          resampler.resample(capture, 0, frameSize, pcm[slot], 0));
+                  pcmLengths[slot] = len;
+                  sampleRates[slot] = sampleRate;
+                  mBytesRecorded += AudioFrame.HEADER_SIZE + mCodec.getMaxEncodedSize(len);
+
+                  if (detector == null || detector.isSpeech(pcm[slot], 0, len)) {
+                    // Comfort noise may have gone out in place of some; the other side played it
+                    for (int i = Math.max(sequence - held, sent + 1); i <= sequence; i++) {
+                      int s = i % pcm.length;
+                      write(
+                          frame,
+                          mCodec,
+                          pcm[s],
+                          pcmLengths[s],
+                          i,
+                          sampleRates[s],
+                          captureTimesUs[s]);
+                    }
+                    held = 0;
+                    quiet = 0;
+                    sent = sequence;
+                  } else {
+                    if (quiet++ % SILENCE_INTERVAL_FRAMES == 0) {
+                      write(
+                          frame,
+                          comfortNoise,
+                          pcm[slot],
+                          len,
+                          sequence,
+                          sampleRate,
+                          captureTimesUs[slot]);
+                      sent = sequence;
+                    }
+                    held = Math.min(held + 1, PRE_ROLL_FRAMES);
+                  }
+                  sequence++;
+                }
+
+                record.stop();
+                int sampleRate = mSampleRate == 0 ? buffer.sampleRate : mSampleRate;
+                write(
+                    frame,
+                    comfortNoise,
+                    silence,
+                    AudioFrame.samplesPerFrame(sampleRate) * 2,
+                    sequence++,
+                    sampleRate,
+                    System.nanoTime() / 1000);
+                pausedAtNs = System.nanoTime();
               }
             } catch (IOException e) {
               Log.e(TAG, "Exception with recording stream", e);
+            } catch (InterruptedException e) {
+              Log.e(TAG, "Interrupted while waiting to record", e);
             } finally {
               stopInternal();
               try {
@@ -97,14 +320,89 @@ public class AudioRecorder {
                 Log.e(TAG, "Failed to stop AudioRecord", e);
               }
               record.release();
+              Log.d(
+                  TAG,
+                  String.format(
+                      "Recording sent %d of %d bytes, %d saved by leaving out silence",
+                      mBytesSent, mBytesRecorded, getBytesSaved()));
             }
           }
         };
     mThread.start();
   }
 
+  /** The user pressed the talk button just now. Starts sending what they say. */
+  public void startTalking() {
+    startTalking(SystemClock.uptimeMillis());
+  }
+
+  /**
+   * The user pressed the talk button. Starts sending what they say.
+   *
+   * @param downTimeMs When the button was pressed, on the {@link SystemClock#uptimeMillis()}
+   *     clock, such as {@link android.view.KeyEvent#getEventTime()}, to measure how long it takes
+   *     to send the first frame.
+   */
+  public void startTalking(long downTimeMs) {
+    synchronized (mLock) {
+      if (mTalking) {
+        return;
+      }
+      mTalkTimeMs = downTimeMs;
+      mTalking = true;
+      mLock.notifyAll();
+    }
+  }
+
+  /** The user let go of the talk button. Stops the microphone, but keeps it ready. */
+  public void stopTalking() {
+    synchronized (mLock) {
+      mTalking = false;
+    }
+  }
+
+  /**
+   * Waits for the user to press the talk button.
+   *
+   * @return False if the recorder was stopped first.
+   */
+  private boolean waitForTalking() throws InterruptedException {
+    synchronized (mLock) {
+      while (isRecording() && !mTalking) {
+        mLock.wait();
+      }
+    }
+    return isRecording();
+  }
+
+  /** Encodes a frame of PCM and writes it, with its header, to the stream. */
+  private void write(
+      AudioFrame frame,
+      AudioCodec codec,
+      byte[] pcm,
+      int pcmLength,
+      int sequence,
+      int sampleRate,
+      long captureTimeUs)
+      throws IOException {
+    int encodedLength = codec.encode(pcm, 0, pcmLength, frame.getBuffer(), AudioFrame.HEADER_SIZE);
+    frame.setHeader(codec.getId(), encodedLength, sequence, sampleRate, captureTimeUs);
+    frame.writeTo(mOutputStream);
+    mBytesSent += AudioFrame.HEADER_SIZE + encodedLength;
+
+    if (mTalkTimeMs != 0) {
+      mStartLatencyMs = SystemClock.uptimeMillis() - mTalkTimeMs;
+      mTalkTimeMs = 0;
+      Log.d(TAG, "First frame sent " + mStartLatencyMs + "ms after pressing talk");
+    }
+  }
+
   private void stopInternal() {
-    mAlive = false;
+    synchronized (mLock) {
+      mAlive = false;
+      mTalking = false;
+      mLock.notifyAll();
+    }
     try {
       mOutputStream.close();
     } catch (IOException e) {
@@ -123,6 +421,14 @@ public class AudioRecorder {
     }
   }
 
+  /** @return The sample rate and buffer size for the microphone, probed for the first time. */
+  private static synchronized Buffer getBuffer() {
+    if (sBuffer == null) {
+      sBuffer = new Buffer();
+    }
+    return sBuffer;
+  }
+
   private static class Buffer extends AudioBuffer {
     @Override
     protected boolean validSize(int size) {
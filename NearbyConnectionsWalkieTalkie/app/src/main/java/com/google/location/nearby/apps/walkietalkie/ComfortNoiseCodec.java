@@ -0,0 +1,78 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Stands in for frames of silence. Rather than the samples, an encoded frame holds how loud the
+ * background noise was, and decodes to random noise that loud, so the listener hears the line is
+ * still open instead of dead air between words.
+ *
+ * <pre>
+ * 0  level    2 bytes, little endian; the root mean square of the samples
+ * 2  samples  2 bytes, little endian; how many to decode to
+ * </pre>
+ */
+public class ComfortNoiseCodec implements AudioCodec {
+  /** The length of an encoded frame. */
+  static final int ENCODED_SIZE = 4;
+
+  /** The state of the noise generator. */
+  private int mSeed = 0x2545F491;
+
+  @Override
+  public int getId() {
+    return AudioFrame.CODEC_COMFORT_NOISE;
+  }
+
+  @Override
+  public int getMaxEncodedSize(int pcmLength) {
+    return ENCODED_SIZE;
+  }
+
+  @Override
+  public int getMaxDecodedSize(int encodedLength) {
+    return encodedLength < ENCODED_SIZE ? 0 : AudioFrame.MAX_PAYLOAD_SIZE;
+  }
+
+  @Override
+  public int encode(byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset) {
+    int samples = pcmLength / 2;
+    long sum = 0;
+    for (int i = 0; i < samples; i++) {
+      int p = pcmOffset + 2 * i;
+      int sample = (pcm[p] & 0xFF) | (pcm[p + 1] << 8);
+      sum += (long) sample * sample;
+    }
+    int level = samples == 0 ? 0 : (int) Math.sqrt((double) sum / samples);
+    out[outOffset] = (byte) level;
+    out[outOffset + 1] = (byte) (level >> 8);
+    out[outOffset + 2] = (byte) samples;
+    out[outOffset + 3] = (byte) (samples >> 8);
+    return ENCODED_SIZE;
+  }
+
+  @Override
+  public int decode(byte[] in, int inOffset, int inLength, byte[] pcm, int pcmOffset) {
+    if (inLength < ENCODED_SIZE) {
+      return 0;
+    }
+    int level = (in[inOffset] & 0xFF) | ((in[inOffset + 1] & 0xFF) << 8);
+    int samples =
+        Math.min(
+            AudioFrame.MAX_PAYLOAD_SIZE / 2,
+            (in[inOffset + 2] & 0xFF) | ((in[inOffset + 3] & 0xFF) << 8));
+    // Uniform noise from -a to a has a root mean square of a / sqrt(3)
+    int amplitude = Math.min(Short.MAX_VALUE, (int) (level * Math.sqrt(3)));
+    int seed = mSeed;
+    for (int i = 0; i < samples; i++) {
+      // Xorshift; cheap, and random enough to listen to
+      seed ^= seed << 13;
+      seed ^= seed >>> 17;
+      seed ^= seed << 5;
+      int sample = (int) (((long) seed * amplitude) >> 31);
+      int p = pcmOffset + 2 * i;
+      pcm[p] = (byte) sample;
+      pcm[p + 1] = (byte) (sample >> 8);
+    }
+    mSeed = seed;
+    return samples * 2;
+  }
+}
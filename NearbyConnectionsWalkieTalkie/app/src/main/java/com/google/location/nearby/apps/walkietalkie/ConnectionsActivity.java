@@ -177,6 +177,10 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
         @Override
         public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+          // A stream gets an update for every chunk; only log where a transfer ends up.
+          if (update.getStatus() == PayloadTransferUpdate.Status.IN_PROGRESS) {
+            return;
+          }
           logD(
               String.format(
                   "onPayloadTransferUpdate(endpointId=%s, update=%s)", endpointId, update));
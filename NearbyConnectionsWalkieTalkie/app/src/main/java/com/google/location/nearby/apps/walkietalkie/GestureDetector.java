@@ -44,6 +44,7 @@ public class GestureDetector {
       };
 
   private boolean mHandledDownAlready;
+  private long mDownTime;
   private final Set<Integer> mKeyCodes = new HashSet<>();
 
   /**
@@ -64,6 +65,14 @@ public class GestureDetector {
   /** The key has been released. Override this method to act on the event. */
   protected void onRelease() {}
 
+  /**
+   * @return When the key was pressed for the current or last hold, in the {@link
+   *     android.os.SystemClock#uptimeMillis()} time base.
+   */
+  public long getDownTime() {
+    return mDownTime;
+  }
+
   /** Processes a key event. Returns true if it consumes the event. */
   public boolean onKeyEvent(KeyEvent event) {
     if (!mKeyCodes.contains(event.getKeyCode())) {
@@ -78,6 +87,7 @@ public class GestureDetector {
           break;
         }
         mHandledDownAlready = true;
+        mDownTime = event.getDownTime();
         mHandler.sendEmptyMessage(State.HOLD);
         break;
       case KeyEvent.ACTION_UP:
@@ -0,0 +1,150 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * IMA ADPCM: every 16 bit sample becomes 4 bits, the step from a prediction made from the samples
+ * before it. Cuts the audio to about a quarter of its size, at some cost in quality on sharp
+ * changes.
+ *
+ * <p>An encoded frame starts with the predictor state, as a WAV file's IMA ADPCM blocks do, so it
+ * decodes without the frames before it:
+ *
+ * <pre>
+ * 0  predicted sample  2 bytes, little endian
+ * 2  step index        1 byte
+ * 3  padding           1 byte, 1 if the last 4 bits hold no sample
+ * 4  samples           4 bits each, the first in the low bits of a byte
+ * </pre>
+ *
+ * <p>The encoder carries its state over from one frame to the next, so there is no jump at frame
+ * boundaries.
+ */
+public class ImaAdpcmCodec implements AudioCodec {
+  /** The length of the predictor state in front of the samples. */
+  static final int HEADER_SIZE = 4;
+
+  private static final int[] INDEX_ADJUST = {-1, -1, -1, -1, 2, 4, 6, 8};
+
+  private static final int[] STEP_SIZES = {
+    7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66,
+    73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408,
+    449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+    2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493,
+    10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+  };
+
+  /** The encoder's state, carried from one frame to the next. */
+  private int mPredicted;
+  private int mIndex;
+
+  @Override
+  public int getId() {
+    return AudioFrame.CODEC_IMA_ADPCM;
+  }
+
+  @Override
+  public int getMaxEncodedSize(int pcmLength) {
+    return HEADER_SIZE + (pcmLength / 2 + 1) / 2;
+  }
+
+  @Override
+  public int getMaxDecodedSize(int encodedLength) {
+    return Math.max(0, encodedLength - HEADER_SIZE) * 4;
+  }
+
+  @Override
+  public int encode(byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset) {
+    int samples = pcmLength / 2;
+    int predicted = mPredicted;
+    int index = mIndex;
+    out[outOffset] = (byte) predicted;
+    out[outOffset + 1] = (byte) (predicted >> 8);
+    out[outOffset + 2] = (byte) index;
+    out[outOffset + 3] = (byte) (samples & 1);
+
+    int o = outOffset + HEADER_SIZE;
+    for (int i = 0; i < samples; i++) {
+      int p = pcmOffset + 2 * i;
+      int sample = (pcm[p] & 0xFF) | (pcm[p + 1] << 8);
+
+      int step = STEP_SIZES[index];
+      int diff = sample - predicted;
+      int nibble = 0;
+      if (diff < 0) {
+        nibble = 8;
+        diff = -diff;
+      }
+      // Find the 3 bits of step that come closest to the difference, adding up the step they
+      // stand for exactly as the decoder will
+      int delta = step >> 3;
+      if (diff >= step) {
+        nibble |= 4;
+        diff -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        nibble |= 2;
+        diff -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        nibble |= 1;
+        delta += step;
+      }
+      predicted = clamp(predicted + ((nibble & 8) != 0 ? -delta : delta));
+      index = clampIndex(index + INDEX_ADJUST[nibble & 7]);
+
+      if ((i & 1) == 0) {
+        out[o] = (byte) nibble;
+      } else {
+        out[o++] |= (byte) (nibble << 4);
+      }
+    }
+    mPredicted = predicted;
+    mIndex = index;
+    return HEADER_SIZE + (samples + 1) / 2;
+  }
+
+  @Override
+  public int decode(byte[] in, int inOffset, int inLength, byte[] pcm, int pcmOffset) {
+    if (inLength < HEADER_SIZE) {
+      return 0;
+    }
+    int predicted = (short) ((in[inOffset] & 0xFF) | (in[inOffset + 1] << 8));
+    int index = clampIndex(in[inOffset + 2] & 0xFF);
+
+    int samples = (inLength - HEADER_SIZE) * 2 - (in[inOffset + 3] & 1);
+    for (int i = 0; i < samples; i++) {
+      int packed = in[inOffset + HEADER_SIZE + i / 2];
+      int nibble = (i & 1) == 0 ? packed & 0x0F : (packed >> 4) & 0x0F;
+
+      int step = STEP_SIZES[index];
+      int delta = step >> 3;
+      if ((nibble & 4) != 0) {
+        delta += step;
+      }
+      if ((nibble & 2) != 0) {
+        delta += step >> 1;
+      }
+      if ((nibble & 1) != 0) {
+        delta += step >> 2;
+      }
+      predicted = clamp(predicted + ((nibble & 8) != 0 ? -delta : delta));
+      index = clampIndex(index + INDEX_ADJUST[nibble & 7]);
+
+      int p = pcmOffset + 2 * i;
+      pcm[p] = (byte) predicted;
+      pcm[p + 1] = (byte) (predicted >> 8);
+    }
+    return samples * 2;
+  }
+
+  private static int clamp(int sample) {
+    return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+  }
+
+  private static int clampIndex(int index) {
+    return Math.max(0, Math.min(STEP_SIZES.length - 1, index));
+  }
+}
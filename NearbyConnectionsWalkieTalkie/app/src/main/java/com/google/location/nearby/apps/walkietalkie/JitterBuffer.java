@@ -0,0 +1,278 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Holds {@link AudioFrame}s between the stream and the {@link android.media.AudioTrack}, to smooth
+ * out the uneven times they arrive at, and hands them out in sequence order, one per frame period.
+ *
+ * <p>The buffer measures how much arrival times wander, the interarrival jitter of RFC 3550, and
+ * keeps a few times that much audio in hand before playing: enough to ride out the usual bursts
+ * and stalls, without adding delay on a steady link. When it runs dry it stops until it has that
+ * much again. When it holds more than it should, after a stall is followed by a burst, it drops
+ * the oldest frames to catch up, so latency doesn't stay high for the rest of the stream.
+ *
+ * <p>While the sender is quiet it only sends a {@link AudioFrame#CODEC_COMFORT_NOISE} frame now
+ * and then. After one is taken, the frames missing until the next are not lost but left out, and
+ * the buffer hands out that one in their place without running dry. It doesn't move past the
+ * missing frames while doing so: when speech starts the sender also sends the quiet frames just
+ * before it, and those must still find their turn to come. Whatever is left out by the time the
+ * next frame arrives is skipped.
+ *
+ * <p>Frames are copied into slots allocated up front. One thread puts frames in as they arrive
+ * and another takes them out to play.
+ */
+public class JitterBuffer {
+  /** What {@link #take} found. */
+  public static final int FRAME = 0;
+
+  /** The next frame was lost; play something in its place. */
+  public static final int LOST = 1;
+
+  /** The buffer ran dry; play something in its place while it fills up again. */
+  public static final int UNDERRUN = 2;
+
+  /** The stream ended and every frame has been taken. */
+  public static final int END = 3;
+
+  /** The buffer is filling up before playing; only returned by {@link #poll}. */
+  public static final int WAITING = 4;
+
+  /** The most frames held, a second's worth. */
+  private static final int CAPACITY = 1000 / AudioFrame.FRAME_DURATION_MS;
+
+  /** The least frames held before playing. */
+  private static final int MIN_DEPTH = 2;
+
+  /** The most frames held before playing. */
+  private static final int MAX_DEPTH = CAPACITY / 2;
+
+  /** How many times the jitter to keep in hand. */
+  private static final int JITTER_MULTIPLE = 3;
+
+  /** How far the depth can go over the target before frames are dropped. */
+  private static final int MAX_EXCESS = 2;
+
+  private static final long FRAME_DURATION_US = AudioFrame.FRAME_DURATION_MS * 1000L;
+
+  private final AudioFrame[] mSlots = new AudioFrame[CAPACITY];
+  private final boolean[] mFilled = new boolean[CAPACITY];
+
+  /** The last comfort noise frame taken, while the sender is quiet. */
+  private final AudioFrame mSilence = new AudioFrame();
+
+  private boolean mSilent;
+
+  /** The sequence numbers of the next frame to take and of the newest frame put. */
+  private int mNext;
+  private int mNewest;
+
+  private boolean mStarted;
+  private boolean mPlaying;
+  private boolean mClosed;
+
+  /** The interarrival jitter, and the transit time of the last frame it was worked out from. */
+  private double mJitterUs;
+  private long mLastTransitUs;
+
+  private int mTargetDepth = MIN_DEPTH;
+
+  private int mLateFrames;
+  private int mLostFrames;
+  private int mDroppedFrames;
+  private int mUnderruns;
+
+  public JitterBuffer() {
+    for (int i = 0; i < CAPACITY; i++) {
+      mSlots[i] = new AudioFrame();
+    }
+  }
+
+  /**
+   * Copies a frame in.
+   *
+   * @param arrivalTimeUs When the frame arrived, on a monotonic clock.
+   */
+  public synchronized void put(AudioFrame frame, long arrivalTimeUs) {
+    if (mClosed) {
+      return;
+    }
+    int sequence = frame.getSequence();
+    updateJitter(arrivalTimeUs - frame.getCaptureTimeUs());
+    if (!mStarted) {
+      mStarted = true;
+      mNext = sequence;
+      mNewest = sequence;
+    }
+
+    if (sequence - mNext < 0) {
+      if (mSilent && getDepth() == 0) {
+        // The sender started counting again, such as after restarting; start again from here
+        mNext = sequence;
+        mNewest = sequence;
+        mPlaying = false;
+      } else {
+        // Its turn has passed
+        mLateFrames++;
+        return;
+      }
+    }
+    if (sequence - mNext >= CAPACITY) {
+      // Too far ahead to hold; skip to it
+      while (sequence - mNext >= CAPACITY) {
+        discardNext();
+      }
+    }
+    int slot = slot(sequence);
+    mSlots[slot].copyFrom(frame);
+    mFilled[slot] = true;
+    if (sequence - mNewest > 0) {
+      mNewest = sequence;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Copies out the frame to play next, waiting for the buffer to fill up first if it isn't
+   * playing.
+   *
+   * @return {@link #FRAME} if there is a frame in {@code out}, {@link #LOST} or {@link #UNDERRUN}
+   *     if there is none to play, or {@link #END} once the stream has ended.
+   */
+  public synchronized int take(AudioFrame out) throws InterruptedException {
+    int status;
+    while ((status = poll(out)) == WAITING) {
+      wait();
+    }
+    return status;
+  }
+
+  /**
+   * Copies out the frame to play next, like {@link #take}, but returns {@link #WAITING} rather
+   * than wait while the buffer fills up.
+   */
+  public synchronized int poll(AudioFrame out) {
+    if (!mPlaying) {
+      int depth = getDepth();
+      if (depth >= mTargetDepth || (mClosed && depth > 0)) {
+        mPlaying = true;
+      } else {
+        return mClosed ? END : WAITING;
+      }
+    }
+
+    if (getDepth() == 0) {
+      if (mClosed) {
+        return END;
+      }
+      if (mSilent) {
+        // Nothing is sent until the next comfort noise frame, or speech and the frames before it
+        out.copyFrom(mSilence);
+        return FRAME;
+      }
+      mUnderruns++;
+      mPlaying = false;
+      return UNDERRUN;
+    }
+    if (mSilent) {
+      // The frames up to the one that came were left out, and their time has been played
+      while (mNext != mNewest && !mFilled[slot(mNext)]) {
+        mNext++;
+      }
+    }
+    // Catch up after a burst, rather than keep the extra delay
+    while (getDepth() > mTargetDepth + MAX_EXCESS && !mClosed) {
+      discardNext();
+    }
+
+    int slot = slot(mNext);
+    if (!mFilled[slot]) {
+      mNext++;
+      // Frames after it are here, and it still isn't
+      mLostFrames++;
+      return LOST;
+    }
+    out.copyFrom(mSlots[slot]);
+    mFilled[slot] = false;
+    mNext++;
+    mSilent = out.getCodec() == AudioFrame.CODEC_COMFORT_NOISE;
+    if (mSilent) {
+      mSilence.copyFrom(out);
+    }
+    return FRAME;
+  }
+
+  /** The stream has ended; what is in the buffer can still be taken. */
+  public synchronized void close() {
+    mClosed = true;
+    notifyAll();
+  }
+
+  /** @return The number of frames from the next to play to the newest, including any missing. */
+  public synchronized int getDepth() {
+    return mStarted && mNewest - mNext >= 0 ? mNewest - mNext + 1 : 0;
+  }
+
+  /** @return The number of frames the buffer fills up to before playing. */
+  public synchronized int getTargetDepth() {
+    return mTargetDepth;
+  }
+
+  /** @return The interarrival jitter, in milliseconds. */
+  public synchronized double getJitterMs() {
+    return mJitterUs / 1000;
+  }
+
+  /** @return The number of frames that arrived after their turn to play. */
+  public synchronized int getLateFrames() {
+    return mLateFrames;
+  }
+
+  /** @return The number of frames that hadn't arrived by their turn to play. */
+  public synchronized int getLostFrames() {
+    return mLostFrames;
+  }
+
+  /** @return The number of frames dropped to bring the delay down, or to make room. */
+  public synchronized int getDroppedFrames() {
+    return mDroppedFrames;
+  }
+
+  /** @return The number of times the buffer ran dry. */
+  public synchronized int getUnderruns() {
+    return mUnderruns;
+  }
+
+  /** Moves past the next frame without playing it. */
+  private void discardNext() {
+    int slot = slot(mNext);
+    if (mFilled[slot]) {
+      mFilled[slot] = false;
+      mDroppedFrames++;
+      // The sender still went quiet, even if it isn't heard
+      mSilent = mSlots[slot].getCodec() == AudioFrame.CODEC_COMFORT_NOISE;
+      if (mSilent) {
+        mSilence.copyFrom(mSlots[slot]);
+      }
+    }
+    mNext++;
+  }
+
+  /**
+   * Updates the jitter from the transit time of a frame, the difference between when it arrived
+   * and when it was captured. The clocks differ, but only the change from frame to frame counts.
+   */
+  private void updateJitter(long transitUs) {
+    if (mStarted) {
+      long change = Math.abs(transitUs - mLastTransitUs);
+      mJitterUs += (change - mJitterUs) / 16;
+    }
+    mLastTransitUs = transitUs;
+
+    long target = MIN_DEPTH + Math.round(JITTER_MULTIPLE * mJitterUs / FRAME_DURATION_US);
+    mTargetDepth = (int) Math.min(MAX_DEPTH, target);
+  }
+
+  private static int slot(int sequence) {
+    int slot = sequence % CAPACITY;
+    return slot < 0 ? slot + CAPACITY : slot;
+  }
+}
@@ -0,0 +1,77 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * G.711 mu-law: every 16 bit sample becomes one byte, on a logarithmic scale that keeps quiet
+ * sounds as accurate as loud ones. Halves the size of the audio and keeps it close to telephone
+ * quality. Has no state, so frames are independent by nature.
+ */
+public class MuLawCodec implements AudioCodec {
+  private static final int BIAS = 0x84;
+  private static final int CLIP = 32635;
+
+  /** The sample for every encoded byte. */
+  private static final short[] DECODED = new short[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int value = ~i;
+      int exponent = (value >> 4) & 0x07;
+      int mantissa = value & 0x0F;
+      int magnitude = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+      DECODED[i] = (short) ((value & 0x80) != 0 ? -magnitude : magnitude);
+    }
+  }
+
+  @Override
+  public int getId() {
+    return AudioFrame.CODEC_MU_LAW;
+  }
+
+  @Override
+  public int getMaxEncodedSize(int pcmLength) {
+    return pcmLength / 2;
+  }
+
+  @Override
+  public int getMaxDecodedSize(int encodedLength) {
+    return encodedLength * 2;
+  }
+
+  @Override
+  public int encode(byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset) {
+    int samples = pcmLength / 2;
+    for (int i = 0; i < samples; i++) {
+      int p = pcmOffset + 2 * i;
+      out[outOffset + i] = encode((pcm[p] & 0xFF) | (pcm[p + 1] << 8));
+    }
+    return samples;
+  }
+
+  @Override
+  public int decode(byte[] in, int inOffset, int inLength, byte[] pcm, int pcmOffset) {
+    for (int i = 0; i < inLength; i++) {
+      short sample = DECODED[in[inOffset + i] & 0xFF];
+      int p = pcmOffset + 2 * i;
+      pcm[p] = (byte) sample;
+      pcm[p + 1] = (byte) (sample >> 8);
+    }
+    return inLength * 2;
+  }
+
+  /** Encodes one sample. */
+  static byte encode(int sample) {
+    int sign = 0;
+    if (sample < 0) {
+      sign = 0x80;
+      sample = -sample;
+    }
+    if (sample > CLIP) {
+      sample = CLIP;
+    }
+    sample += BIAS;
+    // The position of the highest bit above the 7 the mantissa and bias cover
+    int exponent = 31 - Integer.numberOfLeadingZeros(sample >> 7);
+    int mantissa = (sample >> (exponent + 3)) & 0x0F;
+    return (byte) ~(sign | (exponent << 4) | mantissa);
+  }
+}
@@ -0,0 +1,222 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Arrays;
+
+/**
+ * Converts a stream of 16 bit little endian PCM from one sample rate to another, a frame at a time,
+ * such as from the rate the microphone records at to the rate agreed for the stream.
+ *
+ * <p>A polyphase windowed sinc filter: for a ratio of L output samples to M input samples, in
+ * lowest terms, the low pass filter for the rate L times the input's is worked out once, and split
+ * into L phases. Every output sample then takes one phase over the last few input samples: {@link
+ * #TAPS} of them, or proportionally more when downsampling, so the filter is as sharp at the lower
+ * rate either way. It cuts off a little under half the lower of the two rates, so downsampling
+ * doesn't alias and upsampling doesn't image.
+ *
+ * <p>Only the common rates in {@link #SAMPLE_RATES} are supported. The filter has a phase for
+ * every output sample between two input samples, so a ratio like 47999 to 48000 would take
+ * megabytes and a noticeable time to design.
+ *
+ * <p>The last input samples are kept from one frame to the next, so the stream converts as if in
+ * one piece. Frames must be no longer than {@link #MAX_SAMPLES}, and nothing is allocated once
+ * the resampler is made. An instance is used by one thread.
+ */
+public class Resampler {
+  /** The most samples in a frame passed to {@link #resample}. */
+  public static final int MAX_SAMPLES = AudioFrame.MAX_PAYLOAD_SIZE / 2;
+
+  /** The sample rates that can be converted between. */
+  private static final int[] SAMPLE_RATES = {
+    8000, 11025, 16000, 22050, 24000, 32000, 44100, 48000
+  };
+
+  /** The number of supported sample rates, for tables indexed by {@link #indexOf}. */
+  static final int RATE_COUNT = SAMPLE_RATES.length;
+
+  /** The length of each phase of the filter, in samples at the lower rate. */
+  static final int TAPS = 32;
+
+  /** How far up to the lower rate's Nyquist frequency the pass band goes. */
+  private static final double CUTOFF = 0.85;
+
+  /** The Kaiser window's shape; about 80dB down in the stop band. */
+  private static final double KAISER_BETA = 8;
+
+  private final int mInputRate;
+  private final int mOutputRate;
+
+  /** The ratio of output to input samples, in lowest terms. */
+  private final int mUp;
+
+  private final int mDown;
+
+  /** The length of each phase of the filter, in input samples. */
+  private final int mTaps;
+
+  /** The filter, a phase to a row, each in reverse so it lines up with the input samples. */
+  private final float[][] mPhases;
+
+  /** The last {@code mTaps - 1} input samples, then the samples of the frame being converted. */
+  private final float[] mInput;
+
+  /** The phase of the next output sample. */
+  private int mPhase;
+
+  /**
+   * How far into the next frame the next output sample's input is, past the history; 0 for the
+   * first sample of the frame.
+   */
+  private int mPosition;
+
+  public Resampler(int inputRate, int outputRate) {
+    if (!isSupported(inputRate) || !isSupported(outputRate)) {
+      throw new IllegalArgumentException(
+          "Unsupported sample rates: " + inputRate + " to " + outputRate);
+    }
+    mInputRate = inputRate;
+    mOutputRate = outputRate;
+    int gcd = gcd(inputRate, outputRate);
+    mUp = outputRate / gcd;
+    mDown = inputRate / gcd;
+    mTaps = (int) Math.ceil((double) TAPS * Math.max(mUp, mDown) / mUp);
+    mPhases = mUp == mDown ? null : design(mUp, mDown, mTaps);
+    mInput = new float[mTaps - 1 + MAX_SAMPLES];
+  }
+
+  /** @return True if the sample rate is one of {@link #SAMPLE_RATES}. */
+  public static boolean isSupported(int sampleRate) {
+    return indexOf(sampleRate) >= 0;
+  }
+
+  /** @return Where the sample rate is in {@link #SAMPLE_RATES}, or -1 if it isn't supported. */
+  static int indexOf(int sampleRate) {
+    for (int i = 0; i < SAMPLE_RATES.length; i++) {
+      if (SAMPLE_RATES[i] == sampleRate) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public int getInputRate() {
+    return mInputRate;
+  }
+
+  public int getOutputRate() {
+    return mOutputRate;
+  }
+
+  /** Forgets the stream converted so far, to start on another. */
+  public void reset() {
+    Arrays.fill(mInput, 0, mTaps - 1, 0);
+    mPhase = 0;
+    mPosition = 0;
+  }
+
+  /** @return The most bytes {@link #resample} writes for the given length of input. */
+  public int getMaxOutputSize(int inputLength) {
+    return (int) (((long) inputLength / 2 * mUp + mDown - 1) / mDown + 1) * 2;
+  }
+
+  /**
+   * Converts the next frame of the stream.
+   *
+   * @param in The samples, 2 bytes each.
+   * @param inLength The length of the samples in bytes, up to {@link #MAX_SAMPLES} samples.
+   * @return The number of bytes written to {@code out}.
+   */
+  public int resample(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) {
+    int samples = inLength / 2;
+    if (samples > MAX_SAMPLES) {
+      throw new IllegalArgumentException("Frame too long: " + samples);
+    }
+    if (mPhases == null) {
+      System.arraycopy(in, inOffset, out, outOffset, samples * 2);
+      return samples * 2;
+    }
+
+    float[] input = mInput;
+    int taps = mTaps;
+    int history = taps - 1;
+    for (int i = 0; i < samples; i++) {
+      int p = inOffset + 2 * i;
+      input[history + i] = (short) ((in[p] & 0xFF) | (in[p + 1] << 8));
+    }
+
+    int o = outOffset;
+    int position = mPosition;
+    int phase = mPhase;
+    while (position < samples) {
+      // The input samples from taps - 1 back up to this one, in mInput
+      float[] filter = mPhases[phase];
+      float sum = 0;
+      for (int j = 0; j < taps; j++) {
+        sum += filter[j] * input[position + j];
+      }
+      int sample = Math.round(sum);
+      sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+      out[o++] = (byte) sample;
+      out[o++] = (byte) (sample >> 8);
+
+      phase += mDown;
+      position += phase / mUp;
+      phase %= mUp;
+    }
+    mPhase = phase;
+    mPosition = position - samples;
+
+    // Keep the end of this frame for the start of the next
+    System.arraycopy(input, samples, input, 0, history);
+    return o - outOffset;
+  }
+
+  /** @return The filter, split into phases. */
+  private static float[][] design(int up, int down, int taps) {
+    int length = up * taps;
+    double center = (length - 1) / 2.0;
+    // The cut off, as a fraction of the upsampled rate
+    double cutoff = CUTOFF * 0.5 / Math.max(up, down);
+    double[] filter = new double[length];
+    for (int k = 0; k < length; k++) {
+      double x = k - center;
+      double sinc = x == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * x) / (2 * Math.PI * cutoff * x);
+      double window = x / (center + 1);
+      filter[k] =
+          2 * cutoff * sinc * bessel(KAISER_BETA * Math.sqrt(1 - window * window))
+              / bessel(KAISER_BETA);
+    }
+
+    float[][] phases = new float[up][taps];
+    for (int phase = 0; phase < up; phase++) {
+      // Every phase passes DC at a gain of exactly 1, so there's no ripple at the upsampled rate
+      double sum = 0;
+      for (int j = 0; j < taps; j++) {
+        sum += filter[phase + j * up];
+      }
+      for (int j = 0; j < taps; j++) {
+        phases[phase][taps - 1 - j] = (float) (filter[phase + j * up] / sum);
+      }
+    }
+    return phases;
+  }
+
+  /** @return The zeroth order modified Bessel function of the first kind, for the window. */
+  private static double bessel(double x) {
+    double sum = 1;
+    double term = 1;
+    for (int k = 1; k < 32; k++) {
+      term *= (x / (2 * k)) * (x / (2 * k));
+      sum += term;
+    }
+    return sum;
+  }
+
+  private static int gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+}
@@ -0,0 +1,119 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Agrees with the devices we're connected to on the sample rate to send audio at, so that it
+ * doesn't matter what rate each one's microphone and speaker happen to support.
+ *
+ * <p>When a device connects, each side sends the other its capabilities: the highest rate it
+ * wants audio sent at, which is no more than its microphone records at, and no more than {@link
+ * #PREFERRED_SAMPLE_RATE}, plenty for speech. Everyone then sends at the lowest of those, their own
+ * included, rounded down to one of {@link #SAMPLE_RATES}. Since every device hears the same
+ * capabilities, they all settle on the same rate. Audio is converted to and from it with a {@link
+ * Resampler}.
+ *
+ * <pre>
+ * 0  magic        4 bytes, big endian; 'WTSR'
+ * 4  version      1 byte
+ * 5  sample rate  4 bytes, big endian
+ * </pre>
+ *
+ * <p>Not thread safe; use it from the thread the Nearby Connections callbacks come in on.
+ */
+public class SampleRateNegotiator {
+  /** The highest rate to send at, to save bandwidth. Speech needs no more than 16kHz. */
+  public static final int PREFERRED_SAMPLE_RATE = 16000;
+
+  /** The rates audio may be sent at; all a whole number of samples a frame. */
+  private static final int[] SAMPLE_RATES = {8000, 16000, 24000, 32000, 48000};
+
+  private static final int MAGIC = 0x57545352;
+  private static final int VERSION = 1;
+
+  /** The length of a capabilities message. */
+  static final int MESSAGE_SIZE = 9;
+
+  /** The highest rate we want audio sent at. */
+  private final int mLocalSampleRate;
+
+  /** The highest rate each connected endpoint wants audio sent at, by endpoint id. */
+  private final Map<String, Integer> mRemoteSampleRates = new HashMap<>();
+
+  /** @param captureSampleRate The sample rate this device's microphone records at. */
+  public SampleRateNegotiator(int captureSampleRate) {
+    mLocalSampleRate = round(Math.min(PREFERRED_SAMPLE_RATE, captureSampleRate));
+  }
+
+  /** @return The message to send to a newly connected endpoint. */
+  public byte[] getCapabilities() {
+    byte[] message = new byte[MESSAGE_SIZE];
+    writeInt(message, 0, MAGIC);
+    message[4] = (byte) VERSION;
+    writeInt(message, 5, mLocalSampleRate);
+    return message;
+  }
+
+  /**
+   * Takes note of the capabilities an endpoint sent.
+   *
+   * @return True if the message was a capabilities message, whether or not the rate changed.
+   */
+  public boolean onCapabilities(String endpointId, byte[] message) {
+    if (message == null || message.length < MESSAGE_SIZE || readInt(message, 0) != MAGIC) {
+      return false;
+    }
+    // Newer versions may add to the end, but keep the rate where it is
+    int sampleRate = readInt(message, 5);
+    if (sampleRate <= 0) {
+      return false;
+    }
+    mRemoteSampleRates.put(endpointId, sampleRate);
+    return true;
+  }
+
+  /** Forgets an endpoint that disconnected, which may let the rate go back up. */
+  public void onDisconnected(String endpointId) {
+    mRemoteSampleRates.remove(endpointId);
+  }
+
+  /** Forgets every endpoint, such as once we've disconnected from them all. */
+  public void reset() {
+    mRemoteSampleRates.clear();
+  }
+
+  /** @return The sample rate to send audio at. */
+  public int getSampleRate() {
+    int sampleRate = mLocalSampleRate;
+    for (int remote : mRemoteSampleRates.values()) {
+      sampleRate = Math.min(sampleRate, remote);
+    }
+    return round(sampleRate);
+  }
+
+  /** @return The highest of {@link #SAMPLE_RATES} no higher than the given rate, or the lowest. */
+  private static int round(int sampleRate) {
+    int rounded = SAMPLE_RATES[0];
+    for (int rate : SAMPLE_RATES) {
+      if (rate <= sampleRate) {
+        rounded = rate;
+      }
+    }
+    return rounded;
+  }
+
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >> 24);
+    buffer[offset + 1] = (byte) (value >> 16);
+    buffer[offset + 2] = (byte) (value >> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  private static int readInt(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) << 24
+        | (buffer[offset + 1] & 0xFF) << 16
+        | (buffer[offset + 2] & 0xFF) << 8
+        | (buffer[offset + 3] & 0xFF);
+  }
+}
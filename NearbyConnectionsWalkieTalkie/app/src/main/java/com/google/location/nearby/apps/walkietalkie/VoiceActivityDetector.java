@@ -0,0 +1,113 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Tells frames of speech from frames of background noise, so the {@link AudioRecorder} can leave
+ * out the silent gaps.
+ *
+ * <p>A frame is speech if it is well above the background noise level, or a little above it with a
+ * zero crossing rate unlike the background's, which catches the quiet hiss of sounds like "s" and
+ * "f". The noise level drops at once to a quieter frame, and otherwise rises slowly, more slowly
+ * still through speech, so it settles on the quiet between words. It starts low, so the first
+ * frames, which are most likely speech when someone has just pressed the talk button, get through
+ * rather than be taken for the background.
+ *
+ * <p>A frame is still called speech for a while after the last one that sounded like it, the
+ * hangover, so quiet word endings and short pauses between words aren't cut.
+ */
+public class VoiceActivityDetector {
+  /** How many frames after the last speech to keep calling it speech: 200ms. */
+  public static final int HANGOVER_FRAMES = 10;
+
+  /** How many times the noise power a frame must have to be speech: 6dB. */
+  private static final int SPEECH_RATIO = 4;
+
+  /** The same, for a frame that crosses zero at a rate unlike the noise's. */
+  private static final int UNVOICED_RATIO = 2;
+
+  /** How far the zero crossing rate must be from the noise's to count, in crossings per sample. */
+  private static final double ZERO_CROSSING_DIFFERENCE = 0.15;
+
+  /** The least noise power assumed, so digital silence doesn't make every click speech. */
+  private static final double MIN_NOISE_POWER = 10 * 10;
+
+  /** How much of the way a quiet frame moves the noise estimate, when it is louder. */
+  private static final double NOISE_RISE = 1.0 / 64;
+
+  /** How much of the way a frame of speech moves the noise estimate. */
+  private static final double SPEECH_NOISE_RISE = 1.0 / 512;
+
+  private double mNoisePower = MIN_NOISE_POWER;
+  private double mNoiseZeroCrossings = -1;
+  private int mHangover;
+
+  /** The mean square and zero crossing rate of the last frame. */
+  private double mPower;
+
+  private double mZeroCrossings;
+
+  /**
+   * Looks at the next frame.
+   *
+   * @param pcm 16 bit little endian PCM.
+   * @param length The length of the frame in bytes.
+   * @return True if it is speech, or close enough after speech to be sent as such.
+   */
+  public boolean isSpeech(byte[] pcm, int offset, int length) {
+    measure(pcm, offset, length);
+    if (mNoiseZeroCrossings < 0) {
+      mNoiseZeroCrossings = mZeroCrossings;
+    }
+
+    boolean speech =
+        mPower > SPEECH_RATIO * mNoisePower
+            || (mPower > UNVOICED_RATIO * mNoisePower
+                && Math.abs(mZeroCrossings - mNoiseZeroCrossings) > ZERO_CROSSING_DIFFERENCE);
+    if (mPower < mNoisePower) {
+      mNoisePower = Math.max(MIN_NOISE_POWER, mPower);
+    } else {
+      mNoisePower += (mPower - mNoisePower) * (speech ? SPEECH_NOISE_RISE : NOISE_RISE);
+    }
+    if (speech) {
+      mHangover = HANGOVER_FRAMES;
+      return true;
+    }
+
+    mNoiseZeroCrossings += (mZeroCrossings - mNoiseZeroCrossings) * NOISE_RISE * 4;
+    if (mHangover > 0) {
+      mHangover--;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Calls the next {@link #HANGOVER_FRAMES} frames speech, as if it had just been heard. For when
+   * speech is expected, such as when the talk button is pressed.
+   */
+  public void startHangover() {
+    mHangover = HANGOVER_FRAMES;
+  }
+
+  /** @return The root mean square of the background noise, in 16 bit sample units. */
+  public int getNoiseLevel() {
+    return (int) Math.sqrt(Math.max(0, mNoisePower));
+  }
+
+  private void measure(byte[] pcm, int offset, int length) {
+    int samples = length / 2;
+    long sum = 0;
+    int crossings = 0;
+    int previous = 0;
+    for (int i = 0; i < samples; i++) {
+      int p = offset + 2 * i;
+      int sample = (pcm[p] & 0xFF) | (pcm[p + 1] << 8);
+      sum += (long) sample * sample;
+      if ((sample ^ previous) < 0) {
+        crossings++;
+      }
+      previous = sample;
+    }
+    mPower = samples == 0 ? 0 : (double) sum / samples;
+    mZeroCrossings = samples == 0 ? 0 : (double) crossings / samples;
+  }
+}
@@ -18,7 +18,6 @@ import android.os.Vibrator;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
-import androidx.annotation.WorkerThread;
 import androidx.core.content.ContextCompat;
 import androidx.core.view.ViewCompat;
 import android.text.SpannableString;
@@ -35,9 +34,7 @@ import com.google.android.gms.nearby.connection.Payload;
 import com.google.android.gms.nearby.connection.Strategy;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Random;
-import java.util.Set;
 
 /**
  * Our WalkieTalkie Activity. This Activity has 4 {@link State}s.
@@ -120,21 +117,24 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
         @Override
         protected void onHold() {
           logV("onHold");
-          startRecording();
+          startTalking(getDownTime());
         }
 
         @Override
         protected void onRelease() {
           logV("onRelease");
-          stopRecording();
+          stopTalking();
         }
       };
 
-  /** For recording audio as the user speaks. */
+  /** For recording audio as the user speaks. Kept ready the whole time we're connected. */
   @Nullable private AudioRecorder mRecorder;
 
-  /** For playing audio from other users nearby. */
-  private final Set<AudioPlayer> mAudioPlayers = new HashSet<>();
+  /** For playing audio from other users nearby, mixed into one track however many are talking. */
+  @Nullable private AudioMixer mAudioMixer;
+
+  /** Agrees with the devices we're connected to on the sample rate to send audio at. */
+  private SampleRateNegotiator mSampleRateNegotiator;
 
   /** The phone's original media volume. */
   private int mOriginalVolume;
@@ -172,6 +172,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
 
     mName = generateRandomName();
+    mSampleRateNegotiator = new SampleRateNegotiator(AudioRecorder.getCaptureSampleRate());
 
     ((TextView) findViewById(R.id.name)).setText(mName);
   }
@@ -254,6 +255,13 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     Toast.makeText(
             this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+    // Tell everyone what rate we'd like audio at; those already connected will ignore a repeat
+    send(Payload.fromBytes(mSampleRateNegotiator.getCapabilities()));
+    if (getState() == State.CONNECTED) {
+      // Someone else joined; start a new stream, so it goes to them too
+      startRecording();
+      return;
+    }
     setState(State.CONNECTED);
   }
 
@@ -262,6 +270,8 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     Toast.makeText(
             this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+    mSampleRateNegotiator.onDisconnected(endpoint.getId());
+    updateSampleRate();
 
     // If we lost all our endpoints, then we should reset the state of our app and go back
     // to our initial state (discovering).
@@ -311,6 +321,14 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
       mCurrentAnimator.cancel();
     }
 
+    // Get the microphone ready only while there's someone to talk to.
+    if (oldState == State.CONNECTED && isRecording()) {
+      stopRecording();
+    }
+    if (oldState == State.CONNECTED) {
+      mSampleRateNegotiator.reset();
+    }
+
     // Update Nearby Connections to the new state.
     switch (newState) {
       case DISCOVERING:
@@ -335,6 +353,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
           // but clear the discover runnable.
           removeCallbacks(mDiscoverRunnable);
         }
+        startRecording();
         break;
       case UNKNOWN:
         stopAllEndpoints();
@@ -538,44 +557,46 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   @Override
   protected void onReceive(Endpoint endpoint, Payload payload) {
     if (payload.getType() == Payload.Type.STREAM) {
-      AudioPlayer player =
-          new AudioPlayer(payload.asStream().asInputStream()) {
-            @WorkerThread
-            @Override
-            protected void onFinish() {
-              final AudioPlayer audioPlayer = this;
-              post(
-                  new Runnable() {
-                    @UiThread
-                    @Override
-                    public void run() {
-                      mAudioPlayers.remove(audioPlayer);
-                    }
-                  });
-            }
-          };
-      mAudioPlayers.add(player);
-      player.start();
+      if (mAudioMixer == null) {
+        mAudioMixer = new AudioMixer();
+        mAudioMixer.start();
+      }
+      mAudioMixer.addStream(payload.asStream().asInputStream());
+    } else if (payload.getType() == Payload.Type.BYTES
+        && mSampleRateNegotiator.onCapabilities(endpoint.getId(), payload.asBytes())) {
+      updateSampleRate();
     }
   }
 
-  /** Stops all currently streaming audio tracks. */
+  /** Sends audio at the sample rate agreed with everyone connected. */
+  private void updateSampleRate() {
+    if (isRecording() && mRecorder.getSampleRate() != mSampleRateNegotiator.getSampleRate()) {
+      logD("Sending audio at " + mSampleRateNegotiator.getSampleRate() + "Hz");
+      mRecorder.setSampleRate(mSampleRateNegotiator.getSampleRate());
+    }
+  }
+
+  /** Stops all currently streaming audio, and the track it plays through. */
   private void stopPlaying() {
     logV("stopPlaying()");
-    for (AudioPlayer player : mAudioPlayers) {
-      player.stop();
-    }
-    mAudioPlayers.clear();
+    mAudioMixer.stop();
+    mAudioMixer = null;
   }
 
-  /** @return True if currently playing. */
+  /** @return True if the audio track is open, whether or not anyone is talking. */
   private boolean isPlaying() {
-    return !mAudioPlayers.isEmpty();
+    return mAudioMixer != null;
   }
 
-  /** Starts recording sound from the microphone and streaming it to all connected devices. */
+  /**
+   * Gets the microphone ready, and opens a stream to all connected devices, for whenever the user
+   * talks. If there already is a stream, it's replaced by one that also goes to anyone who has
+   * connected since.
+   */
   private void startRecording() {
     logV("startRecording()");
+    boolean talking = isRecording() && mRecorder.isTalking();
+    stopRecording();
     try {
       ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
 
@@ -584,13 +605,39 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
 
       // Use the second half of the payload (the write side) in AudioRecorder.
       mRecorder = new AudioRecorder(payloadPipe[1]);
+      mRecorder.setSampleRate(mSampleRateNegotiator.getSampleRate());
       mRecorder.start();
+      if (talking) {
+        mRecorder.startTalking();
+      }
     } catch (IOException e) {
       logE("startRecording() failed", e);
     }
   }
 
-  /** Stops streaming sound from the microphone. */
+  /**
+   * Starts streaming sound from the microphone to all connected devices.
+   *
+   * @param downTimeMs When the user pressed the talk button, in the {@link
+   *     android.os.SystemClock#uptimeMillis()} time base.
+   */
+  private void startTalking(long downTimeMs) {
+    if (!isRecording()) {
+      startRecording();
+    }
+    if (isRecording()) {
+      mRecorder.startTalking(downTimeMs);
+    }
+  }
+
+  /** Stops streaming sound from the microphone, keeping it ready for next time. */
+  private void stopTalking() {
+    if (isRecording()) {
+      mRecorder.stopTalking();
+    }
+  }
+
+  /** Stops streaming sound from the microphone, and lets it go. */
   private void stopRecording() {
     logV("stopRecording()");
     if (mRecorder != null) {
@@ -0,0 +1,67 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Locale;
+
+/**
+ * Measures how fast the {@link AudioCodec}s encode and decode frames of the signal {@link
+ * AudioCodecTest} checks them against. Not a unit test; run {@link #main} from the test classpath.
+ */
+public class AudioCodecBenchmark {
+  private static final int[] CODECS = {
+    AudioFrame.CODEC_PCM_16, AudioFrame.CODEC_MU_LAW, AudioFrame.CODEC_IMA_ADPCM
+  };
+
+  public static void main(String[] args) {
+    // Warm up the JIT before measuring
+    for (int i = 0; i < 3; i++) {
+      for (int codec : CODECS) {
+        run(codec, 48000, false);
+      }
+    }
+    for (int sampleRate : AudioCodecTest.SAMPLE_RATES) {
+      for (int codec : CODECS) {
+        run(codec, sampleRate, true);
+      }
+    }
+  }
+
+  private static void run(int codecId, int sampleRate, boolean print) {
+    AudioCodec codec = AudioCodecs.create(codecId);
+    int frameSize = AudioFrame.samplesPerFrame(sampleRate) * 2;
+    byte[] pcm = AudioCodecTest.toPcm(AudioCodecTest.speechLike(sampleRate));
+    byte[] encoded = new byte[codec.getMaxEncodedSize(frameSize)];
+    byte[] decoded = new byte[frameSize];
+    int frames = pcm.length / frameSize;
+    int rounds = 20;
+    long encodeNanos = 0;
+    long decodeNanos = 0;
+    long encodedBytes = 0;
+    for (int round = 0; round < rounds; round++) {
+      for (int frame = 0; frame < frames; frame++) {
+        long start = System.nanoTime();
+        int len = codec.encode(pcm, frame * frameSize, frameSize, encoded, 0);
+        long middle = System.nanoTime();
+        codec.decode(encoded, 0, len, decoded, 0);
+        decodeNanos += System.nanoTime() - middle;
+        encodeNanos += middle - start;
+        encodedBytes += len;
+      }
+    }
+    if (print) {
+      long count = (long) rounds * frames;
+      double audioSeconds = (double) count * AudioFrame.FRAME_DURATION_MS / 1000;
+      System.out.println(
+          String.format(
+              Locale.US,
+              "codec %d %5d Hz  %4d -> %4d bytes  encode %7.2f us  decode %7.2f us"
+                  + "  (%6.0fx real time)",
+              codecId,
+              sampleRate,
+              frameSize,
+              encodedBytes / count,
+              encodeNanos / 1000.0 / count,
+              decodeNanos / 1000.0 / count,
+              audioSeconds * 1e9 / (encodeNanos + decodeNanos)));
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the {@link AudioCodec}s against synthetic signals, measuring the signal to noise ratio of
+ * a round trip. {@link AudioCodecBenchmark} measures how fast they encode and decode frames.
+ */
+public class AudioCodecTest {
+  static final int[] SAMPLE_RATES = {8000, 16000, 22050, 48000};
+  private static final int SECONDS = 2;
+
+  @Test
+  public void pcmIsLossless() {
+    byte[] pcm = toPcm(tone(8000, 440, 0.5));
+    assertArrayEquals(pcm, roundTrip(AudioCodecs.create(AudioFrame.CODEC_PCM_16), pcm, 8000));
+  }
+
+  @Test
+  public void muLawQuality() {
+    AudioCodec codec = AudioCodecs.create(AudioFrame.CODEC_MU_LAW);
+    // Companding keeps the ratio near 38dB however loud the signal
+    for (double amplitude : new double[] {0.9, 0.1, 0.01}) {
+      double snr = snr(codec, tone(8000, 440, amplitude), 8000);
+      assertTrue(amplitude + ": " + snr, snr > 30);
+    }
+    assertTrue(snr(codec, speechLike(8000), 8000) > 30);
+  }
+
+  @Test
+  public void adpcmQuality() {
+    for (int sampleRate : SAMPLE_RATES) {
+      AudioCodec codec = AudioCodecs.create(AudioFrame.CODEC_IMA_ADPCM);
+      double tone = snr(codec, tone(sampleRate, 440, 0.5), sampleRate);
+      assertTrue(sampleRate + " tone: " + tone, tone > 24);
+      double speech = snr(codec, speechLike(sampleRate), sampleRate);
+      assertTrue(sampleRate + " speech: " + speech, speech > 24);
+    }
+  }
+
+  @Test
+  public void adpcmFramesDecodeOnTheirOwn() {
+    int sampleRate = 22050;
+    int frameSize = AudioFrame.samplesPerFrame(sampleRate) * 2;
+    byte[] pcm = toPcm(speechLike(sampleRate));
+    AudioCodec codec = AudioCodecs.create(AudioFrame.CODEC_IMA_ADPCM);
+    byte[] encoded = new byte[codec.getMaxEncodedSize(frameSize)];
+    byte[] decoded = new byte[frameSize];
+    byte[] expected = roundTrip(AudioCodecs.create(AudioFrame.CODEC_IMA_ADPCM), pcm, sampleRate);
+
+    // Every other frame is lost; the ones that arrive still decode as they would have
+    for (int offset = 0; offset + frameSize <= pcm.length; offset += frameSize) {
+      int len = codec.encode(pcm, offset, frameSize, encoded, 0);
+      if ((offset / frameSize) % 2 == 1) {
+        continue;
+      }
+      AudioCodec decoder = AudioCodecs.create(codec.getId());
+      assertEquals(frameSize, decoder.decode(encoded, 0, len, decoded, 0));
+      for (int i = 0; i < frameSize; i++) {
+        assertEquals("byte " + (offset + i), expected[offset + i], decoded[i]);
+      }
+    }
+  }
+
+  @Test
+  public void compression() {
+    int frameSize = AudioFrame.samplesPerFrame(8000) * 2;
+    AudioCodec muLaw = AudioCodecs.create(AudioFrame.CODEC_MU_LAW);
+    assertEquals(frameSize / 2, muLaw.getMaxEncodedSize(frameSize));
+    // 4 bits a sample, and the predictor state
+    AudioCodec adpcm = AudioCodecs.create(AudioFrame.CODEC_IMA_ADPCM);
+    assertEquals(frameSize / 4 + 4, adpcm.getMaxEncodedSize(frameSize));
+  }
+
+  /** Encodes and decodes the samples a frame at a time, as the recorder and player do. */
+  private static byte[] roundTrip(AudioCodec codec, byte[] pcm, int sampleRate) {
+    int frameSize = AudioFrame.samplesPerFrame(sampleRate) * 2;
+    byte[] encoded = new byte[codec.getMaxEncodedSize(frameSize)];
+    byte[] decoded = new byte[pcm.length];
+    AudioCodec decoder = AudioCodecs.create(codec.getId());
+    for (int offset = 0; offset + frameSize <= pcm.length; offset += frameSize) {
+      int len = codec.encode(pcm, offset, frameSize, encoded, 0);
+      assertTrue(len <= encoded.length);
+      assertEquals(frameSize, decoder.decode(encoded, 0, len, decoded, offset));
+    }
+    return decoded;
+  }
+
+  /** @return The signal to noise ratio of a round trip through the codec, in dB. */
+  private static double snr(AudioCodec codec, short[] samples, int sampleRate) {
+    byte[] decoded = roundTrip(codec, toPcm(samples), sampleRate);
+    int frameSize = AudioFrame.samplesPerFrame(sampleRate);
+    int length = samples.length / frameSize * frameSize;
+    double signal = 0;
+    double noise = 0;
+    for (int i = 0; i < length; i++) {
+      int sample = (decoded[2 * i] & 0xFF) | (decoded[2 * i + 1] << 8);
+      signal += (double) samples[i] * samples[i];
+      noise += (double) (sample - samples[i]) * (sample - samples[i]);
+    }
+    return 10 * Math.log10(signal / Math.max(noise, 1));
+  }
+
+  private static short[] tone(int sampleRate, double frequency, double amplitude) {
+    short[] samples = new short[sampleRate * SECONDS];
+    for (int i = 0; i < samples.length; i++) {
+      double phase = 2 * Math.PI * frequency * i / sampleRate;
+      samples[i] = (short) (amplitude * Short.MAX_VALUE * Math.sin(phase));
+    }
+    return samples;
+  }
+
+  /**
+   * @return Something with the spectrum and level changes of speech: a few harmonics of a pitch
+   *     that wanders, loud and quiet syllables, and a little noise.
+   */
+  static short[] speechLike(int sampleRate) {
+    Random random = new Random(42);
+    short[] samples = new short[sampleRate * SECONDS];
+    double phase = 0;
+    for (int i = 0; i < samples.length; i++) {
+      double t = (double) i / sampleRate;
+      double pitch = 120 + 40 * Math.sin(2 * Math.PI * 1.5 * t);
+      phase += 2 * Math.PI * pitch / sampleRate;
+      double envelope = 0.2 + 0.6 * Math.abs(Math.sin(2 * Math.PI * 3 * t));
+      double value = 0;
+      for (int harmonic = 1; harmonic <= 8; harmonic++) {
+        value += Math.sin(harmonic * phase) / harmonic;
+      }
+      value = envelope * value / 2 + 0.01 * random.nextGaussian();
+      samples[i] = (short) Math.max(-32768, Math.min(32767, value * Short.MAX_VALUE));
+    }
+    return samples;
+  }
+
+  static byte[] toPcm(short[] samples) {
+    byte[] pcm = new byte[samples.length * 2];
+    for (int i = 0; i < samples.length; i++) {
+      pcm[2 * i] = (byte) samples[i];
+      pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+    }
+    return pcm;
+  }
+}
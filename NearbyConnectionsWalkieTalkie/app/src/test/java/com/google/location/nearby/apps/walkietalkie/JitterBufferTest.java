@@ -0,0 +1,243 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the {@link JitterBuffer} against frames arriving on a simulated clock: steadily, after a
+ * stall, late, not at all, and only now and then while the sender is quiet.
+ */
+public class JitterBufferTest {
+  private static final long FRAME_DURATION_US = AudioFrame.FRAME_DURATION_MS * 1000L;
+
+  /** How long a frame takes to arrive on a steady link. */
+  private static final long TRANSIT_US = 30000;
+
+  /** The depth a steady link settles at. */
+  private static final int STEADY_DEPTH = 2;
+
+  /** How far over the target the depth may stay. */
+  private static final int MAX_EXCESS = 2;
+
+  private final JitterBuffer mBuffer = new JitterBuffer();
+  private final AudioFrame mFrame = new AudioFrame();
+  private final AudioFrame mOut = new AudioFrame();
+
+  @Test
+  public void steadyArrival() {
+    put(0);
+    assertEquals(JitterBuffer.WAITING, mBuffer.poll(mOut));
+    for (int sequence = 1; sequence < 500; sequence++) {
+      put(sequence);
+      assertFrame(sequence - 1);
+    }
+    assertEquals(STEADY_DEPTH, mBuffer.getTargetDepth());
+    assertEquals(1, mBuffer.getDepth());
+    assertEquals(0, mBuffer.getLateFrames());
+    assertEquals(0, mBuffer.getLostFrames());
+    assertEquals(0, mBuffer.getDroppedFrames());
+    assertEquals(0, mBuffer.getUnderruns());
+
+    // What is left still plays once the stream ends
+    mBuffer.close();
+    assertFrame(499);
+    assertEquals(JitterBuffer.END, mBuffer.poll(mOut));
+  }
+
+  @Test
+  public void stallThenBurst() {
+    int sequence = playSteadily(0, 100);
+
+    // Nothing arrives for a quarter of a second, then it all arrives at once
+    int stall = 250 / AudioFrame.FRAME_DURATION_MS;
+    long burstUs = arrival(sequence + stall);
+    for (int i = 0; i <= stall; i++) {
+      put(sequence + i, burstUs);
+    }
+    int peak = mBuffer.getDepth();
+    assertTrue("target " + mBuffer.getTargetDepth(), mBuffer.getTargetDepth() > STEADY_DEPTH);
+
+    // The extra delay goes at once, rather than lasting the rest of the stream
+    assertEquals(JitterBuffer.FRAME, mBuffer.poll(mOut));
+    assertTrue(mBuffer.getDroppedFrames() > 0);
+    assertTrue(mBuffer.getDepth() < peak);
+    assertTrue(mBuffer.getDepth() <= mBuffer.getTargetDepth() + MAX_EXCESS);
+
+    // And once the link is steady again the target comes back down, and the depth with it
+    int next = mOut.getSequence() + 1;
+    sequence += stall + 1;
+    for (int i = 0; i < 500; i++) {
+      put(sequence++);
+      int status = mBuffer.poll(mOut);
+      if (status == JitterBuffer.FRAME) {
+        assertTrue(mOut.getSequence() >= next);
+        next = mOut.getSequence() + 1;
+      }
+    }
+    assertEquals(STEADY_DEPTH, mBuffer.getTargetDepth());
+    assertTrue("depth " + mBuffer.getDepth(), mBuffer.getDepth() <= STEADY_DEPTH + MAX_EXCESS);
+    assertEquals(0, mBuffer.getLateFrames());
+  }
+
+  @Test
+  public void lateFrame() {
+    int sequence = playSteadily(0, 50);
+
+    // One frame is held up until after its turn
+    int late = sequence;
+    put(late + 1);
+    put(late + 2);
+    assertFrame(late - 1);
+    assertEquals(JitterBuffer.LOST, mBuffer.poll(mOut));
+    assertEquals(1, mBuffer.getLostFrames());
+    put(late, arrival(late + 2));
+    assertEquals(1, mBuffer.getLateFrames());
+
+    // It isn't played out of order
+    assertFrame(late + 1);
+    assertFrame(late + 2);
+    assertEquals(0, mBuffer.getUnderruns());
+  }
+
+  @Test
+  public void underrunThenRefill() {
+    int sequence = playSteadily(0, 50);
+
+    // The frames stop arriving
+    assertFrame(sequence - 1);
+    assertEquals(JitterBuffer.UNDERRUN, mBuffer.poll(mOut));
+    assertEquals(1, mBuffer.getUnderruns());
+    assertEquals(JitterBuffer.WAITING, mBuffer.poll(mOut));
+
+    // Play starts again only once the target depth is back in hand
+    put(sequence);
+    assertTrue(mBuffer.getDepth() < mBuffer.getTargetDepth());
+    assertEquals(JitterBuffer.WAITING, mBuffer.poll(mOut));
+    for (int i = 1; i < mBuffer.getTargetDepth(); i++) {
+      put(sequence + i);
+    }
+    assertFrame(sequence);
+    assertEquals(1, mBuffer.getUnderruns());
+    assertEquals(0, mBuffer.getLostFrames());
+  }
+
+  @Test
+  public void comfortNoiseKeepsTime() {
+    int sequence = playSteadily(0, 50);
+
+    // The sender goes quiet, sending comfort noise only every tenth frame
+    putSilence(sequence);
+    assertFrame(sequence - 1);
+    for (int i = 0; i < 30; i++) {
+      if (i > 0 && i % 10 == 0) {
+        putSilence(sequence + i);
+      }
+      assertEquals(JitterBuffer.FRAME, mBuffer.poll(mOut));
+      assertEquals(AudioFrame.CODEC_COMFORT_NOISE, mOut.getCodec());
+    }
+    assertEquals(0, mBuffer.getUnderruns());
+    assertEquals(0, mBuffer.getLostFrames());
+
+    // Speech picks up where the comfort noise left off
+    sequence += 30;
+    put(sequence);
+    put(sequence + 1);
+    assertFrame(sequence);
+    assertEquals(AudioFrame.CODEC_PCM_16, mOut.getCodec());
+    assertEquals(0, mBuffer.getLateFrames());
+  }
+
+  @Test
+  public void preRollAfterComfortNoise() {
+    int sequence = playSteadily(0, 50);
+    putSilence(sequence);
+    assertFrame(sequence - 1);
+    assertFrame(sequence);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(JitterBuffer.FRAME, mBuffer.poll(mOut));
+      assertEquals(AudioFrame.CODEC_COMFORT_NOISE, mOut.getCodec());
+    }
+
+    // Speech starts, and the quiet frames before it that weren't sent come with it
+    int speech = sequence + 5;
+    for (int i = sequence + 1; i <= speech; i++) {
+      put(i, arrival(speech));
+    }
+    assertEquals(0, mBuffer.getLateFrames());
+    for (int i = sequence + 1; i <= speech; i++) {
+      assertFrame(i);
+    }
+    assertEquals(0, mBuffer.getUnderruns());
+    assertEquals(0, mBuffer.getLostFrames());
+  }
+
+  @Test
+  public void comfortNoiseResyncs() {
+    int sequence = playSteadily(0, 50);
+    putSilence(sequence);
+    assertFrame(sequence - 1);
+    assertFrame(sequence);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(JitterBuffer.FRAME, mBuffer.poll(mOut));
+    }
+
+    // The sender restarted, counting from 0 again; the jump in transit time means a rebuffer
+    int restart = 0;
+    do {
+      put(restart, arrival(sequence + 20 + restart));
+      restart++;
+    } while (mBuffer.getDepth() < mBuffer.getTargetDepth());
+    for (int i = 0; i < restart; i++) {
+      assertFrame(i);
+    }
+    assertEquals(0, mBuffer.getLateFrames());
+    assertEquals(0, mBuffer.getUnderruns());
+  }
+
+  /**
+   * Puts frames in and plays them one for one, starting from {@code first}.
+   *
+   * @return The sequence number of the next frame to put in. The buffer holds the one before.
+   */
+  private int playSteadily(int first, int count) {
+    put(first);
+    for (int sequence = first + 1; sequence < first + count; sequence++) {
+      put(sequence);
+      assertFrame(sequence - 1);
+    }
+    return first + count;
+  }
+
+  private void assertFrame(int sequence) {
+    assertEquals(JitterBuffer.FRAME, mBuffer.poll(mOut));
+    assertEquals(sequence, mOut.getSequence());
+  }
+
+  private void put(int sequence) {
+    put(sequence, arrival(sequence), AudioFrame.CODEC_PCM_16);
+  }
+
+  private void putSilence(int sequence) {
+    put(sequence, arrival(sequence), AudioFrame.CODEC_COMFORT_NOISE);
+  }
+
+  private void put(int sequence, long arrivalTimeUs) {
+    put(sequence, arrivalTimeUs, AudioFrame.CODEC_PCM_16);
+  }
+
+  private void put(int sequence, long arrivalTimeUs, int codec) {
+    mFrame.setHeader(codec, 0, sequence, 16000, captureTime(sequence));
+    mBuffer.put(mFrame, arrivalTimeUs);
+  }
+
+  private static long captureTime(int sequence) {
+    return sequence * FRAME_DURATION_US;
+  }
+
+  /** @return When a frame arrives on a steady link. */
+  private static long arrival(int sequence) {
+    return captureTime(sequence) + TRANSIT_US;
+  }
+}
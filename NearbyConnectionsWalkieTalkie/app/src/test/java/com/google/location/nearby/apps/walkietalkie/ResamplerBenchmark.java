@@ -0,0 +1,50 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Locale;
+
+/**
+ * Measures how fast the {@link Resampler} converts frames between the rates {@link ResamplerTest}
+ * checks. Not a unit test; run {@link #main} from the test classpath.
+ */
+public class ResamplerBenchmark {
+
+  public static void main(String[] args) {
+    // Warm up the JIT before measuring
+    for (int i = 0; i < 3; i++) {
+      for (int[] conversion : ResamplerTest.CONVERSIONS) {
+        run(conversion[0], conversion[1], false);
+      }
+    }
+    for (int[] conversion : ResamplerTest.CONVERSIONS) {
+      run(conversion[0], conversion[1], true);
+    }
+  }
+
+  private static void run(int inputRate, int outputRate, boolean print) {
+    Resampler resampler = new Resampler(inputRate, outputRate);
+    int frameSize = AudioFrame.samplesPerFrame(inputRate) * 2;
+    byte[] pcm = ResamplerTest.toPcm(ResamplerTest.tone(inputRate, 440, 0.5));
+    byte[] out = new byte[resampler.getMaxOutputSize(frameSize)];
+    int frames = pcm.length / frameSize;
+    int rounds = 10;
+    long start = System.nanoTime();
+    for (int round = 0; round < rounds; round++) {
+      for (int frame = 0; frame < frames; frame++) {
+        resampler.resample(pcm, frame * frameSize, frameSize, out, 0);
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    if (print) {
+      long count = (long) rounds * frames;
+      double audioSeconds = (double) count * AudioFrame.FRAME_DURATION_MS / 1000;
+      System.out.println(
+          String.format(
+              Locale.US,
+              "%5d -> %5d Hz  %7.2f us a frame  (%6.0fx real time)",
+              inputRate,
+              outputRate,
+              nanos / 1000.0 / count,
+              audioSeconds * 1e9 / nanos));
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import org.junit.Test;
+
+/**
+ * Checks the {@link Resampler} against pure tones, measuring how much of a tone in the pass band
+ * comes through clean and how much of one above it aliases. {@link ResamplerBenchmark} measures how
+ * fast it converts frames.
+ */
+public class ResamplerTest {
+  static final int[][] CONVERSIONS = {
+    {48000, 16000}, {16000, 48000}, {44100, 16000}, {16000, 44100}, {48000, 8000}, {8000, 48000},
+    {22050, 16000}, {44100, 48000}
+  };
+  private static final int SECONDS = 2;
+
+  @Test
+  public void sameRateIsLossless() {
+    Resampler resampler = new Resampler(16000, 16000);
+    byte[] pcm = toPcm(tone(16000, 440, 0.5));
+    byte[] out = new byte[pcm.length];
+    int frameSize = AudioFrame.samplesPerFrame(16000) * 2;
+    for (int offset = 0; offset + frameSize <= pcm.length; offset += frameSize) {
+      assertEquals(frameSize, resampler.resample(pcm, offset, frameSize, out, offset));
+    }
+    for (int i = 0; i < pcm.length; i++) {
+      assertEquals(pcm[i], out[i]);
+    }
+  }
+
+  @Test
+  public void framesKeepTheirLength() {
+    // Rates that are whole numbers of samples a frame convert frame for frame
+    for (int[] conversion : CONVERSIONS) {
+      Resampler resampler = new Resampler(conversion[0], conversion[1]);
+      int inSize = AudioFrame.samplesPerFrame(conversion[0]) * 2;
+      int outSize = AudioFrame.samplesPerFrame(conversion[1]) * 2;
+      byte[] in = new byte[inSize];
+      byte[] out = new byte[resampler.getMaxOutputSize(inSize)];
+      for (int frame = 0; frame < 100; frame++) {
+        assertEquals(
+            conversion[0] + " to " + conversion[1],
+            outSize,
+            resampler.resample(in, 0, inSize, out, 0));
+      }
+    }
+  }
+
+  @Test
+  public void passBand() {
+    for (int[] conversion : CONVERSIONS) {
+      int lower = Math.min(conversion[0], conversion[1]);
+      // Speech lives well under the cut off
+      for (double frequency : new double[] {200, 1000, lower * 0.35}) {
+        double snr = snr(conversion[0], conversion[1], frequency);
+        assertTrue(conversion[0] + " to " + conversion[1] + " " + frequency + ": " + snr, snr > 70);
+      }
+    }
+  }
+
+  @Test
+  public void stopBand() {
+    // Tones the lower rate can't hold are filtered out rather than folded back down
+    for (int[] conversion : new int[][] {{48000, 16000}, {44100, 16000}, {48000, 8000}}) {
+      double frequency = conversion[1] * 0.6;
+      double level = level(conversion[0], conversion[1], frequency);
+      assertTrue(conversion[0] + " to " + conversion[1] + ": " + level, level < -70);
+    }
+  }
+
+  @Test
+  public void framesDoNotAllocate() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    Resampler resampler = new Resampler(44100, 16000);
+    int inSize = AudioFrame.samplesPerFrame(44100) * 2;
+    byte[] in = toPcm(tone(44100, 440, 0.5));
+    byte[] out = new byte[resampler.getMaxOutputSize(inSize)];
+    // Warm up, so nothing the JIT or class loading does is counted
+    for (int i = 0; i < 1000; i++) {
+      resampler.resample(in, 0, inSize, out, 0);
+    }
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+    for (int i = 0; i < 1000; i++) {
+      resampler.resample(in, 0, inSize, out, 0);
+    }
+    long allocated = threads.getThreadAllocatedBytes(id) - before;
+    assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+  }
+
+  /** Converts a tone a frame at a time, as the recorder and mixer do. */
+  private static short[] convert(int inputRate, int outputRate, double frequency) {
+    Resampler resampler = new Resampler(inputRate, outputRate);
+    byte[] pcm = toPcm(tone(inputRate, frequency, 0.5));
+    int frameSize = AudioFrame.samplesPerFrame(inputRate) * 2;
+    byte[] out = new byte[pcm.length / frameSize * resampler.getMaxOutputSize(frameSize)];
+    int length = 0;
+    for (int offset = 0; offset + frameSize <= pcm.length; offset += frameSize) {
+      length += resampler.resample(pcm, offset, frameSize, out, length);
+    }
+    short[] samples = new short[length / 2];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = (short) ((out[2 * i] & 0xFF) | (out[2 * i + 1] << 8));
+    }
+    return samples;
+  }
+
+  /**
+   * @return The signal to noise ratio of a tone through the resampler, in dB, against the tone it
+   *     should have come out as. The tone's phase and the filter's delay are fitted, by least
+   *     squares against a sine and a cosine, leaving out the start while the filter fills up.
+   */
+  private static double snr(int inputRate, int outputRate, double frequency) {
+    short[] samples = convert(inputRate, outputRate, frequency);
+    int skip = outputRate / 10;
+    double ss = 0;
+    double cc = 0;
+    double sc = 0;
+    double ys = 0;
+    double yc = 0;
+    for (int i = skip; i < samples.length; i++) {
+      double phase = 2 * Math.PI * frequency * i / outputRate;
+      double s = Math.sin(phase);
+      double c = Math.cos(phase);
+      ss += s * s;
+      cc += c * c;
+      sc += s * c;
+      ys += samples[i] * s;
+      yc += samples[i] * c;
+    }
+    double determinant = ss * cc - sc * sc;
+    double a = (ys * cc - yc * sc) / determinant;
+    double b = (yc * ss - ys * sc) / determinant;
+    double signal = 0;
+    double noise = 0;
+    for (int i = skip; i < samples.length; i++) {
+      double phase = 2 * Math.PI * frequency * i / outputRate;
+      double expected = a * Math.sin(phase) + b * Math.cos(phase);
+      signal += expected * expected;
+      noise += (samples[i] - expected) * (samples[i] - expected);
+    }
+    return 10 * Math.log10(signal / Math.max(noise, 1));
+  }
+
+  /** @return How loud a tone comes out of the resampler, in dB relative to how loud it went in. */
+  private static double level(int inputRate, int outputRate, double frequency) {
+    short[] samples = convert(inputRate, outputRate, frequency);
+    int skip = outputRate / 10;
+    double power = 0;
+    for (int i = skip; i < samples.length; i++) {
+      power += (double) samples[i] * samples[i];
+    }
+    power /= samples.length - skip;
+    double input = 0.5 * Short.MAX_VALUE * 0.5 * Short.MAX_VALUE / 2;
+    return 10 * Math.log10(Math.max(power, 1e-9) / input);
+  }
+
+  static short[] tone(int sampleRate, double frequency, double amplitude) {
+    short[] samples = new short[sampleRate * SECONDS];
+    for (int i = 0; i < samples.length; i++) {
+      double phase = 2 * Math.PI * frequency * i / sampleRate;
+      samples[i] = (short) (amplitude * Short.MAX_VALUE * Math.sin(phase));
+    }
+    return samples;
+  }
+
+  static byte[] toPcm(short[] samples) {
+    byte[] pcm = new byte[samples.length * 2];
+    for (int i = 0; i < samples.length; i++) {
+      pcm[2 * i] = (byte) samples[i];
+      pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+    }
+    return pcm;
+  }
+}